@@ -0,0 +1,309 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Micro benchmarks for the in process parts of ProfNetwork: result set
+ * conversion, table rendering, the social graph, the people search index,
+ * the user Bloom filter and the profile cache. No database is needed; the
+ * graph and the index are built from the CSV files in data/.
+ *
+ * Every benchmark is warmed up, then timed over several rounds, and the
+ * mean and spread of the per operation time are reported. Results of each
+ * call are folded into a sink so the JIT cannot drop the work.
+ *
+ * Usage: java Bench [data directory] [name regex]
+ * Settings: profnetwork.bench.warmupMs (default 2000),
+ * profnetwork.bench.roundMs (default 1000), profnetwork.bench.rounds
+ * (default 5) and profnetwork.bench.seed (default 42).
+ */
+public class Bench {
+
+   /**
+    * One benchmark. run() performs the operation a given number of times.
+    */
+   static abstract class Benchmark {
+      final String name;
+
+      Benchmark (String name) {
+         this.name = name;
+      }
+
+      /**
+       * @param ops number of operations to perform
+       * @return any value depending on the work done
+       */
+      abstract long run (int ops) throws Exception;
+   }//end Benchmark
+
+   // keeps benchmark results observable
+   static volatile long sink;
+
+   public static void main (String[] args) throws Exception {
+      File data = new File(args.length > 0 ? args[0] : "../../data");
+      Pattern filter = Pattern.compile(args.length > 1 ? args[1] : ".*");
+      long warmupMs = Long.getLong("profnetwork.bench.warmupMs", 2000L);
+      long roundMs = Long.getLong("profnetwork.bench.roundMs", 1000L);
+      int rounds = Integer.getInteger("profnetwork.bench.rounds", 5);
+      long seed = Long.getLong("profnetwork.bench.seed", 42L);
+
+      List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+      addConversion(benchmarks);
+      addRendering(benchmarks);
+      addGraph(benchmarks, data, seed);
+      addSearch(benchmarks, data, seed);
+      addUserLookups(benchmarks, data, seed);
+
+      System.out.format("%-32s %12s %12s %14s\n", "Benchmark", "ns/op", "+/- ns", "ops/s");
+      for (Benchmark b : benchmarks) {
+         if (!filter.matcher(b.name).find())
+            continue;
+         measure(b, warmupMs, 0);
+         double[] nsPerOp = new double[rounds];
+         for (int r = 0; r < rounds; ++r)
+            nsPerOp[r] = measure(b, roundMs, r);
+         double mean = 0, var = 0;
+         for (double x : nsPerOp)
+            mean += x / rounds;
+         for (double x : nsPerOp)
+            var += (x - mean) * (x - mean) / Math.max(1, rounds - 1);
+         System.out.format("%-32s %12.1f %12.1f %14.0f\n", b.name, mean, Math.sqrt(var), 1e9 / mean);
+      }//end for
+   }//end main
+
+   // runs the benchmark in growing batches for about durationMs, returns ns/op
+   static double measure (Benchmark b, long durationMs, int round) throws Exception {
+      long deadline = System.nanoTime() + durationMs * 1000000L;
+      long ops = 0, nanos = 0;
+      int batch = 1;
+      long acc = 0;
+      while (System.nanoTime() < deadline) {
+         long start = System.nanoTime();
+         acc += b.run(batch);
+         nanos += System.nanoTime() - start;
+         ops += batch;
+         if (batch < (1 << 20))
+            batch <<= 1;
+      }//end while
+      sink += acc + round;
+      return (double) nanos / Math.max(1, ops);
+   }//end measure
+
+   private static void addConversion (List<Benchmark> benchmarks) {
+      for (final int rows : new int[] { 20, 1000 }) {
+         benchmarks.add(new Benchmark("readRows/" + rows + "x4") {
+            long run (int ops) throws Exception {
+               long n = 0;
+               for (int i = 0; i < ops; ++i)
+                  n += ProfNetwork.readRows(fakeResultSet(rows, 4)).size();
+               return n;
+            }
+         });
+      }
+   }//end addConversion
+
+   private static void addRendering (List<Benchmark> benchmarks) {
+      final PrintStream devNull = new PrintStream(new OutputStream() {
+         public void write (int b) {
+         }
+         public void write (byte[] b, int off, int len) {
+         }
+      });
+      final String[][] rows = new String[100][];
+      for (int i = 0; i < rows.length; ++i)
+         rows[i] = new String[] { "user_" + i, "Some Name " + i, "user" + i + "@example.com", "1990-01-01" };
+      benchmarks.add(new Benchmark("TableRenderer/100x4") {
+         long run (int ops) {
+            long n = 0;
+            for (int i = 0; i < ops; ++i) {
+               TableRenderer table = new TableRenderer(devNull, "Username", "Full Name", "Email", "DateOfBirth");
+               for (String[] row : rows)
+                  table.addRow(row);
+               table.flush();
+               n += table.getRowCount();
+            }
+            return n;
+         }
+      });
+   }//end addRendering
+
+   private static void addGraph (List<Benchmark> benchmarks, File data, long seed) throws IOException {
+      List<String[]> connections = readCsv(new File(data, "data_CONNECTION_USR.csv"), 3);
+      final SocialGraph graph = new SocialGraph();
+      for (String[] c : connections) {
+         if (c[2].equals("Accept") || c[2].equals("Request"))
+            graph.addRequest(c[0], c[1]);
+         if (c[2].equals("Accept"))
+            graph.acceptRequest(c[0], c[1]);
+      }
+      final String[] users = new String[connections.size()];
+      for (int i = 0; i < users.length; ++i)
+         users[i] = connections.get(i)[i & 1];
+      final Random rnd = new Random(seed);
+
+      benchmarks.add(new Benchmark("SocialGraph.withinHops/3") {
+         long run (int ops) {
+            long n = 0;
+            for (int i = 0; i < ops; ++i)
+               if (graph.withinHops(users[rnd.nextInt(users.length)], users[rnd.nextInt(users.length)], 3))
+                  ++n;
+            return n;
+         }
+      });
+      benchmarks.add(new Benchmark("SocialGraph.suggestFriends/10") {
+         long run (int ops) {
+            long n = 0;
+            for (int i = 0; i < ops; ++i)
+               n += graph.suggestFriends(users[rnd.nextInt(users.length)], 10).size();
+            return n;
+         }
+      });
+   }//end addGraph
+
+   private static void addSearch (List<Benchmark> benchmarks, File data, long seed) throws IOException {
+      List<String[]> usr = readCsv(new File(data, "data_USR.csv"), 5);
+      final PeopleSearchIndex index = new PeopleSearchIndex();
+      final String[] names = new String[usr.size()];
+      for (int i = 0; i < names.length; ++i) {
+         String[] u = usr.get(i);
+         index.put(u[0], u[3], u[2]);
+         names[i] = u[3];
+      }
+      final Random rnd = new Random(seed);
+
+      for (final int len : new int[] { 2, 4 }) {
+         benchmarks.add(new Benchmark("PeopleSearchIndex.search/" + len) {
+            long run (int ops) {
+               long n = 0;
+               for (int i = 0; i < ops; ++i) {
+                  String name = names[rnd.nextInt(names.length)];
+                  int from = rnd.nextInt(Math.max(1, name.length() - len));
+                  n += index.search(name.substring(from, Math.min(name.length(), from + len)), 0, 20).total;
+               }
+               return n;
+            }
+         });
+      }
+   }//end addSearch
+
+   private static void addUserLookups (List<Benchmark> benchmarks, File data, long seed) throws IOException {
+      List<String[]> usr = readCsv(new File(data, "data_USR.csv"), 5);
+      final BloomFilter filter = BloomFilter.create(usr.size(), 0.01);
+      final ProfileCache cache = new ProfileCache(usr.size() * 2, Long.MAX_VALUE / 2);
+      final String[] ids = new String[usr.size()];
+      for (int i = 0; i < ids.length; ++i) {
+         String[] u = usr.get(i);
+         ids[i] = u[0];
+         filter.add(u[0]);
+         cache.put(new ProfileCache.UserProfile(u[0], u[2], u[3], u[4]));
+      }
+      final Random rnd = new Random(seed);
+
+      benchmarks.add(new Benchmark("BloomFilter.mightContain") {
+         long run (int ops) {
+            long n = 0;
+            for (int i = 0; i < ops; ++i)
+               if (filter.mightContain(ids[rnd.nextInt(ids.length)]))
+                  ++n;
+            return n;
+         }
+      });
+      benchmarks.add(new Benchmark("ProfileCache.get/hit") {
+         long run (int ops) {
+            long n = 0;
+            for (int i = 0; i < ops; ++i)
+               if (cache.get(ids[rnd.nextInt(ids.length)]) != null)
+                  ++n;
+            return n;
+         }
+      });
+   }//end addUserLookups
+
+   /**
+    * Reads a CSV file of the data/ directory into trimmed fields.
+    *
+    * @param file the file
+    * @param columns the number of fields per row; other rows are skipped
+    * @return the rows
+    * @throws java.io.IOException when the file cannot be read
+    */
+   static List<String[]> readCsv (File file, int columns) throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+         String line;
+         while ((line = in.readLine()) != null) {
+            String[] fields = BulkLoader.splitCsv(line, columns);
+            if (fields == null)
+               continue;
+            for (int i = 0; i < fields.length; ++i)
+               fields[i] = fields[i].trim();
+            rows.add(fields);
+         }
+      } finally {
+         in.close();
+      }//end try
+      return rows;
+   }//end readCsv
+
+   // a forward only result set of rows x columns short strings; the proxy
+   // dispatch is part of the measured readRows time
+   static ResultSet fakeResultSet (final int rows, final int columns) {
+      final ResultSetMetaData meta = (ResultSetMetaData) Proxy.newProxyInstance(
+         Bench.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class }, new InvocationHandler() {
+            public Object invoke (Object proxy, Method m, Object[] a) {
+               if (m.getName().equals("getColumnCount"))
+                  return columns;
+               throw new UnsupportedOperationException(m.getName());
+            }
+         });
+      final String[] values = new String[columns];
+      for (int i = 0; i < columns; ++i)
+         values[i] = "value-" + i + Arrays.toString(new int[i]);
+      return (ResultSet) Proxy.newProxyInstance(
+         Bench.class.getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+            private int _row = 0;
+
+            public Object invoke (Object proxy, Method m, Object[] a) {
+               String name = m.getName();
+               if (name.equals("next"))
+                  return ++this._row <= rows;
+               if (name.equals("getString"))
+                  return values[((Integer) a[0]).intValue() - 1];
+               if (name.equals("getMetaData"))
+                  return meta;
+               if (name.equals("close"))
+                  return null;
+               throw new UnsupportedOperationException(name);
+            }
+         });
+   }//end fakeResultSet
+
+}//end Bench
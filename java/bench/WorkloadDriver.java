@@ -0,0 +1,324 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Closed loop workload driver. A number of simulated clients share one
+ * ProfNetwork instance; each client repeatedly picks an operation from a
+ * weighted mix, runs it against the database the way the menu handlers do,
+ * waits for it to finish and, after an optional think time, starts the next
+ * one. After a warmup period the latency of every operation is recorded and
+ * throughput plus p50/p99/p999 per operation are reported.
+ *
+ * The database should be seeded from data/ first (create_db.sh or --load).
+ * The "send" operation inserts messages, so it is kept out of the default
+ * mix; add e.g. send=5 to include writes.
+ *
+ * Usage: java WorkloadDriver <dbname> <port> <user>
+ * Settings: profnetwork.workload.clients (default 32),
+ * profnetwork.workload.warmupSec (default 10),
+ * profnetwork.workload.durationSec (default 60),
+ * profnetwork.workload.thinkMs (default 0),
+ * profnetwork.workload.seed (default 42),
+ * profnetwork.workload.mix (default login=30,search=25,profile=25,friends=10,messages=10) and
+ * profnetwork.workload.maxErrorRate (default 0.01).
+ * The pool should allow as many connections as there are clients, e.g.
+ * -Dprofnetwork.pool.max=32.
+ *
+ * The first failure of every operation is printed to stderr with its stack
+ * trace. The driver exits with status 1 when more than maxErrorRate of the
+ * recorded operations failed, so a broken run cannot pass for a fast one.
+ */
+public class WorkloadDriver {
+
+   static final String[] OPERATIONS = { "login", "search", "profile", "friends", "messages", "send" };
+
+   private final ProfNetwork _esql;
+   private final String[][] _users;
+   private final int[] _mix = new int[OPERATIONS.length];
+   private int _mixTotal = 0;
+
+   private volatile boolean _recording = false;
+   private volatile boolean _running = true;
+   // the first failure of every operation, reported once
+   private final AtomicReferenceArray<Exception> _firstErrors = new AtomicReferenceArray<Exception>(OPERATIONS.length);
+
+   /**
+    * @param esql the database to drive
+    * @param mix comma separated operation=weight pairs
+    * @throws java.sql.SQLException when the users cannot be read
+    */
+   public WorkloadDriver (ProfNetwork esql, String mix) throws java.sql.SQLException {
+      this._esql = esql;
+      for (String part : mix.split(",")) {
+         String[] kv = part.trim().split("=");
+         int op = Arrays.asList(OPERATIONS).indexOf(kv[0].trim());
+         if (op < 0 || kv.length != 2)
+            throw new IllegalArgumentException("Unknown operation in mix: " + part);
+         this._mix[op] = Integer.parseInt(kv[1].trim());
+         this._mixTotal += this._mix[op];
+      }
+      if (this._mixTotal <= 0)
+         throw new IllegalArgumentException("Empty operation mix");
+      List<List<String>> rows = esql.executeQueryAndReturnResult("SELECT userId, password, name FROM USR");
+      this._users = new String[rows.size()][];
+      for (int i = 0; i < this._users.length; ++i) {
+         List<String> row = rows.get(i);
+         this._users[i] = new String[] { row.get(0), row.get(1), (row.get(2) == null) ? "" : row.get(2) };
+      }
+      if (this._users.length < 2)
+         throw new IllegalStateException("USR has too few rows, seed the database from data/ first");
+   }//end WorkloadDriver
+
+   /**
+    * Runs the workload and returns the latencies of every client.
+    *
+    * @param clients number of concurrent clients
+    * @param warmupMs time before recording starts
+    * @param durationMs recorded time
+    * @param thinkMs pause between the operations of a client
+    * @param seed seed of the clients' random choices
+    * @return the recorders of every client
+    * @throws java.lang.InterruptedException when interrupted while waiting
+    */
+   public Recorder[] run (int clients, long warmupMs, long durationMs, final long thinkMs, long seed) throws InterruptedException {
+      final Recorder[] recorders = new Recorder[clients];
+      Thread[] threads = new Thread[clients];
+      for (int c = 0; c < clients; ++c) {
+         final Recorder rec = recorders[c] = new Recorder();
+         final Random rnd = new Random(seed + c);
+         threads[c] = new Thread("client-" + c) {
+            public void run () {
+               clientLoop(rnd, rec, thinkMs);
+            }
+         };
+         threads[c].setDaemon(true);
+         threads[c].start();
+      }//end for
+      Thread.sleep(warmupMs);
+      long start = System.nanoTime();
+      this._recording = true;
+      Thread.sleep(durationMs);
+      this._recording = false;
+      long elapsed = System.nanoTime() - start;
+      this._running = false;
+      for (Thread t : threads)
+         t.join();
+      for (Recorder r : recorders)
+         r.elapsedNanos = elapsed;
+      return recorders;
+   }//end run
+
+   private void clientLoop (Random rnd, Recorder rec, long thinkMs) {
+      // every client plays one logged in user at a time
+      String[] me = this._users[rnd.nextInt(this._users.length)];
+      while (this._running) {
+         int op = pick(rnd);
+         long start = System.nanoTime();
+         boolean ok = true;
+         try {
+            me = execute(op, me, rnd);
+         } catch (Exception e) {
+            ok = false;
+            if (this._firstErrors.compareAndSet(op, null, e)) {
+               System.err.println("First " + OPERATIONS[op] + " failure:");
+               e.printStackTrace();
+            }
+         }//end try
+         long nanos = System.nanoTime() - start;
+         if (this._recording)
+            rec.record(op, nanos, ok);
+         if (thinkMs > 0) {
+            try {
+               Thread.sleep(thinkMs);
+            } catch (InterruptedException e) {
+               return;
+            }//end try
+         }
+      }//end while
+   }//end clientLoop
+
+   private int pick (Random rnd) {
+      int r = rnd.nextInt(this._mixTotal);
+      for (int op = 0; op < this._mix.length; ++op) {
+         r -= this._mix[op];
+         if (r < 0)
+            return op;
+      }
+      return 0;
+   }//end pick
+
+   // runs one operation as the given user, returns the user for the next one
+   private String[] execute (int op, String[] me, Random rnd) throws Exception {
+      String[] other = this._users[rnd.nextInt(this._users.length)];
+      switch (op) {
+         case 0: // LogIn, as a different user
+            if (this._esql.userMightExist(other[0]))
+               this._esql.executeQuery("SELECT userId FROM USR WHERE userId = ? AND password = ?", other[0], other[1]);
+            return other;
+         case 1: { // SearchPeople, first page of a piece of someone's name
+            String name = other[2].isEmpty() ? other[0] : other[2];
+            int len = Math.min(name.length(), 3 + rnd.nextInt(3));
+            int from = rnd.nextInt(name.length() - len + 1);
+            this._esql.searchPeople(name.substring(from, from + len), 0, 20);
+            return me;
+         }
+         case 2: // ViewUserProfile
+            this._esql.getProfile(other[0]);
+            this._esql.socialGraph().withinHops(me[0], other[0], 3);
+            this._esql.friendProfiles(other[0]);
+            return me;
+         case 3: // ViewFriends
+            this._esql.friendProfiles(me[0]);
+            return me;
+         case 4: { // ViewMessages, inbox and the newest page of the latest conversation
+            List<List<String>> inbox = this._esql.inbox(me[0], 20);
+            if (!inbox.isEmpty())
+               this._esql.conversationPage(me[0], inbox.get(0).get(0), null, 0, 20);
+            return me;
+         }
+         default: // SendMessage
+            this._esql.sendMessage(me[0], other[0], "workload message " + rnd.nextInt(), null);
+            return me;
+      }//end switch
+   }//end execute
+
+   /**
+    * Latencies recorded by one client, in nanoseconds, per operation.
+    */
+   static final class Recorder {
+      final long[][] latencies = new long[OPERATIONS.length][256];
+      final int[] counts = new int[OPERATIONS.length];
+      final int[] errors = new int[OPERATIONS.length];
+      long elapsedNanos;
+
+      void record (int op, long nanos, boolean ok) {
+         if (!ok) {
+            ++this.errors[op];
+            return;
+         }
+         if (this.counts[op] == this.latencies[op].length)
+            this.latencies[op] = Arrays.copyOf(this.latencies[op], this.counts[op] * 2);
+         this.latencies[op][this.counts[op]++] = nanos;
+      }
+   }//end Recorder
+
+   /**
+    * Merges the recorders and prints one line per operation.
+    *
+    * @param recorders the recorders of every client
+    * @return the fraction of recorded operations that failed, 1 when none ran
+    */
+   static double report (Recorder[] recorders) {
+      double seconds = recorders[0].elapsedNanos / 1e9;
+      List<long[]> parts = new ArrayList<long[]>();
+      long allOps = 0, allErrors = 0;
+      System.out.format("%-10s %9s %7s %10s %9s %9s %9s %9s %9s\n",
+                        "Operation", "ops", "errors", "ops/s", "mean ms", "p50 ms", "p99 ms", "p999 ms", "max ms");
+      for (int op = 0; op < OPERATIONS.length; ++op) {
+         int n = 0, errors = 0;
+         for (Recorder r : recorders) {
+            n += r.counts[op];
+            errors += r.errors[op];
+         }
+         if (n == 0 && errors == 0)
+            continue;
+         long[] all = new long[n];
+         int pos = 0;
+         for (Recorder r : recorders) {
+            System.arraycopy(r.latencies[op], 0, all, pos, r.counts[op]);
+            pos += r.counts[op];
+         }
+         Arrays.sort(all);
+         parts.add(all);
+         allOps += n;
+         allErrors += errors;
+         printLine(OPERATIONS[op], all, errors, seconds);
+      }//end for
+      int total = 0;
+      for (long[] p : parts)
+         total += p.length;
+      long[] all = new long[total];
+      int pos = 0;
+      for (long[] p : parts) {
+         System.arraycopy(p, 0, all, pos, p.length);
+         pos += p.length;
+      }
+      Arrays.sort(all);
+      printLine("total", all, (int) allErrors, seconds);
+      System.out.format("%d operations in %.1fs\n", allOps, seconds);
+      return (allOps + allErrors == 0) ? 1.0 : (double) allErrors / (allOps + allErrors);
+   }//end report
+
+   private static void printLine (String name, long[] sorted, int errors, double seconds) {
+      double sum = 0;
+      for (long x : sorted)
+         sum += x;
+      System.out.format("%-10s %9d %7d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f\n",
+                        name, sorted.length, errors, sorted.length / seconds,
+                        (sorted.length == 0) ? 0.0 : sum / sorted.length / 1e6,
+                        percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6,
+                        percentile(sorted, 0.999) / 1e6,
+                        (sorted.length == 0) ? 0.0 : sorted[sorted.length - 1] / 1e6);
+   }//end printLine
+
+   // nearest rank percentile of an ascending array
+   static long percentile (long[] sorted, double p) {
+      if (sorted.length == 0)
+         return 0;
+      int rank = (int) Math.ceil(p * sorted.length);
+      return sorted[Math.min(sorted.length, Math.max(1, rank)) - 1];
+   }//end percentile
+
+   public static void main (String[] args) throws Exception {
+      if (args.length != 3) {
+         System.err.println("Usage: java [-classpath <classpath>] WorkloadDriver <dbname> <port> <user>");
+         return;
+      }
+      int clients = Integer.getInteger("profnetwork.workload.clients", 32);
+      if (System.getProperty("profnetwork.pool.max") == null)
+         System.setProperty("profnetwork.pool.max", Integer.toString(clients));
+      Class.forName("org.postgresql.Driver");
+      ProfNetwork esql = new ProfNetwork(args[0], args[1], args[2], "");
+      double maxErrorRate = Double.parseDouble(System.getProperty("profnetwork.workload.maxErrorRate", "0.01"));
+      double errorRate;
+      try {
+         if (Boolean.getBoolean("profnetwork.bloom.enabled"))
+            esql.buildUserFilter();
+         WorkloadDriver driver = new WorkloadDriver(esql, System.getProperty("profnetwork.workload.mix",
+            "login=30,search=25,profile=25,friends=10,messages=10"));
+         System.out.format("%d clients, %d users\n", clients, driver._users.length);
+         Recorder[] recorders = driver.run(clients,
+                                           Long.getLong("profnetwork.workload.warmupSec", 10L) * 1000,
+                                           Long.getLong("profnetwork.workload.durationSec", 60L) * 1000,
+                                           Long.getLong("profnetwork.workload.thinkMs", 0L),
+                                           Long.getLong("profnetwork.workload.seed", 42L));
+         errorRate = report(recorders);
+         System.out.println("Pool: " + esql.poolStats());
+         System.out.println("Profile cache: " + esql.profileCacheStats());
+      } finally {
+         esql.cleanup();
+      }//end try
+      if (errorRate > maxErrorRate) {
+         System.err.format("FAILED: %.2f%% of the operations failed (max %.2f%%)\n",
+                           100 * errorRate, 100 * maxErrorRate);
+         System.exit(1);
+      }
+   }//end main
+
+}//end WorkloadDriver
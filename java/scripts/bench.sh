@@ -0,0 +1,19 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+mkdir -p $DIR/../classes-bench
+
+# compile the program together with the benchmarks
+javac -d $DIR/../classes-bench $DIR/../src/*.java $DIR/../bench/*.java
+
+# micro benchmarks, no database needed:  ./bench.sh [name regex]
+# workload against the database:         ./bench.sh --workload
+if [ "$1" == "--workload" ]; then
+   java -Dprofnetwork.workload.clients=${CLIENTS:-32} \
+        -classpath $DIR/../classes-bench:$DIR/../lib/pg73jdbc3.jar WorkloadDriver $USER"_DB" $PGPORT $USER
+else
+   java -classpath $DIR/../classes-bench Bench $DIR/../../data "${1:-.*}"
+fi
@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+mkdir -p $DIR/../classes-check
+
+# compile the program together with the self-checks
+javac -d $DIR/../classes-check $DIR/../src/*.java $DIR/../test/*.java || exit 1
+
+# no database needed:  ./check.sh [name regex]
+java -ea -classpath $DIR/../classes-check SelfCheck $DIR/../../data "${1:-.*}"
@@ -7,7 +7,7 @@ export PATH=$JAVA_HOME/bin:$PATH
 mkdir -p $DIR/../classes
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/ProfNetwork.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
@@ -0,0 +1,139 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over strings. mightContain() never returns false for a
+ * string that was added, and returns true for a string that was not added
+ * with roughly the configured false positive probability.
+ *
+ * Bits live in an AtomicLongArray so add() and mightContain() can run
+ * concurrently without locking. Each string is hashed once into two 64 bit
+ * values and the k probe positions are derived from them by double hashing.
+ */
+public class BloomFilter {
+
+   private final AtomicLongArray _bits;
+   private final long _bitCount;
+   private final int _hashCount;
+
+   /**
+    * Creates a filter sized for the expected number of entries and false
+    * positive probability.
+    *
+    * @param expectedEntries number of strings the filter should hold
+    * @param fpp wanted false positive probability, e.g. 0.01
+    * @return the filter
+    */
+   public static BloomFilter create (long expectedEntries, double fpp) {
+      long n = Math.max(1, expectedEntries);
+      double p = Math.min(Math.max(fpp, 1e-9), 0.5);
+      long bits = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+      return new BloomFilter(bits, optimalHashCount(n, bits));
+   }//end create
+
+   /**
+    * @param expectedEntries number of strings the filter should hold
+    * @param bits the number of bits to use
+    * @return the best number of probes for that size
+    */
+   public static int optimalHashCount (long expectedEntries, long bits) {
+      return Math.max(1, (int) Math.round((double) bits / Math.max(1, expectedEntries) * Math.log(2)));
+   }//end optimalHashCount
+
+   /**
+    * @param bits the number of bits, rounded up to a multiple of 64
+    * @param hashCount the number of probes per string
+    */
+   public BloomFilter (long bits, int hashCount) {
+      long words = Math.max(1, (bits + 63) / 64);
+      if (words > Integer.MAX_VALUE)
+         throw new IllegalArgumentException("Bloom filter too large: " + bits + " bits");
+      this._bits = new AtomicLongArray((int) words);
+      this._bitCount = words * 64;
+      this._hashCount = Math.max(1, hashCount);
+   }//end BloomFilter
+
+   /**
+    * @param value the string to add
+    */
+   public void add (String value) {
+      long h1 = hash(value, 0x9E3779B97F4A7C15L);
+      long h2 = hash(value, 0xC2B2AE3D27D4EB4FL) | 1;
+      for (int i = 0; i < this._hashCount; ++i) {
+         long bit = ((h1 + i * h2) & Long.MAX_VALUE) % this._bitCount;
+         int word = (int) (bit >>> 6);
+         long mask = 1L << bit;
+         while (true) {
+            long old = this._bits.get(word);
+            if ((old & mask) != 0 || this._bits.compareAndSet(word, old, old | mask))
+               break;
+         }
+      }//end for
+   }//end add
+
+   /**
+    * @param value the string to look for
+    * @return false when the string was definitely never added
+    */
+   public boolean mightContain (String value) {
+      long h1 = hash(value, 0x9E3779B97F4A7C15L);
+      long h2 = hash(value, 0xC2B2AE3D27D4EB4FL) | 1;
+      for (int i = 0; i < this._hashCount; ++i) {
+         long bit = ((h1 + i * h2) & Long.MAX_VALUE) % this._bitCount;
+         if ((this._bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+            return false;
+      }
+      return true;
+   }//end mightContain
+
+   /**
+    * @return the size of the bit array in bytes
+    */
+   public long sizeInBytes () {
+      return this._bitCount / 8;
+   }
+
+   /**
+    * @return the number of probes per string
+    */
+   public int getHashCount () {
+      return this._hashCount;
+   }
+
+   /**
+    * @param entries the number of strings added so far
+    * @return the expected false positive probability at that fill level
+    */
+   public double expectedFpp (long entries) {
+      return Math.pow(1 - Math.exp(-(double) this._hashCount * entries / this._bitCount), this._hashCount);
+   }//end expectedFpp
+
+   // 64 bit multiply-xorshift hash of the chars of s
+   private static long hash (String s, long seed) {
+      long h = seed ^ (s.length() * 0xFF51AFD7ED558CCDL);
+      for (int i = 0; i < s.length(); ++i) {
+         h ^= s.charAt(i);
+         h *= 0x100000001B3L;
+         h ^= h >>> 29;
+      }
+      h ^= h >>> 33;
+      h *= 0xFF51AFD7ED558CCDL;
+      h ^= h >>> 33;
+      h *= 0xC4CEB9FE1A85EC53L;
+      h ^= h >>> 33;
+      return h;
+   }//end hash
+
+}//end BloomFilter
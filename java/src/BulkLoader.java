@@ -0,0 +1,554 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parallel importer for the CSV snapshots in data/. Each file is memory
+ * mapped in windows and cut into newline aligned chunks by one reader
+ * thread. Worker threads, each with its own pooled connection, parse,
+ * normalize and validate the rows of a chunk and insert them with JDBC
+ * batches, committing after every batch.
+ *
+ * Normalization trims every field, turns empty fields into NULL and accepts
+ * dates written as "1949 07 27", "1949/07/27" or "1949-07-27". Rows with the
+ * wrong number of fields or an invalid date are rejected before they reach
+ * the database. When a batch fails (duplicate key, missing foreign key or
+ * unknown userId) it is rolled back and replayed row by row so only the
+ * offending rows are rejected.
+ *
+ * MESSAGE and CONNECTION_USR name users by userId in the files but store
+ * their uid, which the insert looks up in USR, so USR is loaded first.
+ *
+ * The friend_edges trigger (see friend_edges.sql) is disabled while
+ * CONNECTION_USR loads: parallel batches would otherwise update the same
+ * USR.friendCount rows in different orders and deadlock. FRIEND and the
+ * counts are rebuilt from CONNECTION_USR afterwards, as friend_edges.sql
+ * does, and the trigger is enabled again in the same transaction.
+ */
+public class BulkLoader {
+
+   // size of a chunk handed to a worker
+   private static final int CHUNK_BYTES = 1 << 20;
+   // rejected rows printed to stderr per table before going quiet
+   private static final int MAX_REPORTED_REJECTS = 10;
+
+   /**
+    * Column layout of one table and the CSV file holding its rows.
+    */
+   static final class TableSpec {
+      final String table;
+      final String file;
+      final String[] columns;
+      // SQL type casts applied to the bound value, null for plain text,
+      // "uid" for a userId stored as the user's surrogate key
+      final String[] types;
+
+      TableSpec (String table, String file, String[] columns, String[] types) {
+         this.table = table;
+         this.file = file;
+         this.columns = columns;
+         this.types = types;
+      }
+
+      String insertSql () {
+         StringBuilder sb = new StringBuilder("INSERT INTO ").append(this.table).append(" (");
+         for (int i = 0; i < this.columns.length; ++i)
+            sb.append(i == 0 ? "" : ", ").append(this.columns[i]);
+         sb.append(") VALUES (");
+         for (int i = 0; i < this.columns.length; ++i) {
+            sb.append(i == 0 ? "" : ", ");
+            if (this.types[i] == null)
+               sb.append('?');
+            else if ("uid".equals(this.types[i]))
+               sb.append(ProfNetwork.UID);
+            else
+               sb.append("CAST(? AS ").append(this.types[i]).append(')');
+         }
+         return sb.append(')').toString();
+      }
+   }//end TableSpec
+
+   // rebuilds FRIEND and USR.friendCount from CONNECTION_USR, then re-enables
+   // the trigger; the lock keeps accepts out until the trigger is back
+   private static final String[] REBUILD_FRIEND_EDGES = {
+      "LOCK TABLE CONNECTION_USR IN SHARE ROW EXCLUSIVE MODE",
+      "INSERT INTO FRIEND (userUid, friendUid)" +
+      " SELECT userUid, connectionUid FROM CONNECTION_USR WHERE status = 'Accept'" +
+      " UNION SELECT connectionUid, userUid FROM CONNECTION_USR WHERE status = 'Accept'" +
+      " ON CONFLICT DO NOTHING",
+      // accepts withdrawn by other clients during the load
+      "DELETE FROM FRIEND f WHERE NOT EXISTS (SELECT 1 FROM CONNECTION_USR c WHERE c.status = 'Accept'" +
+      " AND ((c.userUid = f.userUid AND c.connectionUid = f.friendUid)" +
+      " OR (c.userUid = f.friendUid AND c.connectionUid = f.userUid)))",
+      "UPDATE USR SET friendCount = C.friends" +
+      " FROM (SELECT u.uid, COUNT(f.friendUid) AS friends FROM USR u LEFT JOIN FRIEND f ON f.userUid = u.uid GROUP BY u.uid) C" +
+      " WHERE USR.uid = C.uid AND USR.friendCount <> C.friends",
+      "ALTER TABLE CONNECTION_USR ENABLE TRIGGER friend_edges",
+   };
+
+   // tables in foreign key order, matching load_data.sql
+   static final TableSpec[] TABLES = {
+      new TableSpec("USR", "data_USR.csv",
+         new String[] { "userId", "password", "email", "name", "dateOfBirth" },
+         new String[] { null, null, null, null, "date" }),
+      new TableSpec("WORK_EXPR", "data_WORK_EXPR.csv",
+         new String[] { "userId", "company", "role", "location", "startDate", "endDate" },
+         new String[] { null, null, null, null, "date", "date" }),
+      new TableSpec("EDUCATIONAL_DETAILS", "data_EDUCATIONAL_DETAILS.csv",
+         new String[] { "userId", "instituitionName", "major", "degree", "startdate", "enddate" },
+         new String[] { null, null, null, null, "date", "date" }),
+      new TableSpec("MESSAGE", "data_MESSAGE.csv",
+         new String[] { "msgId", "senderUid", "receiverUid", "contents", "sendTime", "deleteStatus", "status" },
+         new String[] { "integer", "uid", "uid", null, "timestamp", "smallint", "message_status" }),
+      new TableSpec("CONNECTION_USR", "data_CONNECTION_USR.csv",
+         new String[] { "userUid", "connectionUid", "status" },
+         new String[] { "uid", "uid", "connection_status" }),
+   };
+
+   private final ConnectionPool _pool;
+   private final int _workers;
+   private final int _batchSize;
+
+   /**
+    * @param pool the pool workers borrow their connections from
+    * @param workers number of parse and insert threads, capped at the pool size
+    * @param batchSize rows per JDBC batch and per transaction
+    */
+   public BulkLoader (ConnectionPool pool, int workers, int batchSize) {
+      this._pool = pool;
+      this._workers = Math.max(1, Math.min(workers, pool.getMaxSize()));
+      this._batchSize = Math.max(1, batchSize);
+   }//end BulkLoader
+
+   /**
+    * Loads every known table from a data directory. Missing files are
+    * skipped with a warning.
+    *
+    * @param dataDir the directory holding the data_*.csv files
+    * @throws java.io.IOException when a file cannot be read
+    * @throws java.sql.SQLException when the database cannot be reached
+    */
+   public void loadAll (File dataDir) throws IOException, SQLException {
+      long start = System.nanoTime();
+      long total = 0, rejected = 0;
+      boolean loadedMessages = false;
+      for (TableSpec spec : TABLES) {
+         File file = new File(dataDir, spec.file);
+         if (!file.isFile()) {
+            System.err.println("Skipping " + spec.table + ": " + file.getPath() + " not found");
+            continue;
+         }
+         boolean edges = spec.table.equals("CONNECTION_USR") && disableFriendEdges();
+         Stats stats;
+         try {
+            stats = load(spec, file);
+         } finally {
+            if (edges)
+               execute(REBUILD_FRIEND_EDGES);
+         }
+         total += stats.inserted.get();
+         rejected += stats.rejected.get();
+         loadedMessages |= spec.table.equals("MESSAGE");
+      }//end for
+
+      if (loadedMessages) {
+         // keep generated ids clear of the imported ones
+         Connection conn = this._pool.borrow();
+         try {
+            Statement stmt = conn.createStatement();
+            try {
+               stmt.executeQuery("SELECT setval('msg_id_seq', (SELECT COALESCE(MAX(msgId), 0) + 1 FROM MESSAGE), false)").close();
+            } finally {
+               stmt.close();
+            }
+         } finally {
+            this._pool.release(conn);
+         }
+      }//end if
+
+      double secs = (System.nanoTime() - start) / 1e9;
+      System.out.format("Loaded %d rows (%d rejected) in %.1fs, %.0f rows/s\n",
+                        total, rejected, secs, total / Math.max(secs, 1e-9));
+   }//end loadAll
+
+   // disables the friend_edges trigger, returns false when there is none
+   private boolean disableFriendEdges () throws SQLException {
+      Connection conn = this._pool.borrow();
+      try {
+         Statement stmt = conn.createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery(
+               "SELECT 1 FROM pg_trigger WHERE tgname = 'friend_edges' AND tgrelid = 'connection_usr'::regclass");
+            boolean exists = rs.next();
+            rs.close();
+            if (exists)
+               stmt.executeUpdate("ALTER TABLE CONNECTION_USR DISABLE TRIGGER friend_edges");
+            return exists;
+         } finally {
+            stmt.close();
+         }
+      } finally {
+         this._pool.release(conn);
+      }
+   }//end disableFriendEdges
+
+   // runs statements in one transaction
+   private void execute (String[] sql) throws SQLException {
+      Connection conn = this._pool.borrow();
+      try {
+         Deadline.unbounded(conn);
+         conn.setAutoCommit(false);
+         Statement stmt = conn.createStatement();
+         try {
+            for (String s : sql)
+               stmt.executeUpdate(s);
+         } finally {
+            stmt.close();
+         }
+         conn.commit();
+      } finally {
+         // rolls back when a statement failed
+         this._pool.release(conn);
+      }
+   }//end execute
+
+   /**
+    * Loads one CSV file into its table.
+    *
+    * @param spec the table layout
+    * @param file the CSV file
+    * @return the row counters of the load
+    * @throws java.io.IOException when the file cannot be read
+    * @throws java.sql.SQLException when the database cannot be reached
+    */
+   public Stats load (final TableSpec spec, File file) throws IOException, SQLException {
+      final Stats stats = new Stats();
+      final BlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<ByteBuffer>(this._workers * 4);
+      final List<Thread> threads = new ArrayList<Thread>();
+      final SQLException[] failure = new SQLException[1];
+      long start = System.nanoTime();
+
+      for (int i = 0; i < this._workers; ++i) {
+         Thread t = new Thread(spec.table + "-loader-" + i) {
+            public void run () {
+               try {
+                  work(spec, chunks, stats);
+               } catch (SQLException e) {
+                  synchronized (failure) {
+                     failure[0] = e;
+                  }
+                  // keep draining so the reader never blocks on a dead worker
+                  drain(chunks);
+               }
+            }
+         };
+         t.start();
+         threads.add(t);
+      }//end for
+
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         FileChannel channel = raf.getChannel();
+         long size = channel.size();
+         long pos = 0;
+         long lastReport = System.nanoTime();
+         while (pos < size) {
+            long len = Math.min(CHUNK_BYTES, size - pos);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+            int end = (int) len;
+            if (pos + len < size) {
+               // cut the chunk after its last complete line
+               while (end > 0 && window.get(end - 1) != '\n')
+                  --end;
+               if (end == 0)
+                  throw new IOException("Line longer than " + CHUNK_BYTES + " bytes in " + file);
+            }
+            window.limit(end);
+            put(chunks, window);
+            pos += end;
+            if (System.nanoTime() - lastReport > 5000000000L) {
+               report(spec.table, stats, start);
+               lastReport = System.nanoTime();
+            }
+         }//end while
+      } finally {
+         for (int i = 0; i < threads.size(); ++i)
+            put(chunks, ByteBuffer.allocate(0));
+         raf.close();
+         for (Thread t : threads) {
+            try {
+               t.join();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      }//end try
+
+      if (failure[0] != null)
+         throw failure[0];
+      report(spec.table, stats, start);
+      return stats;
+   }//end load
+
+   // worker loop: parse chunks until the empty end marker arrives
+   private void work (TableSpec spec, BlockingQueue<ByteBuffer> chunks, Stats stats) throws SQLException {
+      Connection conn = this._pool.borrow();
+      try {
+         // batches may run longer than a deadline another user of the pool set
+         Deadline.unbounded(conn);
+         conn.setAutoCommit(false);
+         PreparedStatement ps = conn.prepareStatement(spec.insertSql());
+         try {
+            List<String[]> batch = new ArrayList<String[]>(this._batchSize);
+            byte[] line = new byte[256];
+            while (true) {
+               ByteBuffer chunk = take(chunks);
+               if (!chunk.hasRemaining())
+                  break;
+               int len = 0;
+               while (chunk.hasRemaining()) {
+                  byte b = chunk.get();
+                  if (b != '\n') {
+                     if (len == line.length)
+                        line = Arrays.copyOf(line, len * 2);
+                     line[len++] = b;
+                     if (chunk.hasRemaining())
+                        continue;
+                  }
+                  // a complete line, or the last line of a file without a trailing newline
+                  if (len > 0 && line[len - 1] == '\r')
+                     --len;
+                  if (len > 0) {
+                     String text = new String(line, 0, len, StandardCharsets.UTF_8);
+                     String[] row = normalize(spec, text);
+                     stats.read.incrementAndGet();
+                     if (row == null) {
+                        reject(spec, stats, text, "malformed row");
+                     } else {
+                        batch.add(row);
+                        if (batch.size() == this._batchSize)
+                           flush(spec, conn, ps, batch, stats);
+                     }
+                  }
+                  len = 0;
+               }//end while
+            }//end while
+            flush(spec, conn, ps, batch, stats);
+         } finally {
+            ps.close();
+         }
+      } finally {
+         this._pool.release(conn);
+      }
+   }//end work
+
+   // inserts a batch in one transaction, replaying it row by row if it fails
+   private void flush (TableSpec spec, Connection conn, PreparedStatement ps,
+                       List<String[]> batch, Stats stats) throws SQLException {
+      if (batch.isEmpty())
+         return;
+      try {
+         for (String[] row : batch) {
+            bind(ps, row);
+            ps.addBatch();
+         }
+         ps.executeBatch();
+         conn.commit();
+         stats.inserted.addAndGet(batch.size());
+      } catch (SQLException e) {
+         conn.rollback();
+         ps.clearBatch();
+         for (String[] row : batch) {
+            try {
+               bind(ps, row);
+               ps.executeUpdate();
+               conn.commit();
+               stats.inserted.incrementAndGet();
+            } catch (SQLException rowError) {
+               conn.rollback();
+               reject(spec, stats, join(row), rowError.getMessage());
+            }
+         }//end for
+      }//end try
+      batch.clear();
+   }//end flush
+
+   private static void bind (PreparedStatement ps, String[] row) throws SQLException {
+      for (int i = 0; i < row.length; ++i) {
+         if (row[i] == null)
+            ps.setNull(i + 1, Types.VARCHAR);
+         else
+            ps.setString(i + 1, row[i]);
+      }
+   }//end bind
+
+   /**
+    * Splits, trims and validates one CSV line.
+    *
+    * @param spec the table layout
+    * @param line the raw line without its line terminator
+    * @return the normalized fields, or null when the row is invalid
+    */
+   static String[] normalize (TableSpec spec, String line) {
+      String[] fields = splitCsv(line, spec.columns.length);
+      if (fields == null)
+         return null;
+      for (int i = 0; i < fields.length; ++i) {
+         String f = fields[i].trim();
+         if (f.length() == 0) {
+            fields[i] = null;
+            continue;
+         }
+         if ("date".equals(spec.types[i])) {
+            f = normalizeDate(f);
+            if (f == null)
+               return null;
+         } else if ("integer".equals(spec.types[i]) || "smallint".equals(spec.types[i])) {
+            for (int c = (f.charAt(0) == '-') ? 1 : 0; c < f.length(); ++c)
+               if (!Character.isDigit(f.charAt(c)))
+                  return null;
+         }
+         fields[i] = f;
+      }//end for
+      return fields;
+   }//end normalize
+
+   // "1949 07 27", "1949/07/27" and "1949-07-27" become "1949-07-27"
+   static String normalizeDate (String s) {
+      String[] parts = s.split("[ /-]+");
+      if (parts.length != 3)
+         return null;
+      try {
+         int y = Integer.parseInt(parts[0]);
+         int m = Integer.parseInt(parts[1]);
+         int d = Integer.parseInt(parts[2]);
+         if (y < 1 || y > 9999 || m < 1 || m > 12 || d < 1 || d > 31)
+            return null;
+         return String.format("%04d-%02d-%02d", y, m, d);
+      } catch (NumberFormatException e) {
+         return null;
+      }
+   }//end normalizeDate
+
+   // splits a CSV line with optional double quoted fields, null unless it has exactly n fields
+   static String[] splitCsv (String line, int n) {
+      String[] fields = new String[n];
+      int count = 0;
+      StringBuilder sb = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); ++i) {
+         char c = line.charAt(i);
+         if (quoted) {
+            if (c == '"') {
+               if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                  sb.append('"');
+                  ++i;
+               } else {
+                  quoted = false;
+               }
+            } else {
+               sb.append(c);
+            }
+         } else if (c == '"') {
+            quoted = true;
+         } else if (c == ',') {
+            if (count == n)
+               return null;
+            fields[count++] = sb.toString();
+            sb.setLength(0);
+         } else {
+            sb.append(c);
+         }
+      }//end for
+      if (quoted || count != n - 1)
+         return null;
+      fields[count] = sb.toString();
+      return fields;
+   }//end splitCsv
+
+   private static void reject (TableSpec spec, Stats stats, String row, String reason) {
+      if (stats.rejected.incrementAndGet() <= MAX_REPORTED_REJECTS)
+         System.err.println("Rejected " + spec.table + " row [" + row + "]: " + reason);
+   }//end reject
+
+   private static void report (String table, Stats stats, long start) {
+      double secs = (System.nanoTime() - start) / 1e9;
+      System.out.format("%s: %d read, %d inserted, %d rejected, %.1fs, %.0f rows/s\n",
+                        table, stats.read.get(), stats.inserted.get(), stats.rejected.get(),
+                        secs, stats.inserted.get() / Math.max(secs, 1e-9));
+   }//end report
+
+   private static String join (String[] row) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < row.length; ++i)
+         sb.append(i == 0 ? "" : ",").append(row[i] == null ? "" : row[i]);
+      return sb.toString();
+   }//end join
+
+   private static void put (BlockingQueue<ByteBuffer> queue, ByteBuffer chunk) throws IOException {
+      try {
+         queue.put(chunk);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while loading");
+      }
+   }//end put
+
+   private static ByteBuffer take (BlockingQueue<ByteBuffer> queue) throws SQLException {
+      try {
+         return queue.take();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while loading");
+      }
+   }//end take
+
+   private static void drain (BlockingQueue<ByteBuffer> queue) {
+      try {
+         while (queue.take().hasRemaining()) {
+            // discard
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }//end drain
+
+   /**
+    * Row counters of one table load.
+    */
+   public static final class Stats {
+      public final AtomicLong read = new AtomicLong();
+      public final AtomicLong inserted = new AtomicLong();
+      public final AtomicLong rejected = new AtomicLong();
+   }//end Stats
+
+}//end BulkLoader
@@ -0,0 +1,406 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * A small bounded pool of physical database connections. Connections are
+ * handed out with borrow() and must always be given back with release() (or
+ * invalidate() when the caller knows the connection is broken).
+ *
+ * Idle connections are validated on borrow when they have been idle for a
+ * while, connections above the minimum size are closed after sitting idle
+ * for too long, and borrowers wait at most borrowTimeoutMs for a free slot.
+ * Each connection carries its own StatementCache which lives and dies with it.
+ */
+public class ConnectionPool {
+
+   // connection settings used to open new physical connections
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+
+   // sizing and timing configuration
+   private final int _minSize;
+   private final int _maxSize;
+   private final long _borrowTimeoutMs;
+   private final long _idleTimeoutMs;
+   private final long _validateAfterMs;
+   private final int _statementCacheSize;
+
+   // idle connections, most recently used first
+   private final Deque<IdleConnection> _idle = new ArrayDeque<IdleConnection>();
+   // number of open physical connections (idle + borrowed + being opened)
+   private int _total = 0;
+   // prepared statement cache of every open connection
+   private final IdentityHashMap<Connection, StatementCache> _caches =
+      new IdentityHashMap<Connection, StatementCache>();
+   private boolean _closed = false;
+
+   // metrics, guarded by this
+   private long _borrowCount = 0;
+   private long _timeoutCount = 0;
+   private long _createdCount = 0;
+   private long _evictedCount = 0;
+   private long _invalidCount = 0;
+   private long _totalWaitNanos = 0;
+   private long _maxWaitNanos = 0;
+
+   private final Timer _evictor;
+
+   /**
+    * Creates a new pool and opens minSize connections up front.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize number of connections kept open even when idle
+    * @param maxSize upper bound on open connections
+    * @param borrowTimeoutMs how long borrow() waits for a free connection
+    * @param idleTimeoutMs idle time after which surplus connections are closed
+    * @param validateAfterMs idle time after which a connection is validated on borrow
+    * @param statementCacheSize number of prepared statements cached per connection
+    * @throws java.sql.SQLException when the initial connections cannot be opened
+    */
+   public ConnectionPool (String url, String user, String passwd,
+                          int minSize, int maxSize, long borrowTimeoutMs,
+                          long idleTimeoutMs, long validateAfterMs,
+                          int statementCacheSize) throws SQLException {
+      if (maxSize < 1 || minSize < 0 || minSize > maxSize)
+         throw new IllegalArgumentException(
+            String.format("Invalid pool size min=%d max=%d", minSize, maxSize));
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._minSize = minSize;
+      this._maxSize = maxSize;
+      this._borrowTimeoutMs = borrowTimeoutMs;
+      this._idleTimeoutMs = idleTimeoutMs;
+      this._validateAfterMs = validateAfterMs;
+      this._statementCacheSize = statementCacheSize;
+
+      // open the minimum number of connections so the first users don't pay for it
+      try {
+         for (int i = 0; i < minSize; ++i) {
+            Connection c = open();
+            synchronized (this) {
+               ++this._total;
+               this._idle.addFirst(new IdleConnection(c));
+            }
+         }//end for
+      } catch (SQLException e) {
+         // nobody gets a reference to this pool, so nobody else can close them
+         for (IdleConnection ic : this._idle)
+            closeConnection(ic.connection);
+         throw e;
+      }//end try
+
+      this._evictor = new Timer("ConnectionPool-evictor", true);
+      if (idleTimeoutMs > 0) {
+         long period = Math.max(1000, idleTimeoutMs / 2);
+         this._evictor.schedule(new TimerTask() {
+            public void run() { evictIdle(); }
+         }, period, period);
+      }//end if
+   }//end ConnectionPool
+
+   /**
+    * Borrows a connection from the pool, opening a new one if none is idle
+    * and the pool is below its maximum size.
+    *
+    * @return a validated connection in auto-commit mode
+    * @throws PoolExhaustedException when no connection became available in time
+    * @throws java.sql.SQLException when the pool is closed or a connection cannot be opened
+    */
+   public Connection borrow () throws SQLException {
+      return borrow(this._borrowTimeoutMs);
+   }//end borrow
+
+   /**
+    * Borrows a connection like borrow(), waiting at most maxWaitMs.
+    *
+    * @param maxWaitMs the longest wait, capped at the borrow timeout of the pool
+    * @return a validated connection in auto-commit mode
+    * @throws PoolExhaustedException when no connection became available in time
+    * @throws java.sql.SQLException when the pool is closed or a connection cannot be opened
+    */
+   public Connection borrow (long maxWaitMs) throws SQLException {
+      long waitMs = Math.max(0, Math.min(maxWaitMs, this._borrowTimeoutMs));
+      long start = System.nanoTime();
+      long deadline = start + waitMs * 1000000L;
+      while (true) {
+         IdleConnection candidate = null;
+         boolean mayOpen = false;
+         synchronized (this) {
+            while (true) {
+               if (this._closed)
+                  throw new SQLException("Connection pool is closed");
+               if (!this._idle.isEmpty()) {
+                  candidate = this._idle.removeFirst();
+                  break;
+               }
+               if (this._total < this._maxSize) {
+                  ++this._total;
+                  mayOpen = true;
+                  break;
+               }
+               long remaining = deadline - System.nanoTime();
+               if (remaining <= 0) {
+                  ++this._timeoutCount;
+                  recordWait(System.nanoTime() - start);
+                  throw new PoolExhaustedException(waitMs, this._maxSize);
+               }
+               try {
+                  this.wait(remaining / 1000000L + 1);
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  throw new SQLException("Interrupted while waiting for a database connection");
+               }//end try
+            }//end while
+         }//end synchronized
+
+         if (mayOpen) {
+            Connection c;
+            try {
+               c = open();
+            } catch (SQLException e) {
+               synchronized (this) {
+                  --this._total;
+                  this.notifyAll();
+               }
+               throw e;
+            }//end try
+            synchronized (this) {
+               ++this._borrowCount;
+               recordWait(System.nanoTime() - start);
+            }
+            return c;
+         }//end if
+
+         // validation happens outside of the lock since it is a round trip
+         if (isUsable(candidate)) {
+            synchronized (this) {
+               ++this._borrowCount;
+               recordWait(System.nanoTime() - start);
+            }
+            return candidate.connection;
+         }
+         discard(candidate.connection);
+      }//end while
+   }//end borrow
+
+   /**
+    * Returns a borrowed connection to the pool. Connections left in the
+    * middle of a transaction are rolled back and put back in auto-commit mode.
+    *
+    * @param c the connection obtained from borrow()
+    */
+   public void release (Connection c) {
+      if (c == null)
+         return;
+      try {
+         // a late cancel request would hit the next borrower's statement
+         if (c.isClosed() || Deadline.cancelSent(c)) {
+            discard(c);
+            return;
+         }
+         if (!c.getAutoCommit()) {
+            c.rollback();
+            c.setAutoCommit(true);
+         }
+      } catch (SQLException e) {
+         discard(c);
+         return;
+      }//end try
+
+      boolean closeIt = false;
+      synchronized (this) {
+         if (this._closed) {
+            --this._total;
+            closeIt = true;
+         } else {
+            this._idle.addFirst(new IdleConnection(c));
+         }
+         this.notifyAll();
+      }//end synchronized
+      if (closeIt)
+         closeConnection(c);
+   }//end release
+
+   /**
+    * Returns the prepared statement cache of a borrowed connection.
+    *
+    * @param c the connection obtained from borrow()
+    * @return the cache of statements prepared on that connection
+    */
+   public synchronized StatementCache statementCache (Connection c) {
+      StatementCache cache = this._caches.get(c);
+      if (cache == null) {
+         cache = new StatementCache(c, this._statementCacheSize);
+         this._caches.put(c, cache);
+      }
+      return cache;
+   }//end statementCache
+
+   /**
+    * Drops a borrowed connection that is known to be broken instead of
+    * returning it to the pool.
+    *
+    * @param c the connection obtained from borrow()
+    */
+   public void invalidate (Connection c) {
+      if (c != null)
+         discard(c);
+   }//end invalidate
+
+   /**
+    * Method to close every idle connection and refuse further borrows.
+    * Borrowed connections are closed as they are released.
+    */
+   public void close () {
+      this._evictor.cancel();
+      Deque<IdleConnection> toClose;
+      synchronized (this) {
+         this._closed = true;
+         toClose = new ArrayDeque<IdleConnection>(this._idle);
+         this._total -= this._idle.size();
+         this._idle.clear();
+         this.notifyAll();
+      }//end synchronized
+      for (IdleConnection ic : toClose)
+         closeConnection(ic.connection);
+   }//end close
+
+   /**
+    * @return a one line summary of the pool state and borrow metrics
+    */
+   public synchronized String stats () {
+      long hits = 0, misses = 0;
+      for (StatementCache cache : this._caches.values()) {
+         hits += cache.getHits();
+         misses += cache.getMisses();
+      }
+      double avgWaitMs = (this._borrowCount + this._timeoutCount) == 0 ? 0.0 :
+         this._totalWaitNanos / 1e6 / (this._borrowCount + this._timeoutCount);
+      return String.format(
+         "open=%d idle=%d max=%d borrows=%d timeouts=%d created=%d evicted=%d invalid=%d avgWait=%.3fms maxWait=%.3fms stmtHits=%d stmtMisses=%d",
+         this._total, this._idle.size(), this._maxSize, this._borrowCount, this._timeoutCount,
+         this._createdCount, this._evictedCount, this._invalidCount, avgWaitMs, this._maxWaitNanos / 1e6, hits, misses);
+   }//end stats
+
+   public synchronized long getBorrowCount () { return this._borrowCount; }
+   public synchronized long getTimeoutCount () { return this._timeoutCount; }
+   public synchronized int getOpenCount () { return this._total; }
+   public synchronized int getIdleCount () { return this._idle.size(); }
+   public synchronized int getActiveCount () { return this._total - this._idle.size(); }
+   public int getMaxSize () { return this._maxSize; }
+
+   // closes connections which sat idle for longer than the idle timeout,
+   // never going below the minimum pool size
+   private void evictIdle () {
+      long cutoff = System.currentTimeMillis() - this._idleTimeoutMs;
+      Deque<IdleConnection> evicted = new ArrayDeque<IdleConnection>();
+      synchronized (this) {
+         // the least recently used connections are at the tail
+         Iterator<IdleConnection> it = this._idle.descendingIterator();
+         while (it.hasNext() && this._total > this._minSize) {
+            IdleConnection ic = it.next();
+            if (ic.idleSince > cutoff)
+               break;
+            it.remove();
+            --this._total;
+            ++this._evictedCount;
+            evicted.add(ic);
+         }//end while
+      }//end synchronized
+      for (IdleConnection ic : evicted)
+         closeConnection(ic.connection);
+   }//end evictIdle
+
+   private boolean isUsable (IdleConnection ic) {
+      try {
+         if (ic.connection.isClosed())
+            return false;
+         if (System.currentTimeMillis() - ic.idleSince < this._validateAfterMs)
+            return true;
+         Statement stmt = ic.connection.createStatement();
+         try {
+            stmt.executeQuery("SELECT 1").close();
+         } finally {
+            stmt.close();
+         }
+         return true;
+      } catch (SQLException e) {
+         return false;
+      }//end try
+   }//end isUsable
+
+   private void discard (Connection c) {
+      synchronized (this) {
+         --this._total;
+         ++this._invalidCount;
+         this.notifyAll();
+      }
+      closeConnection(c);
+   }//end discard
+
+   private Connection open () throws SQLException {
+      Connection c = DriverManager.getConnection(this._url, this._user, this._passwd);
+      synchronized (this) {
+         ++this._createdCount;
+      }
+      return c;
+   }//end open
+
+   private void recordWait (long nanos) {
+      this._totalWaitNanos += nanos;
+      if (nanos > this._maxWaitNanos)
+         this._maxWaitNanos = nanos;
+   }//end recordWait
+
+   // closes the cached statements of a connection and then the connection itself
+   private void closeConnection (Connection c) {
+      StatementCache cache;
+      synchronized (this) {
+         cache = this._caches.remove(c);
+      }
+      if (cache != null)
+         cache.close();
+      try {
+         c.close();
+      } catch (SQLException e) {
+         // ignored.
+      }//end try
+   }//end closeConnection
+
+   // an idle connection together with the time it was returned to the pool
+   private static final class IdleConnection {
+      final Connection connection;
+      final long idleSince;
+
+      IdleConnection (Connection connection) {
+         this.connection = connection;
+         this.idleSince = System.currentTimeMillis();
+      }
+   }//end IdleConnection
+
+}//end ConnectionPool
@@ -0,0 +1,380 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A latency budget for one operation. A deadline is installed on the
+ * calling thread with enter, or passed to the deadline-first overloads of
+ * the query methods. Every statement that ProfNetwork runs on that thread
+ * is then bounded:
+ * - a statement is not started once the deadline has passed;
+ * - Statement.setQueryTimeout is set to the remaining time, rounded up to
+ *   whole seconds (the pg73 driver ignores it);
+ * - statement_timeout is set on the server as a backstop, with SET LOCAL
+ *   inside a transaction and otherwise for the session, where a value up
+ *   to twice the remaining time is kept to save round trips;
+ * - a shared timer thread calls Statement.cancel() at the exact deadline.
+ * A cancel reaches the server on its own connection and may arrive after
+ * the statement ended, so a connection whose statement was cancelled is
+ * not given out by the pool again (see cancelSent).
+ * Waits for a pooled connection or for a QueryFuture end at the deadline
+ * too. Async tasks inherit the deadline of the thread that submitted them.
+ *
+ * Failures past the deadline are thrown as QueryTimeoutException. Time a
+ * Session spends waiting for user input does not count against the
+ * deadline of the operation that reads it.
+ *
+ * Menu operations get the budget profnetwork.budget.<operation>Ms, or
+ * profnetwork.budgetMs (default 30000) when that is not set; 0 means no
+ * deadline.
+ */
+public final class Deadline {
+
+   private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+
+   // cancels statements running past their deadline
+   private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread (Runnable r) {
+         Thread t = new Thread(r, "Deadline-timer");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+   static {
+      // finished statements take their cancel task out of the queue
+      TIMER.setRemoveOnCancelPolicy(true);
+   }
+
+   // statement_timeout in ms last set for the session of each connection;
+   // connections not in here have the server default, taken to be 0
+   private static final Map<Connection, Long> SESSION_TIMEOUT =
+      Collections.synchronizedMap(new WeakHashMap<Connection, Long>());
+
+   // connections a cancel request was sent for
+   private static final Set<Connection> CANCEL_SENT =
+      Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Connection, Boolean>()));
+
+   private final String _operation;
+   private final long _budgetMs;
+   private final long _start;
+   // System.nanoTime() at which the budget runs out
+   private volatile long _at;
+
+   /**
+    * @param operation the name of the operation, may be null
+    * @param budgetMs the budget from now on, in ms
+    */
+   public Deadline (String operation, long budgetMs) {
+      this._operation = operation;
+      this._budgetMs = budgetMs;
+      this._start = System.nanoTime();
+      this._at = this._start + budgetMs * 1000000L;
+   }//end Deadline
+
+   /**
+    * @param budgetMs the budget from now on, in ms
+    * @return a deadline of no particular operation
+    */
+   public static Deadline after (long budgetMs) {
+      return new Deadline(null, budgetMs);
+   }//end after
+
+   /**
+    * @param operation the name of a menu operation, may be null
+    * @return a deadline with the configured budget of the operation, or
+    *         null when the operation is null or has no budget
+    */
+   public static Deadline forOperation (String operation) {
+      if (operation == null)
+         return null;
+      long budgetMs = Long.getLong("profnetwork.budget." + operation + "Ms",
+                                   Long.getLong("profnetwork.budgetMs", 30000L));
+      return (budgetMs > 0) ? new Deadline(operation, budgetMs) : null;
+   }//end forOperation
+
+   /**
+    * @return the time left in ms, rounded up; 0 or less once expired
+    */
+   public long remainingMs () {
+      long nanos = this._at - System.nanoTime();
+      return (nanos <= 0) ? nanos / 1000000L : (nanos + 999999L) / 1000000L;
+   }//end remainingMs
+
+   /**
+    * @return true once the budget has run out
+    */
+   public boolean expired () {
+      return this._at - System.nanoTime() <= 0;
+   }//end expired
+
+   /**
+    * @return the time counted against the budget so far, in ms
+    */
+   public long elapsedMs () {
+      return (this._budgetMs * 1000000L - (this._at - System.nanoTime())) / 1000000L;
+   }//end elapsedMs
+
+   /**
+    * @return the budget in ms
+    */
+   public long getBudgetMs () {
+      return this._budgetMs;
+   }
+
+   /**
+    * @return the operation name, or null
+    */
+   public String getOperation () {
+      return this._operation;
+   }
+
+   /**
+    * Method to move the deadline back by time that does not count against
+    * the budget, such as waiting for user input.
+    *
+    * @param nanos the time to add
+    */
+   void extend (long nanos) {
+      this._at += nanos;
+   }//end extend
+
+   /**
+    * @param template the SQL template that was running or waiting, may be null
+    * @param cause the error of the cancelled statement, may be null
+    * @return the error reporting that this deadline has passed
+    */
+   public QueryTimeoutException timeout (String template, Throwable cause) {
+      return new QueryTimeoutException(this._operation, template, this._budgetMs, elapsedMs(), cause);
+   }//end timeout
+
+   /**
+    * @return the deadline of the calling thread, or null
+    */
+   public static Deadline current () {
+      return CURRENT.get();
+   }//end current
+
+   /**
+    * Method to install a deadline on the calling thread. A deadline already
+    * installed stays when it is earlier, so nested budgets only tighten.
+    *
+    * @param deadline the deadline, or null to keep the current one
+    * @return the previous deadline, to be passed to restore
+    */
+   public static Deadline enter (Deadline deadline) {
+      Deadline previous = CURRENT.get();
+      if (deadline != null && (previous == null || deadline._at - previous._at < 0))
+         CURRENT.set(deadline);
+      return previous;
+   }//end enter
+
+   /**
+    * Method to run without a deadline, for work such as loading a cache
+    * that must not fail because of the operation that first needed it.
+    *
+    * @return the previous deadline, to be passed to restore
+    */
+   public static Deadline suspend () {
+      Deadline previous = CURRENT.get();
+      CURRENT.remove();
+      return previous;
+   }//end suspend
+
+   /**
+    * @param previous the value returned by enter or suspend
+    */
+   public static void restore (Deadline previous) {
+      if (previous == null)
+         CURRENT.remove();
+      else
+         CURRENT.set(previous);
+   }//end restore
+
+   /**
+    * Arms the deadline of the calling thread, and the cancellation of its
+    * QueryFuture, for a statement about to run. The returned guard must be
+    * closed once the statement finished, before its connection goes back to
+    * the pool.
+    *
+    * @param stmt the statement
+    * @param template the SQL template, for the timeout error
+    * @return the guard of the statement
+    * @throws java.sql.SQLException when the deadline has passed or the
+    *         future was cancelled already
+    */
+   static Guard watch (Statement stmt, String template) throws SQLException {
+      Deadline deadline = CURRENT.get();
+      QueryFuture.started(stmt);
+      Guard guard = new Guard(stmt, deadline, template);
+      if (deadline == null) {
+         backstop(stmt, 0);
+         return guard;
+      }
+      long ms = deadline.remainingMs();
+      if (ms <= 0) {
+         QueryFuture.finished();
+         throw deadline.timeout(template, null);
+      }
+      try {
+         stmt.setQueryTimeout((int) Math.min(Integer.MAX_VALUE, (ms + 999) / 1000));
+      } catch (SQLException e) {
+         // a driver without query timeouts; the timer still cancels
+      }
+      backstop(stmt, ms);
+      guard._cancel = TIMER.schedule(guard, ms, TimeUnit.MILLISECONDS);
+      return guard;
+   }//end watch
+
+   /**
+    * Method to clear the session statement_timeout a deadline may have left
+    * on a pooled connection, for work that runs without Deadline.watch.
+    *
+    * @param conn the connection
+    */
+   static void unbounded (Connection conn) {
+      Long applied = SESSION_TIMEOUT.get(conn);
+      if (applied != null && applied.longValue() != 0)
+         setTimeout(conn, "SET statement_timeout = 0", 0);
+   }//end unbounded
+
+   /**
+    * Method for the pool to check whether a cancel request was sent for a
+    * connection, which may then still cancel its next statement.
+    *
+    * @param conn the connection
+    * @return true when the connection should be closed instead of reused
+    */
+   static boolean cancelSent (Connection conn) {
+      return CANCEL_SENT.remove(conn);
+   }//end cancelSent
+
+   // sets statement_timeout to about ms on the server, or clears it for 0
+   private static void backstop (Statement stmt, long ms) {
+      Connection conn;
+      boolean inTransaction;
+      try {
+         conn = stmt.getConnection();
+         inTransaction = !conn.getAutoCommit();
+      } catch (SQLException e) {
+         return;
+      }//end try
+      if (inTransaction) {
+         // ends with the transaction
+         if (ms > 0)
+            setTimeout(conn, "SET LOCAL statement_timeout = " + ms, -1);
+         return;
+      }
+      Long applied = SESSION_TIMEOUT.get(conn);
+      long current = (applied == null) ? 0 : applied.longValue();
+      if ((ms <= 0) ? current == 0 : (current >= ms && current <= 2 * ms + 1000))
+         return;
+      long value = (ms <= 0) ? 0 : ms + Math.max(1000, ms / 2);
+      setTimeout(conn, "SET statement_timeout = " + value, value);
+   }//end backstop
+
+   // runs a SET, recording the session value unless it is negative
+   private static void setTimeout (Connection conn, String sql, long value) {
+      try {
+         Statement stmt = conn.createStatement();
+         try {
+            stmt.execute(sql);
+         } finally {
+            stmt.close();
+         }
+         if (value >= 0)
+            SESSION_TIMEOUT.put(conn, Long.valueOf(value));
+      } catch (SQLException e) {
+         // the timer still cancels; the session value is unknown now
+         SESSION_TIMEOUT.remove(conn);
+      }//end try
+   }//end setTimeout
+
+   /**
+    * The deadline of one running statement.
+    */
+   static final class Guard implements Runnable {
+      private final Statement _stmt;
+      private final Deadline _deadline;
+      private final String _template;
+      private ScheduledFuture<?> _cancel = null;
+      private boolean _closed = false;
+      private boolean _fired = false;
+
+      private Guard (Statement stmt, Deadline deadline, String template) {
+         this._stmt = stmt;
+         this._deadline = deadline;
+         this._template = template;
+      }
+
+      // runs on the timer thread at the deadline, never after close() started
+      public synchronized void run () {
+         if (this._closed)
+            return;
+         this._fired = true;
+         try {
+            CANCEL_SENT.add(this._stmt.getConnection());
+            this._stmt.cancel();
+         } catch (SQLException e) {
+            // the statement then runs until statement_timeout or completion
+         }
+      }//end run
+
+      /**
+       * @param e an error of the statement
+       * @return a QueryTimeoutException when the statement failed because the
+       *         deadline passed, otherwise e
+       */
+      SQLException translate (SQLException e) {
+         if (this._deadline == null || e instanceof QueryTimeoutException)
+            return e;
+         synchronized (this) {
+            if (!this._fired && !this._deadline.expired())
+               return e;
+         }
+         return this._deadline.timeout(this._template, e);
+      }//end translate
+
+      /**
+       * Method to disarm the guard once the statement finished. A cancel
+       * already being sent is waited for, so none is sent once this
+       * returns.
+       */
+      void close () {
+         synchronized (this) {
+            this._closed = true;
+         }
+         if (this._cancel != null) {
+            this._cancel.cancel(false);
+            try {
+               // cached statements are reused by callers without a deadline
+               this._stmt.setQueryTimeout(0);
+            } catch (SQLException e) {
+               // the statement is closed or the driver has no timeouts
+            }
+         }//end if
+         QueryFuture.finished();
+      }//end close
+   }//end Guard
+
+}//end Deadline
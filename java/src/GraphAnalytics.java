@@ -0,0 +1,554 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Batch statistics over the whole network: degree distribution, connected
+ * components, users without accepted connections and the backlog of
+ * pending requests per user.
+ *
+ * USR and CONNECTION_USR are each streamed once. Users are addressed by
+ * their uid, and the connections are kept in primitive arrays of packed
+ * (uid, uid) pairs, 8 bytes per edge, so tens of millions of edges fit in
+ * memory. The computations run on a ForkJoinPool over all cores:
+ * - the accepted edges are normalized to (lower uid, higher uid), sorted
+ *   with a parallel merge sort and deduplicated, since both directions of a
+ *   friendship may be stored;
+ * - degrees and pending request counts are accumulated with atomic
+ *   increments over ranges of edges;
+ * - components are found with a lock free union-find that always links the
+ *   higher root under the lower one, with path halving;
+ * - histograms are reduced from per range partial counts.
+ *
+ * Results are written as CSV files to a directory, see writeCsv.
+ *
+ * Settings: profnetwork.analytics.threads (default all cores) and
+ * profnetwork.analytics.fetchSize (rows per round trip, default 10000).
+ */
+public class GraphAnalytics {
+
+   // smallest range of edges or users handled by one task
+   private static final int GRAIN = 1 << 14;
+
+   private final ForkJoinPool _pool;
+   private final int _fetchSize;
+
+   // user id by uid, null for uids without a user
+   private String[] _users = new String[1024];
+   private int _userCount = 0;
+
+   // accepted edges as (lower uid << 32 | higher uid), unique once prepared
+   private long[] _edges = new long[1024];
+   private int _edgeCount = 0;
+   // pending requests as (sender uid << 32 | receiver uid)
+   private long[] _pending = new long[1024];
+   private int _pendingCount = 0;
+   private long _rejectedCount = 0;
+
+   // results by uid
+   private int[] _degree;
+   private int[] _pendingIn;
+   private int[] _pendingOut;
+   private long[] _degreeHistogram;
+   // component sizes, ascending
+   private int[] _componentSizes;
+
+   private long _loadMs = 0;
+   private long _computeMs = 0;
+
+   /**
+    * Creates an analytics job configured from the profnetwork.analytics.*
+    * properties.
+    */
+   public GraphAnalytics () {
+      this(Integer.getInteger("profnetwork.analytics.threads", Runtime.getRuntime().availableProcessors()),
+           Integer.getInteger("profnetwork.analytics.fetchSize", 10000));
+   }//end GraphAnalytics
+
+   /**
+    * @param threads number of worker threads
+    * @param fetchSize rows fetched per round trip while loading
+    */
+   public GraphAnalytics (int threads, int fetchSize) {
+      this._pool = new ForkJoinPool(Math.max(1, threads));
+      this._fetchSize = Math.max(1, fetchSize);
+   }//end GraphAnalytics
+
+   /**
+    * Loads the network, computes the statistics and writes them to a
+    * directory, printing the timings.
+    *
+    * @param esql the database to read from
+    * @param dir the directory the CSV files are written to
+    * @throws java.sql.SQLException when failed to read the tables
+    * @throws java.io.IOException when failed to write the files
+    */
+   public static void export (ProfNetwork esql, File dir) throws SQLException, IOException {
+      GraphAnalytics job = new GraphAnalytics();
+      try {
+         job.load(esql);
+         System.out.println("Loaded " + job._userCount + " users and " + job._edgeCount + " accepted and " +
+                            job._pendingCount + " pending connections in " + job._loadMs + " ms");
+         job.compute();
+         System.out.println("Computed the statistics in " + job._computeMs + " ms");
+         job.writeCsv(dir);
+         System.out.println("Wrote the statistics to " + dir);
+      } finally {
+         job.close();
+      }//end try
+   }//end export
+
+   /**
+    * Streams USR and CONNECTION_USR into the edge arrays.
+    *
+    * @param esql the database to read from
+    * @throws java.sql.SQLException when failed to read the tables
+    */
+   public void load (ProfNetwork esql) throws SQLException {
+      long start = System.nanoTime();
+      esql.executeQueryStreaming("SELECT uid, userId FROM USR", this._fetchSize, 0, 0, new ProfNetwork.RowHandler() {
+         public boolean handleRow (String[] row) {
+            int uid = Integer.parseInt(row[0]);
+            if (uid >= _users.length)
+               _users = Arrays.copyOf(_users, Math.max(uid + 1, _users.length * 2));
+            _users[uid] = row[1];
+            ++_userCount;
+            return true;
+         }
+      });
+      esql.executeQueryStreaming("SELECT userUid, connectionUid, status FROM CONNECTION_USR", this._fetchSize, 0, 0,
+                                 new ProfNetwork.RowHandler() {
+         public boolean handleRow (String[] row) {
+            long a = Integer.parseInt(row[0]);
+            long b = Integer.parseInt(row[1]);
+            // users created after the USR scan are left out
+            if (!known(a) || !known(b))
+               return true;
+            if (row[2].equals("Accept")) {
+               if (a != b)
+                  addEdge(Math.min(a, b) << 32 | Math.max(a, b));
+            } else if (row[2].equals("Request")) {
+               addPending(a << 32 | b);
+            } else {
+               ++_rejectedCount;
+            }
+            return true;
+         }
+      });
+      this._loadMs = (System.nanoTime() - start) / 1000000L;
+   }//end load
+
+   private boolean known (long uid) {
+      return uid < this._users.length && this._users[(int) uid] != null;
+   }//end known
+
+   private void addEdge (long edge) {
+      if (this._edgeCount == this._edges.length)
+         this._edges = Arrays.copyOf(this._edges, this._edgeCount * 2);
+      this._edges[this._edgeCount++] = edge;
+   }//end addEdge
+
+   private void addPending (long request) {
+      if (this._pendingCount == this._pending.length)
+         this._pending = Arrays.copyOf(this._pending, this._pendingCount * 2);
+      this._pending[this._pendingCount++] = request;
+   }//end addPending
+
+   /**
+    * Computes degrees, components, pending request counts and histograms
+    * from the loaded edges.
+    */
+   public void compute () {
+      long start = System.nanoTime();
+      final int nodes = this._users.length;
+
+      // both directions of a friendship collapse into one edge
+      this._pool.invoke(new MergeSort(this._edges, new long[this._edgeCount], 0, this._edgeCount));
+      int unique = 0;
+      for (int i = 0; i < this._edgeCount; ++i)
+         if (unique == 0 || this._edges[unique - 1] != this._edges[i])
+            this._edges[unique++] = this._edges[i];
+      this._edgeCount = unique;
+      final long[] edges = this._edges;
+      final long[] pending = this._pending;
+
+      final AtomicIntegerArray degree = new AtomicIntegerArray(nodes);
+      final AtomicIntegerArray parent = new AtomicIntegerArray(nodes);
+      forEach(nodes, new Body() {
+         public void run (int lo, int hi) {
+            for (int u = lo; u < hi; ++u)
+               parent.set(u, u);
+         }
+      });
+      forEach(this._edgeCount, new Body() {
+         public void run (int lo, int hi) {
+            for (int i = lo; i < hi; ++i) {
+               int a = (int) (edges[i] >>> 32);
+               int b = (int) edges[i];
+               degree.getAndIncrement(a);
+               degree.getAndIncrement(b);
+               union(parent, a, b);
+            }
+         }
+      });
+      final AtomicIntegerArray pendingIn = new AtomicIntegerArray(nodes);
+      final AtomicIntegerArray pendingOut = new AtomicIntegerArray(nodes);
+      forEach(this._pendingCount, new Body() {
+         public void run (int lo, int hi) {
+            for (int i = lo; i < hi; ++i) {
+               pendingOut.getAndIncrement((int) (pending[i] >>> 32));
+               pendingIn.getAndIncrement((int) pending[i]);
+            }
+         }
+      });
+
+      // flatten the union-find and count the members of every root
+      final String[] users = this._users;
+      final int[] root = new int[nodes];
+      final int[] degrees = new int[nodes];
+      final int[] in = new int[nodes];
+      final int[] out = new int[nodes];
+      final AtomicIntegerArray size = new AtomicIntegerArray(nodes);
+      forEach(nodes, new Body() {
+         public void run (int lo, int hi) {
+            for (int u = lo; u < hi; ++u) {
+               degrees[u] = degree.get(u);
+               in[u] = pendingIn.get(u);
+               out[u] = pendingOut.get(u);
+               root[u] = find(parent, u);
+               if (users[u] != null)
+                  size.getAndIncrement(root[u]);
+            }
+         }
+      });
+      int components = 0;
+      for (int u = 0; u < nodes; ++u)
+         if (users[u] != null && root[u] == u)
+            ++components;
+      this._componentSizes = new int[components];
+      for (int u = 0, c = 0; u < nodes; ++u)
+         if (users[u] != null && root[u] == u)
+            this._componentSizes[c++] = size.get(u);
+      Arrays.sort(this._componentSizes);
+
+      this._degree = degrees;
+      this._pendingIn = in;
+      this._pendingOut = out;
+      this._degreeHistogram = this._pool.invoke(new Histogram(users, degrees, 0, nodes));
+      this._computeMs = (System.nanoTime() - start) / 1000000L;
+   }//end compute
+
+   /**
+    * Writes the statistics to dir, creating it if needed:
+    * - summary.csv: metric,value;
+    * - degree_histogram.csv: degree,users;
+    * - component_sizes.csv: size,components;
+    * - isolated_users.csv: userId of every user without accepted connections;
+    * - pending_backlog.csv: userId,incoming,outgoing pending requests of every
+    *   user with incoming requests, the longest backlog first.
+    *
+    * @param dir the output directory
+    * @throws java.io.IOException when failed to write the files
+    */
+   public void writeCsv (File dir) throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Cannot create directory " + dir);
+      int nodes = this._users.length;
+
+      int isolated = 0, maxDegree = this._degreeHistogram.length - 1;
+      int backlogUsers = 0, maxBacklog = 0;
+      for (int u = 0; u < nodes; ++u) {
+         if (this._users[u] == null)
+            continue;
+         if (this._degree[u] == 0)
+            ++isolated;
+         if (this._pendingIn[u] > 0) {
+            ++backlogUsers;
+            maxBacklog = Math.max(maxBacklog, this._pendingIn[u]);
+         }
+      }//end for
+      int components = this._componentSizes.length;
+
+      Writer w = open(dir, "summary.csv");
+      try {
+         w.write("metric,value\n");
+         row(w, "users", this._userCount);
+         row(w, "accepted_connections", this._edgeCount);
+         row(w, "pending_requests", this._pendingCount);
+         row(w, "rejected_requests", this._rejectedCount);
+         row(w, "components", components);
+         row(w, "largest_component", components == 0 ? 0 : this._componentSizes[components - 1]);
+         row(w, "isolated_users", isolated);
+         row(w, "max_degree", Math.max(0, maxDegree));
+         w.write("mean_degree," + (this._userCount == 0 ? 0.0 : 2.0 * this._edgeCount / this._userCount) + "\n");
+         row(w, "users_with_pending_requests", backlogUsers);
+         row(w, "max_pending_requests", maxBacklog);
+         row(w, "load_ms", this._loadMs);
+         row(w, "compute_ms", this._computeMs);
+      } finally {
+         w.close();
+      }
+
+      w = open(dir, "degree_histogram.csv");
+      try {
+         w.write("degree,users\n");
+         for (int d = 0; d < this._degreeHistogram.length; ++d)
+            if (this._degreeHistogram[d] > 0)
+               row(w, Integer.toString(d), this._degreeHistogram[d]);
+      } finally {
+         w.close();
+      }
+
+      w = open(dir, "component_sizes.csv");
+      try {
+         w.write("size,components\n");
+         for (int i = components - 1; i >= 0; ) {
+            int j = i;
+            while (j >= 0 && this._componentSizes[j] == this._componentSizes[i])
+               --j;
+            row(w, Integer.toString(this._componentSizes[i]), i - j);
+            i = j;
+         }//end for
+      } finally {
+         w.close();
+      }
+
+      w = open(dir, "isolated_users.csv");
+      try {
+         w.write("userId\n");
+         for (int u = 0; u < nodes; ++u)
+            if (this._users[u] != null && this._degree[u] == 0)
+               w.write(quote(this._users[u]) + "\n");
+      } finally {
+         w.close();
+      }
+
+      // longest backlog first, then by uid, sorted as packed longs
+      long[] backlog = new long[backlogUsers];
+      for (int u = 0, i = 0; u < nodes; ++u)
+         if (this._users[u] != null && this._pendingIn[u] > 0)
+            backlog[i++] = (long) (Integer.MAX_VALUE - this._pendingIn[u]) << 32 | u;
+      Arrays.sort(backlog);
+      w = open(dir, "pending_backlog.csv");
+      try {
+         w.write("userId,incoming,outgoing\n");
+         for (long key : backlog) {
+            int u = (int) key;
+            w.write(quote(this._users[u]) + "," + this._pendingIn[u] + "," + this._pendingOut[u] + "\n");
+         }
+      } finally {
+         w.close();
+      }
+   }//end writeCsv
+
+   /**
+    * Method to stop the worker threads.
+    */
+   public void close () {
+      this._pool.shutdown();
+   }//end close
+
+   private static Writer open (File dir, String name) throws IOException {
+      return new BufferedWriter(new OutputStreamWriter(
+         new FileOutputStream(new File(dir, name)), StandardCharsets.UTF_8), 1 << 16);
+   }//end open
+
+   private static void row (Writer w, String key, long value) throws IOException {
+      w.write(key + "," + value + "\n");
+   }//end row
+
+   // quotes a CSV field when it contains a separator, quote or line break
+   private static String quote (String s) {
+      if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0)
+         return s;
+      return "\"" + s.replace("\"", "\"\"") + "\"";
+   }//end quote
+
+   /**
+    * @param parent the union-find forest
+    * @param x a node
+    * @return the root of x, halving the path to it on the way
+    */
+   static int find (AtomicIntegerArray parent, int x) {
+      while (true) {
+         int p = parent.get(x);
+         if (p == x)
+            return x;
+         int gp = parent.get(p);
+         // parents only ever move to lower numbers, so a lost race is harmless
+         if (p != gp)
+            parent.compareAndSet(x, p, gp);
+         x = gp;
+      }//end while
+   }//end find
+
+   /**
+    * Merges the components of a and b. Roots are linked higher under lower,
+    * which keeps the forest acyclic without locks.
+    *
+    * @param parent the union-find forest
+    * @param a a node
+    * @param b another node
+    */
+   static void union (AtomicIntegerArray parent, int a, int b) {
+      while (true) {
+         a = find(parent, a);
+         b = find(parent, b);
+         if (a == b)
+            return;
+         if (a < b) {
+            int t = a;
+            a = b;
+            b = t;
+         }
+         // fails when a stopped being a root meanwhile; retry from the new roots
+         if (parent.compareAndSet(a, a, b))
+            return;
+      }//end while
+   }//end union
+
+   /**
+    * Work on a range of indices, see forEach.
+    */
+   interface Body {
+      /**
+       * @param lo first index
+       * @param hi index past the last
+       */
+      void run (int lo, int hi);
+   }//end Body
+
+   // runs body over [0, n) split into ranges of at least GRAIN indices
+   private void forEach (int n, Body body) {
+      this._pool.invoke(new Span(body, 0, n));
+   }//end forEach
+
+   private static final class Span extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private final Body _body;
+      private final int _lo;
+      private final int _hi;
+
+      Span (Body body, int lo, int hi) {
+         this._body = body;
+         this._lo = lo;
+         this._hi = hi;
+      }
+
+      protected void compute () {
+         if (this._hi - this._lo <= GRAIN) {
+            this._body.run(this._lo, this._hi);
+            return;
+         }
+         int mid = (this._lo + this._hi) >>> 1;
+         invokeAll(new Span(this._body, this._lo, mid), new Span(this._body, mid, this._hi));
+      }//end compute
+   }//end Span
+
+   /**
+    * Sorts a range of longs by sorting both halves in parallel and merging
+    * them through a buffer of the same length.
+    */
+   private static final class MergeSort extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private final long[] _a;
+      private final long[] _buf;
+      private final int _lo;
+      private final int _hi;
+
+      MergeSort (long[] a, long[] buf, int lo, int hi) {
+         this._a = a;
+         this._buf = buf;
+         this._lo = lo;
+         this._hi = hi;
+      }
+
+      protected void compute () {
+         if (this._hi - this._lo <= GRAIN) {
+            Arrays.sort(this._a, this._lo, this._hi);
+            return;
+         }
+         int mid = (this._lo + this._hi) >>> 1;
+         invokeAll(new MergeSort(this._a, this._buf, this._lo, mid),
+                   new MergeSort(this._a, this._buf, mid, this._hi));
+         int i = this._lo, j = mid, k = this._lo;
+         while (i < mid && j < this._hi)
+            this._buf[k++] = (this._a[i] <= this._a[j]) ? this._a[i++] : this._a[j++];
+         while (i < mid)
+            this._buf[k++] = this._a[i++];
+         while (j < this._hi)
+            this._buf[k++] = this._a[j++];
+         System.arraycopy(this._buf, this._lo, this._a, this._lo, this._hi - this._lo);
+      }//end compute
+   }//end MergeSort
+
+   /**
+    * Counts the users of every degree in a range of uids; partial counts
+    * of both halves are added up.
+    */
+   private static final class Histogram extends RecursiveTask<long[]> {
+      private static final long serialVersionUID = 1L;
+      private final String[] _users;
+      private final int[] _degree;
+      private final int _lo;
+      private final int _hi;
+
+      Histogram (String[] users, int[] degree, int lo, int hi) {
+         this._users = users;
+         this._degree = degree;
+         this._lo = lo;
+         this._hi = hi;
+      }
+
+      protected long[] compute () {
+         if (this._hi - this._lo <= GRAIN) {
+            int max = 0;
+            for (int u = this._lo; u < this._hi; ++u)
+               if (this._users[u] != null)
+                  max = Math.max(max, this._degree[u]);
+            long[] counts = new long[max + 1];
+            for (int u = this._lo; u < this._hi; ++u)
+               if (this._users[u] != null)
+                  ++counts[this._degree[u]];
+            return counts;
+         }//end if
+         int mid = (this._lo + this._hi) >>> 1;
+         Histogram left = new Histogram(this._users, this._degree, this._lo, mid);
+         left.fork();
+         long[] a = new Histogram(this._users, this._degree, mid, this._hi).compute();
+         long[] b = left.join();
+         if (a.length < b.length) {
+            long[] t = a;
+            a = b;
+            b = t;
+         }
+         for (int d = 0; d < b.length; ++d)
+            a[d] += b[d];
+         return a;
+      }//end compute
+   }//end Histogram
+
+}//end GraphAnalytics
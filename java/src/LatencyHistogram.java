@@ -0,0 +1,124 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations in nanoseconds. Buckets are log linear:
+ * every power of two range is split into 8 equal sub buckets, so any
+ * recorded value is reported within 12.5% while the whole long range fits
+ * in under 500 counters. Recording is one atomic increment plus a few
+ * arithmetic operations, cheap enough for every query.
+ *
+ * Readers see a consistent enough view for monitoring; counters written
+ * while a percentile is computed may or may not be included.
+ */
+public class LatencyHistogram {
+
+   private static final int SUB_BITS = 3;
+   private static final int SUB_BUCKETS = 1 << SUB_BITS;
+   private static final int BUCKETS = (62 - SUB_BITS + 2) * SUB_BUCKETS;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong _total = new AtomicLong();
+   private final AtomicLong _sum = new AtomicLong();
+   private final AtomicLong _max = new AtomicLong();
+
+   /**
+    * @param nanos the duration to record; negative values count as 0
+    */
+   public void record (long nanos) {
+      long v = Math.max(0, nanos);
+      this._counts.incrementAndGet(bucket(v));
+      this._total.incrementAndGet();
+      this._sum.addAndGet(v);
+      long max;
+      while (v > (max = this._max.get()) && !this._max.compareAndSet(max, v)) {
+         // retry until max is at least v
+      }
+   }//end record
+
+   /**
+    * @return the number of recorded values
+    */
+   public long count () {
+      return this._total.get();
+   }
+
+   /**
+    * @return the mean of the recorded values in nanoseconds, 0 when empty
+    */
+   public double mean () {
+      long n = this._total.get();
+      return (n == 0) ? 0.0 : (double) this._sum.get() / n;
+   }//end mean
+
+   /**
+    * @return the largest recorded value in nanoseconds
+    */
+   public long max () {
+      return this._max.get();
+   }
+
+   /**
+    * @param p the quantile, e.g. 0.99
+    * @return the value at that quantile in nanoseconds (the middle of its
+    *         bucket, never more than max()), 0 when empty
+    */
+   public long percentile (double p) {
+      long[] counts = new long[BUCKETS];
+      long n = 0;
+      for (int i = 0; i < BUCKETS; ++i)
+         n += counts[i] = this._counts.get(i);
+      if (n == 0)
+         return 0;
+      long rank = Math.max(1, (long) Math.ceil(Math.min(1.0, Math.max(0.0, p)) * n));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+         seen += counts[i];
+         if (seen >= rank) {
+            long low = lowerBound(i);
+            long high = (i + 1 < BUCKETS) ? lowerBound(i + 1) : Long.MAX_VALUE;
+            return Math.min(low + (high - low) / 2, this._max.get());
+         }
+      }//end for
+      return this._max.get();
+   }//end percentile
+
+   /**
+    * Method to clear all counters.
+    */
+   public void reset () {
+      for (int i = 0; i < BUCKETS; ++i)
+         this._counts.set(i, 0);
+      this._total.set(0);
+      this._sum.set(0);
+      this._max.set(0);
+   }//end reset
+
+   static int bucket (long v) {
+      if (v < 2 * SUB_BUCKETS)
+         return (int) v;
+      int exp = 63 - Long.numberOfLeadingZeros(v);
+      return ((exp - SUB_BITS + 1) << SUB_BITS) + (int) ((v >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+   }//end bucket
+
+   static long lowerBound (int bucket) {
+      if (bucket < 2 * SUB_BUCKETS)
+         return bucket;
+      int exp = (bucket >>> SUB_BITS) + SUB_BITS - 1;
+      return (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << (exp - SUB_BITS);
+   }//end lowerBound
+
+}//end LatencyHistogram
@@ -0,0 +1,220 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background maintenance of MESSAGE. Messages deleted by both parties
+ * (deleteStatus = 3) are invisible to everyone, so they are removed in
+ * small batches, either deleted outright or moved to MESSAGE_ARCHIVE.
+ *
+ * Each batch is one short transaction of at most batchSize rows. Rows locked
+ * by a concurrent transaction are skipped rather than waited for. Purging is
+ * throttled so it does not compete with foreground queries:
+ * - after every batch the purger sleeps long enough to stay under its duty
+ *   cycle, and at least pauseMs;
+ * - it backs off while the connection pool is nearly exhausted;
+ * - a run stops after maxBatches batches.
+ *
+ * When MESSAGE is partitioned (see partition_messages.sql), each run can
+ * also create upcoming monthly partitions and detach old ones.
+ *
+ * Settings: profnetwork.purge.intervalSec (default 0 = never run),
+ * profnetwork.purge.archive (default false = delete),
+ * profnetwork.purge.batchSize (default 500), profnetwork.purge.pauseMs
+ * (default 200), profnetwork.purge.dutyPercent (default 10),
+ * profnetwork.purge.maxBatches (default 1000), profnetwork.purge.minAgeHours
+ * (default 24, only messages sent before then are purged),
+ * profnetwork.purge.partitionsAhead (default 0 = not partitioned) and
+ * profnetwork.purge.keepMonths (default 0 = never detach).
+ */
+public class MessagePurger {
+
+   private static final String CANDIDATES =
+      "SELECT msgId FROM MESSAGE WHERE deleteStatus = 3 AND sendTime < ? ORDER BY msgId LIMIT ? FOR UPDATE SKIP LOCKED";
+
+   private static final String DELETE_SQL =
+      "DELETE FROM MESSAGE WHERE msgId IN (" + CANDIDATES + ")";
+
+   private static final String ARCHIVE_SQL =
+      "WITH purged AS (DELETE FROM MESSAGE WHERE msgId IN (" + CANDIDATES + ")" +
+      " RETURNING msgId, senderUid, receiverUid, contents, sendTime, deleteStatus, status)" +
+      " INSERT INTO MESSAGE_ARCHIVE (msgId, senderId, receiverId, contents, sendTime, deleteStatus, status)" +
+      " SELECT p.msgId, s.userId, r.userId, p.contents, p.sendTime, p.deleteStatus, p.status" +
+      " FROM purged p JOIN USR s ON s.uid = p.senderUid JOIN USR r ON r.uid = p.receiverUid";
+
+   private final ProfNetwork _esql;
+   private final boolean _archive;
+   private final int _batchSize;
+   private final long _pauseMs;
+   private final int _dutyPercent;
+   private final int _maxBatches;
+   private final long _minAgeMs;
+   private final int _partitionsAhead;
+   private final int _keepMonths;
+
+   private final AtomicLong _purged = new AtomicLong();
+   private final AtomicLong _runs = new AtomicLong();
+   private ScheduledExecutorService _scheduler = null;
+   private volatile boolean _closed = false;
+
+   /**
+    * Creates a purger configured from the profnetwork.purge.* properties.
+    *
+    * @param esql the database to maintain
+    */
+   public MessagePurger (ProfNetwork esql) {
+      this(esql, Boolean.getBoolean("profnetwork.purge.archive"),
+           Integer.getInteger("profnetwork.purge.batchSize", 500),
+           Long.getLong("profnetwork.purge.pauseMs", 200L),
+           Integer.getInteger("profnetwork.purge.dutyPercent", 10),
+           Integer.getInteger("profnetwork.purge.maxBatches", 1000),
+           Long.getLong("profnetwork.purge.minAgeHours", 24L) * 3600000L,
+           Integer.getInteger("profnetwork.purge.partitionsAhead", 0),
+           Integer.getInteger("profnetwork.purge.keepMonths", 0));
+   }//end MessagePurger
+
+   /**
+    * @param esql the database to maintain
+    * @param archive move purged messages to MESSAGE_ARCHIVE instead of deleting them
+    * @param batchSize maximum rows per transaction
+    * @param pauseMs minimum pause between batches
+    * @param dutyPercent share of the time a run may spend inside batches, 1 to 100
+    * @param maxBatches maximum batches per run
+    * @param minAgeMs only messages sent at least this long ago are purged
+    * @param partitionsAhead months of partitions to create ahead, 0 when MESSAGE is not partitioned
+    * @param keepMonths months of partitions to keep attached, 0 to never detach
+    */
+   public MessagePurger (ProfNetwork esql, boolean archive, int batchSize, long pauseMs, int dutyPercent,
+                         int maxBatches, long minAgeMs, int partitionsAhead, int keepMonths) {
+      this._esql = esql;
+      this._archive = archive;
+      this._batchSize = Math.max(1, batchSize);
+      this._pauseMs = Math.max(0, pauseMs);
+      this._dutyPercent = Math.min(100, Math.max(1, dutyPercent));
+      this._maxBatches = Math.max(1, maxBatches);
+      this._minAgeMs = Math.max(0, minAgeMs);
+      this._partitionsAhead = partitionsAhead;
+      this._keepMonths = keepMonths;
+   }//end MessagePurger
+
+   /**
+    * Runs the purger on a background thread every intervalSec seconds,
+    * starting one interval from now.
+    *
+    * @param intervalSec seconds between the end of a run and the next one
+    */
+   public synchronized void start (long intervalSec) {
+      if (this._scheduler != null || intervalSec <= 0)
+         return;
+      this._scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread (Runnable r) {
+            Thread t = new Thread(r, "MessagePurger");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+         }
+      });
+      this._scheduler.scheduleWithFixedDelay(new Runnable() {
+         public void run () {
+            try {
+               runOnce();
+            } catch (Exception e) {
+               // a failed run is retried at the next interval
+               System.err.println("Message purge failed: " + e.getMessage());
+            }
+         }
+      }, intervalSec, intervalSec, TimeUnit.SECONDS);
+   }//end start
+
+   /**
+    * Method to stop the schedule; a batch in progress is finished first.
+    */
+   public synchronized void close () {
+      this._closed = true;
+      if (this._scheduler != null) {
+         this._scheduler.shutdownNow();
+         try {
+            this._scheduler.awaitTermination(10, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }//end try
+         this._scheduler = null;
+      }//end if
+   }//end close
+
+   /**
+    * Purges fully deleted messages batch by batch until none are left, the
+    * batch limit is reached or the purger is closed, then maintains the
+    * partitions if configured.
+    *
+    * @return the number of messages purged by this run
+    * @throws java.sql.SQLException when a batch or the partition maintenance failed
+    */
+   public long runOnce () throws SQLException {
+      this._runs.incrementAndGet();
+      Timestamp cutoff = new Timestamp(System.currentTimeMillis() - this._minAgeMs);
+      String sql = this._archive ? ARCHIVE_SQL : DELETE_SQL;
+      long purged = 0;
+      try {
+         for (int batch = 0; batch < this._maxBatches && !this._closed; ++batch) {
+            waitForIdleConnections();
+            long start = System.nanoTime();
+            int n = this._esql.executeUpdate(sql, cutoff, this._batchSize);
+            long busyMs = (System.nanoTime() - start) / 1000000L;
+            purged += n;
+            this._purged.addAndGet(n);
+            if (n < this._batchSize)
+               break;
+            // at dutyPercent busy time, every busy ms is followed by (100 / duty - 1) idle ms
+            Thread.sleep(Math.max(this._pauseMs, busyMs * (100 - this._dutyPercent) / this._dutyPercent));
+         }//end for
+         if (this._partitionsAhead > 0 && !this._closed)
+            this._esql.executeUpdateReturning("SELECT ensure_message_partitions(CURRENT_DATE, ?)", this._partitionsAhead);
+         if (this._keepMonths > 0 && !this._closed)
+            this._esql.executeUpdateReturning("SELECT detach_message_partitions(?)", this._keepMonths);
+      } catch (InterruptedException e) {
+         // close() interrupts a sleeping purger
+         Thread.currentThread().interrupt();
+      }//end try
+      return purged;
+   }//end runOnce
+
+   // leaves at least one pooled connection to foreground queries
+   private void waitForIdleConnections () throws InterruptedException {
+      ConnectionPool pool = this._esql.pool();
+      for (int i = 0; i < 50 && pool.getMaxSize() > 1 && pool.getActiveCount() >= pool.getMaxSize() - 1; ++i)
+         Thread.sleep(Math.max(10, this._pauseMs));
+   }//end waitForIdleConnections
+
+   /**
+    * @return the number of messages purged since the purger was created
+    */
+   public long getPurgedCount () {
+      return this._purged.get();
+   }
+
+   /**
+    * @return the number of runs started
+    */
+   public long getRunCount () {
+      return this._runs.get();
+   }
+
+}//end MessagePurger
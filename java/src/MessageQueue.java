@@ -0,0 +1,268 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Write behind queue for outgoing messages. Senders only enqueue; a single
+ * writer thread drains the queue and inserts whatever has accumulated as one
+ * JDBC batch in one transaction, so a burst of messages shares a single
+ * commit instead of paying for one each.
+ *
+ * The queue is bounded: when it is full, send() waits up to the offer
+ * timeout and then fails, which pushes back on senders instead of growing
+ * without limit. Each message carries a listener that is told from the
+ * writer thread whether it was stored. close() stops accepting messages and
+ * waits until everything queued so far is written; a send that did not get
+ * its message in before close() fails instead of being dropped.
+ */
+public class MessageQueue {
+
+   private static final String INSERT_SQL =
+      "INSERT INTO MESSAGE (senderUid, receiverUid, contents, sendTime, deleteStatus, status)" +
+      " VALUES (" + ProfNetwork.UID + ", " + ProfNetwork.UID + ", ?, ?, 0, 'Delivered')";
+
+   /**
+    * Delivery acknowledgement for a queued message.
+    */
+   public interface DeliveryListener {
+      /**
+       * @param message the message which is now stored in MESSAGE
+       */
+      void delivered (OutgoingMessage message);
+
+      /**
+       * @param message the message which could not be stored
+       * @param error why the insert failed
+       */
+      void failed (OutgoingMessage message, SQLException error);
+   }//end DeliveryListener
+
+   /**
+    * A message waiting to be written.
+    */
+   public static final class OutgoingMessage {
+      public final String senderId;
+      public final String receiverId;
+      public final String contents;
+      // time the message was sent, not the time it was written
+      public final Timestamp sendTime;
+      final DeliveryListener listener;
+
+      OutgoingMessage (String senderId, String receiverId, String contents, DeliveryListener listener) {
+         this.senderId = senderId;
+         this.receiverId = receiverId;
+         this.contents = contents;
+         this.sendTime = new Timestamp(System.currentTimeMillis());
+         this.listener = listener;
+      }
+   }//end OutgoingMessage
+
+   // marks the end of the queue for the writer thread
+   private static final OutgoingMessage END = new OutgoingMessage(null, null, null, null);
+
+   private final ConnectionPool _pool;
+   private final BlockingQueue<OutgoingMessage> _queue;
+   private final int _batchSize;
+   private final long _offerTimeoutMs;
+   private final Thread _writer;
+   // senders check _closed and enqueue under the read lock, close() sets it
+   // under the write lock, so nothing is queued behind END
+   private final ReadWriteLock _closeLock = new ReentrantReadWriteLock();
+   private boolean _closed = false;
+
+   /**
+    * Creates the queue and starts its writer thread.
+    *
+    * @param pool the pool the writer borrows its connection from
+    * @param capacity maximum number of messages waiting to be written
+    * @param batchSize maximum number of messages written per transaction
+    * @param offerTimeoutMs how long send() waits for room in a full queue
+    */
+   public MessageQueue (ConnectionPool pool, int capacity, int batchSize, long offerTimeoutMs) {
+      this._pool = pool;
+      this._queue = new ArrayBlockingQueue<OutgoingMessage>(capacity);
+      this._batchSize = Math.max(1, batchSize);
+      this._offerTimeoutMs = offerTimeoutMs;
+      this._writer = new Thread("MessageQueue-writer") {
+         public void run () {
+            writeLoop();
+         }
+      };
+      this._writer.setDaemon(true);
+      this._writer.start();
+   }//end MessageQueue
+
+   /**
+    * Queues a message for writing.
+    *
+    * @param senderId the sending user
+    * @param receiverId the receiving user
+    * @param contents the message text
+    * @param listener told once the message is stored or has failed
+    * @throws java.sql.SQLException when the queue stayed full or is closed
+    */
+   public void send (String senderId, String receiverId, String contents, DeliveryListener listener) throws SQLException {
+      OutgoingMessage message = new OutgoingMessage(senderId, receiverId, contents, listener);
+      this._closeLock.readLock().lock();
+      try {
+         if (this._closed)
+            throw new SQLException("Message queue is closed");
+         if (!this._queue.offer(message, this._offerTimeoutMs, TimeUnit.MILLISECONDS))
+            throw new SQLException("Too many messages waiting to be sent, try again later");
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while queueing message");
+      } finally {
+         this._closeLock.readLock().unlock();
+      }//end try
+   }//end send
+
+   /**
+    * @return the number of messages waiting to be written
+    */
+   public int pending () {
+      return this._queue.size();
+   }
+
+   /**
+    * Method to stop accepting messages and wait until every queued message
+    * has been written.
+    */
+   public void close () {
+      // waits for sends that are still putting their message in
+      this._closeLock.writeLock().lock();
+      try {
+         if (this._closed)
+            return;
+         this._closed = true;
+      } finally {
+         this._closeLock.writeLock().unlock();
+      }//end try
+      try {
+         this._queue.put(END);
+         this._writer.join();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end close
+
+   private void writeLoop () {
+      List<OutgoingMessage> batch = new ArrayList<OutgoingMessage>(this._batchSize);
+      boolean done = false;
+      while (!done) {
+         try {
+            batch.add(this._queue.take());
+         } catch (InterruptedException e) {
+            // only close() stops the writer
+            continue;
+         }//end try
+         this._queue.drainTo(batch, this._batchSize - 1);
+         int end = batch.indexOf(END);
+         if (end >= 0) {
+            // END is queued last, nothing can follow it
+            batch.remove(end);
+            done = true;
+         }
+         if (!batch.isEmpty())
+            write(batch);
+         batch.clear();
+      }//end while
+   }//end writeLoop
+
+   // writes one batch in one transaction, falling back to one message at a time
+   private void write (List<OutgoingMessage> batch) {
+      Connection conn;
+      try {
+         conn = this._pool.borrow();
+      } catch (SQLException e) {
+         for (OutgoingMessage m : batch)
+            failed(m, e);
+         return;
+      }//end try
+      // the leading messages whose listener was already called
+      int acked = 0;
+      try {
+         // the writer runs outside any operation's deadline
+         Deadline.unbounded(conn);
+         conn.setAutoCommit(false);
+         PreparedStatement ps = conn.prepareStatement(INSERT_SQL);
+         try {
+            try {
+               for (OutgoingMessage m : batch) {
+                  bind(ps, m);
+                  ps.addBatch();
+               }
+               ps.executeBatch();
+               conn.commit();
+               for (OutgoingMessage m : batch) {
+                  delivered(m);
+                  ++acked;
+               }
+            } catch (SQLException e) {
+               // one bad message (e.g. unknown receiver) must not sink the others
+               conn.rollback();
+               ps.clearBatch();
+               for (OutgoingMessage m : batch) {
+                  try {
+                     bind(ps, m);
+                     ps.executeUpdate();
+                     conn.commit();
+                     delivered(m);
+                  } catch (SQLException rowError) {
+                     conn.rollback();
+                     failed(m, rowError);
+                  }
+                  ++acked;
+               }//end for
+            }//end try
+         } finally {
+            ps.close();
+         }
+      } catch (SQLException e) {
+         // a message is either stored or failed, never both
+         for (OutgoingMessage m : batch.subList(acked, batch.size()))
+            failed(m, e);
+      } finally {
+         this._pool.release(conn);
+      }//end try
+   }//end write
+
+   private static void bind (PreparedStatement ps, OutgoingMessage m) throws SQLException {
+      ps.setString(1, m.senderId);
+      ps.setString(2, m.receiverId);
+      ps.setString(3, m.contents);
+      ps.setTimestamp(4, m.sendTime);
+   }//end bind
+
+   private static void delivered (OutgoingMessage m) {
+      if (m.listener != null)
+         m.listener.delivered(m);
+   }//end delivered
+
+   private static void failed (OutgoingMessage m, SQLException e) {
+      if (m.listener != null)
+         m.listener.failed(m, e);
+   }//end failed
+
+}//end MessageQueue
@@ -0,0 +1,298 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import javax.management.ObjectName;
+
+/**
+ * Latency, row and error counters of the query methods, of every distinct
+ * statement and of the menu operations, plus a slow query log.
+ *
+ * Every name maps to an Operation holding a LatencyHistogram and atomic
+ * counters, so recording never takes a lock. Statements are keyed by their
+ * template: parameterized SQL as written, literal SQL with its string and
+ * number literals replaced by ?. The number of distinct statements tracked
+ * is capped; the rest are counted under "sql <other>".
+ *
+ * Statements slower than the threshold are written to the slow query log
+ * with their template, duration and row count.
+ *
+ * Settings: profnetwork.slowQueryMs (default 250),
+ * profnetwork.slowQueryLog (a file to append to, default System.err),
+ * profnetwork.metrics.maxStatements (default 256) and
+ * profnetwork.metrics.dumpSec (print a report every n seconds to
+ * System.err, default 0 = never).
+ */
+public class Metrics implements MetricsMBean {
+
+   /**
+    * Counters of one operation.
+    */
+   public static final class Operation {
+      public final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong _rows = new AtomicLong();
+      final AtomicLong _errors = new AtomicLong();
+
+      public long getRows () { return this._rows.get(); }
+      public long getErrors () { return this._errors.get(); }
+   }//end Operation
+
+   private static final String OTHER_STATEMENTS = "sql <other>";
+   private static final Pattern LITERALS = Pattern.compile("'(?:[^']|'')*'|\\b\\d+(?:\\.\\d+)?\\b");
+   private static final Pattern SPACES = Pattern.compile("\\s+");
+
+   private final ConcurrentHashMap<String, Operation> _operations = new ConcurrentHashMap<String, Operation>();
+   private final AtomicLong _statementCount = new AtomicLong();
+   private final int _maxStatements;
+   private volatile long _slowNanos;
+   private final AtomicLong _slowCount = new AtomicLong();
+   private final PrintStream _slowLog;
+   private Timer _dumper = null;
+
+   public Metrics () {
+      this._maxStatements = Integer.getInteger("profnetwork.metrics.maxStatements", 256);
+      this._slowNanos = Long.getLong("profnetwork.slowQueryMs", 250L) * 1000000L;
+      PrintStream log = System.err;
+      String file = System.getProperty("profnetwork.slowQueryLog");
+      if (file != null) {
+         try {
+            log = new PrintStream(new FileOutputStream(file, true), true, "UTF-8");
+         } catch (IOException e) {
+            System.err.println("Slow query log " + file + " unavailable, using stderr: " + e.getMessage());
+         }
+      }
+      this._slowLog = log;
+   }//end Metrics
+
+   /**
+    * Records one statement run by a query method.
+    *
+    * @param method the ProfNetwork method that ran it
+    * @param template the statement template
+    * @param startNanos System.nanoTime() before the statement started
+    * @param rows rows returned or affected, or a negative value on failure
+    */
+   public void statement (String method, String template, long startNanos, long rows) {
+      long nanos = System.nanoTime() - startNanos;
+      record(operation(method), nanos, rows);
+      record(statementOperation(template), nanos, rows);
+      if (nanos >= this._slowNanos) {
+         this._slowCount.incrementAndGet();
+         synchronized (this._slowLog) {
+            this._slowLog.format("%s SLOW %.1f ms rows=%s %s: %s\n",
+                                 new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date()), nanos / 1e6,
+                                 (rows < 0) ? "error" : Long.toString(rows), method, template);
+         }
+      }//end if
+   }//end statement
+
+   /**
+    * Records one menu operation.
+    *
+    * @param name the operation name
+    * @param nanos its duration, without the time spent waiting for input
+    */
+   public void menu (String name, long nanos) {
+      operation("menu " + name).latency.record(nanos);
+   }//end menu
+
+   /**
+    * @param name an operation name
+    * @return its counters, created on first use
+    */
+   public Operation operation (String name) {
+      Operation op = this._operations.get(name);
+      if (op == null) {
+         Operation created = new Operation();
+         op = this._operations.putIfAbsent(name, created);
+         if (op == null)
+            op = created;
+      }
+      return op;
+   }//end operation
+
+   /**
+    * Replaces string and number literals by ? and collapses whitespace, so
+    * statements differing only in their values share one template.
+    *
+    * @param sql a literal SQL statement
+    * @return its template
+    */
+   public static String template (String sql) {
+      return SPACES.matcher(LITERALS.matcher(sql).replaceAll("?")).replaceAll(" ").trim();
+   }//end template
+
+   // the counters of a statement, or the shared overflow counters past the cap
+   private Operation statementOperation (String template) {
+      String name = "sql " + template;
+      Operation op = this._operations.get(name);
+      if (op != null)
+         return op;
+      if (this._statementCount.get() >= this._maxStatements)
+         return operation(OTHER_STATEMENTS);
+      Operation created = new Operation();
+      op = this._operations.putIfAbsent(name, created);
+      if (op == null) {
+         this._statementCount.incrementAndGet();
+         op = created;
+      }
+      return op;
+   }//end statementOperation
+
+   private static void record (Operation op, long nanos, long rows) {
+      op.latency.record(nanos);
+      if (rows < 0)
+         op._errors.incrementAndGet();
+      else
+         op._rows.addAndGet(rows);
+   }//end record
+
+   /**
+    * Prints every operation with calls as a table: methods first, then
+    * menu operations, then statements.
+    *
+    * @param out where to print
+    */
+   public void print (PrintStream out) {
+      List<String> names = new ArrayList<String>(this._operations.keySet());
+      Collections.sort(names);
+      List<String> ordered = new ArrayList<String>(names.size());
+      for (String prefix : new String[] { "execute", "menu ", "sql " })
+         for (String name : names)
+            if (name.startsWith(prefix))
+               ordered.add(name);
+      TableRenderer table = new TableRenderer(out, Math.max(1, ordered.size()),
+         "Operation", "Calls", "Errors", "Rows", "Mean ms", "p50 ms", "p99 ms", "p999 ms", "Max ms");
+      for (String name : ordered) {
+         Operation op = this._operations.get(name);
+         LatencyHistogram h = op.latency;
+         if (h.count() == 0)
+            continue;
+         table.addRow(new String[] {
+            (name.length() > 100) ? name.substring(0, 97) + "..." : name,
+            Long.toString(h.count()), Long.toString(op.getErrors()), Long.toString(op.getRows()),
+            millis(h.mean()), millis(h.percentile(0.50)), millis(h.percentile(0.99)),
+            millis(h.percentile(0.999)), millis(h.max()) });
+      }//end for
+      table.flush();
+      out.format("%d slow statements (threshold %d ms)\n", getSlowQueryCount(), getSlowQueryThresholdMs());
+   }//end print
+
+   private static String millis (double nanos) {
+      return String.format("%.3f", nanos / 1e6);
+   }
+
+   /**
+    * Registers this instance with the platform MBean server. A second
+    * registration in the same JVM is skipped.
+    */
+   public void register () {
+      try {
+         ObjectName name = new ObjectName("ProfNetwork:type=Metrics");
+         if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+      } catch (Exception e) {
+         System.err.println("Metrics not exported over JMX: " + e.getMessage());
+      }//end try
+   }//end register
+
+   /**
+    * Starts printing the report to System.err every periodSec seconds.
+    *
+    * @param periodSec the period, nothing is started when not positive
+    */
+   public synchronized void startDump (long periodSec) {
+      if (periodSec <= 0 || this._dumper != null)
+         return;
+      this._dumper = new Timer("Metrics-dump", true);
+      this._dumper.schedule(new TimerTask() {
+         public void run () {
+            print(System.err);
+         }
+      }, periodSec * 1000, periodSec * 1000);
+   }//end startDump
+
+   /**
+    * Method to stop the periodic report.
+    */
+   public synchronized void close () {
+      if (this._dumper != null)
+         this._dumper.cancel();
+      this._dumper = null;
+   }//end close
+
+   public String[] getOperationNames () {
+      List<String> names = new ArrayList<String>(this._operations.keySet());
+      Collections.sort(names);
+      return names.toArray(new String[names.size()]);
+   }
+
+   public long getSlowQueryThresholdMs () {
+      return this._slowNanos / 1000000L;
+   }
+
+   public void setSlowQueryThresholdMs (long thresholdMs) {
+      this._slowNanos = Math.max(0, thresholdMs) * 1000000L;
+   }
+
+   public long getSlowQueryCount () {
+      return this._slowCount.get();
+   }
+
+   public long count (String operation) {
+      Operation op = this._operations.get(operation);
+      return (op == null) ? 0 : op.latency.count();
+   }
+
+   public long errors (String operation) {
+      Operation op = this._operations.get(operation);
+      return (op == null) ? 0 : op.getErrors();
+   }
+
+   public double percentileMs (String operation, double quantile) {
+      Operation op = this._operations.get(operation);
+      return (op == null) ? 0.0 : op.latency.percentile(quantile) / 1e6;
+   }
+
+   public String report () {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(buffer);
+      print(out);
+      out.flush();
+      return buffer.toString();
+   }//end report
+
+   public void reset () {
+      for (Operation op : this._operations.values()) {
+         op.latency.reset();
+         op._rows.set(0);
+         op._errors.set(0);
+      }
+      this._slowCount.set(0);
+   }//end reset
+
+}//end Metrics
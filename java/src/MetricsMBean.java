@@ -0,0 +1,62 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+/**
+ * JMX view of Metrics, registered as ProfNetwork:type=Metrics.
+ */
+public interface MetricsMBean {
+
+   /**
+    * @return names of every timed query method, statement and menu operation
+    */
+   String[] getOperationNames ();
+
+   long getSlowQueryThresholdMs ();
+
+   void setSlowQueryThresholdMs (long thresholdMs);
+
+   /**
+    * @return the number of statements logged as slow
+    */
+   long getSlowQueryCount ();
+
+   /**
+    * @param operation an operation name
+    * @return the number of completed calls, 0 for an unknown name
+    */
+   long count (String operation);
+
+   /**
+    * @param operation an operation name
+    * @return the number of failed calls, 0 for an unknown name
+    */
+   long errors (String operation);
+
+   /**
+    * @param operation an operation name
+    * @param quantile the quantile, e.g. 0.99
+    * @return the latency at that quantile in milliseconds
+    */
+   double percentileMs (String operation, double quantile);
+
+   /**
+    * @return every operation as a text table
+    */
+   String report ();
+
+   /**
+    * Method to clear all counters.
+    */
+   void reset ();
+
+}//end MetricsMBean
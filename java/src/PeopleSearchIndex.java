@@ -0,0 +1,460 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In memory trigram index over the userId and name of every USR row, used by
+ * SearchPeople instead of a LIKE '%x%' table scan.
+ *
+ * Every user is a document whose lower cased userId and name are split into
+ * trigrams and bigrams, and each gram maps to a sorted posting list of
+ * documents. A search intersects the posting lists of the term's trigrams,
+ * starting from the shortest, and then checks the few surviving candidates
+ * for the actual substring, so results are exactly what the LIKE query
+ * returned. Two character terms use their bigram's list; a one character
+ * term matches most users anyway and is answered by a scan.
+ *
+ * Matches are ranked exact userId first, then prefix matches on the userId
+ * or on any word of the name, then by similarity (how much of the matched
+ * field the term covers). A changed user keeps its document number: it is
+ * removed from the lists of grams it lost and added to those it gained, so
+ * the index does not grow with updates.
+ */
+public class PeopleSearchIndex {
+
+   private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+
+   // documents, indexed by document number
+   private String[] _userIds = new String[1024];
+   private String[] _names = new String[1024];
+   private String[] _emails = new String[1024];
+   private int _docCount = 0;
+
+   // document of every user
+   private final HashMap<String, Integer> _current = new HashMap<String, Integer>();
+
+   // trigram or bigram -> ascending document numbers
+   private final HashMap<Long, Postings> _postings = new HashMap<Long, Postings>();
+
+   /**
+    * Loads the index from USR with a single streaming scan.
+    *
+    * @param esql the database to read from
+    * @return the loaded index
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static PeopleSearchIndex load (ProfNetwork esql) throws SQLException {
+      final PeopleSearchIndex index = new PeopleSearchIndex();
+      esql.executeQueryStreaming("SELECT userId, name, email FROM USR", ProfNetwork.FETCH_SIZE, 0, 0,
+         new ProfNetwork.RowHandler() {
+            public boolean handleRow (String[] row) {
+               index.addDocument(row[0], row[1], row[2]);
+               return true;
+            }
+         });
+      return index;
+   }//end load
+
+   /**
+    * Reads an index written by writeTo. The posting lists are rebuilt from
+    * the documents in memory, which needs no database round trip.
+    *
+    * @param buf the snapshot section, positioned at the index
+    * @return the index
+    */
+   static PeopleSearchIndex read (ByteBuffer buf) {
+      PeopleSearchIndex index = new PeopleSearchIndex();
+      for (int d = buf.getInt(); d > 0; --d)
+         index.addDocument(WarmSnapshot.readString(buf), WarmSnapshot.readString(buf), WarmSnapshot.readString(buf));
+      return index;
+   }//end read
+
+   /**
+    * Writes the current document of every user for read.
+    *
+    * @param out the snapshot being written
+    * @throws java.io.IOException when failed to write
+    */
+   void writeTo (DataOutputStream out) throws IOException {
+      this._lock.readLock().lock();
+      try {
+         out.writeInt(this._current.size());
+         for (int d : this._current.values()) {
+            WarmSnapshot.writeString(out, this._userIds[d]);
+            WarmSnapshot.writeString(out, this._names[d]);
+            WarmSnapshot.writeString(out, this._emails[d]);
+         }
+      } finally {
+         this._lock.readLock().unlock();
+      }
+   }//end writeTo
+
+   /**
+    * Adds a new user or replaces the searchable fields of an existing one.
+    *
+    * @param userId the user id
+    * @param name the full name, may be null
+    * @param email the email, may be null
+    */
+   public void put (String userId, String name, String email) {
+      this._lock.writeLock().lock();
+      try {
+         addDocument(userId, name, email);
+      } finally {
+         this._lock.writeLock().unlock();
+      }
+   }//end put
+
+   /**
+    * Returns the stored name and email of a user, so callers can change one
+    * of them and put() the result back.
+    *
+    * @param userId the user id
+    * @return {userId, name, email} or null when the user is not indexed
+    */
+   public String[] get (String userId) {
+      this._lock.readLock().lock();
+      try {
+         Integer doc = this._current.get(userId);
+         if (doc == null)
+            return null;
+         int d = doc.intValue();
+         return new String[] { this._userIds[d], this._names[d], this._emails[d] };
+      } finally {
+         this._lock.readLock().unlock();
+      }
+   }//end get
+
+   /**
+    * Searches userIds and names for a case insensitive substring.
+    *
+    * @param term the text to look for
+    * @param offset number of leading ranked results to skip
+    * @param limit maximum number of results to return
+    * @return the requested page of ranked results and the total match count
+    */
+   public Page search (String term, int offset, int limit) {
+      final String q = term.trim().toLowerCase(Locale.ROOT);
+      this._lock.readLock().lock();
+      try {
+         List<Hit> hits = new ArrayList<Hit>();
+         if (q.length() < 2) {
+            for (int d = 0; d < this._docCount; ++d)
+               collect(d, q, hits);
+         } else {
+            int[] candidates = candidates(q);
+            for (int i = 0; i < candidates.length; ++i)
+               collect(candidates[i], q, hits);
+         }
+         Collections.sort(hits, RANKING);
+
+         int from = Math.min(Math.max(0, offset), hits.size());
+         int to = Math.min(hits.size(), from + Math.max(0, limit));
+         List<String[]> rows = new ArrayList<String[]>(to - from);
+         for (int i = from; i < to; ++i) {
+            int d = hits.get(i).doc;
+            rows.add(new String[] { this._userIds[d], this._names[d], this._emails[d] });
+         }
+         return new Page(rows, hits.size());
+      } finally {
+         this._lock.readLock().unlock();
+      }
+   }//end search
+
+   /**
+    * @return the number of searchable users
+    */
+   public int size () {
+      this._lock.readLock().lock();
+      try {
+         return this._current.size();
+      } finally {
+         this._lock.readLock().unlock();
+      }
+   }//end size
+
+   /**
+    * @return the number of document numbers in all posting lists
+    */
+   public long postingCount () {
+      this._lock.readLock().lock();
+      try {
+         long n = 0;
+         for (Postings p : this._postings.values())
+            n += p.size;
+         return n;
+      } finally {
+         this._lock.readLock().unlock();
+      }
+   }//end postingCount
+
+   /**
+    * @return the user id of every indexed user
+    */
+   public List<String> userIds () {
+      this._lock.readLock().lock();
+      try {
+         return new ArrayList<String>(this._current.keySet());
+      } finally {
+         this._lock.readLock().unlock();
+      }
+   }//end userIds
+
+   // intersects the posting lists of every trigram of the term, or takes the
+   // list of its bigram when it has two characters
+   private int[] candidates (String q) {
+      long[] grams = (q.length() == 2) ? bigrams(q) : trigrams(q);
+      Postings[] lists = new Postings[grams.length];
+      for (int i = 0; i < grams.length; ++i) {
+         lists[i] = this._postings.get(grams[i]);
+         if (lists[i] == null)
+            return new int[0];
+      }
+      Arrays.sort(lists, new Comparator<Postings>() {
+         public int compare (Postings a, Postings b) {
+            return a.size - b.size;
+         }
+      });
+      int[] result = Arrays.copyOf(lists[0].docs, lists[0].size);
+      int n = result.length;
+      for (int i = 1; i < lists.length && n > 0; ++i) {
+         Postings p = lists[i];
+         int write = 0, j = 0;
+         for (int k = 0; k < n; ++k) {
+            int d = result[k];
+            // posting lists are sorted, so binary search forward from the last hit
+            int pos = Arrays.binarySearch(p.docs, j, p.size, d);
+            if (pos >= 0) {
+               result[write++] = d;
+               j = pos + 1;
+            } else {
+               j = -pos - 1;
+            }
+         }
+         n = write;
+      }//end for
+      return Arrays.copyOf(result, n);
+   }//end candidates
+
+   // verifies a candidate document and scores it
+   private void collect (int d, String q, List<Hit> hits) {
+      String userId = this._userIds[d];
+      String id = userId.toLowerCase(Locale.ROOT);
+      String name = (this._names[d] == null) ? "" : this._names[d].toLowerCase(Locale.ROOT);
+      int inId = id.indexOf(q);
+      int inName = name.indexOf(q);
+      if (inId < 0 && inName < 0)
+         return;
+
+      int tier;
+      if (id.equals(q))
+         tier = 0;
+      else if (inId == 0 || inName == 0 || name.indexOf(" " + q) >= 0)
+         tier = 1;
+      else
+         tier = 2;
+      // share of the shortest matching field covered by the term
+      int len = Integer.MAX_VALUE;
+      if (inId >= 0)
+         len = id.length();
+      if (inName >= 0)
+         len = Math.min(len, name.length());
+      hits.add(new Hit(d, tier, (double) q.length() / Math.max(1, len), userId));
+   }//end collect
+
+   // the caller holds the write lock, or is the loader
+   private void addDocument (String userId, String name, String email) {
+      Integer existing = this._current.get(userId);
+      if (existing != null) {
+         replaceDocument(existing.intValue(), name, email);
+         return;
+      }
+      int d = this._docCount++;
+      if (d == this._userIds.length) {
+         int cap = d * 2;
+         this._userIds = Arrays.copyOf(this._userIds, cap);
+         this._names = Arrays.copyOf(this._names, cap);
+         this._emails = Arrays.copyOf(this._emails, cap);
+      }
+      this._userIds[d] = userId;
+      this._names[d] = name;
+      this._emails[d] = email;
+      this._current.put(userId, d);
+      // new documents have the highest number, so appending keeps lists sorted
+      for (long g : grams(userId, name)) {
+         Postings p = this._postings.get(g);
+         if (p == null)
+            this._postings.put(g, p = new Postings());
+         p.add(d);
+      }
+   }//end addDocument
+
+   // moves document d to the grams of its new name, in place
+   private void replaceDocument (int d, String name, String email) {
+      if (same(this._names[d], name) && same(this._emails[d], email))
+         return;
+      long[] before = grams(this._userIds[d], this._names[d]);
+      long[] after = grams(this._userIds[d], name);
+      this._names[d] = name;
+      this._emails[d] = email;
+      // both are sorted and unique: walk them like a merge
+      int i = 0, j = 0;
+      while (i < before.length || j < after.length) {
+         if (j == after.length || (i < before.length && before[i] < after[j])) {
+            Postings p = this._postings.get(before[i++]);
+            p.remove(d);
+            if (p.size == 0)
+               this._postings.remove(before[i - 1]);
+         } else if (i == before.length || after[j] < before[i]) {
+            Postings p = this._postings.get(after[j]);
+            if (p == null)
+               this._postings.put(after[j], p = new Postings());
+            p.insert(d);
+            ++j;
+         } else {
+            ++i;
+            ++j;
+         }
+      }//end while
+   }//end replaceDocument
+
+   private static boolean same (String a, String b) {
+      return (a == null) ? b == null : a.equals(b);
+   }//end same
+
+   // the sorted, unique trigrams and bigrams of a user's userId and name
+   private static long[] grams (String userId, String name) {
+      String id = userId.toLowerCase(Locale.ROOT);
+      String n = (name == null) ? "" : name.toLowerCase(Locale.ROOT);
+      long[][] parts = { trigrams(id), bigrams(id), trigrams(n), bigrams(n) };
+      int count = 0;
+      for (long[] part : parts)
+         count += part.length;
+      long[] all = new long[count];
+      int k = 0;
+      for (long[] part : parts) {
+         System.arraycopy(part, 0, all, k, part.length);
+         k += part.length;
+      }
+      Arrays.sort(all);
+      int unique = 0;
+      for (int i = 0; i < all.length; ++i)
+         if (unique == 0 || all[unique - 1] != all[i])
+            all[unique++] = all[i];
+      return Arrays.copyOf(all, unique);
+   }//end grams
+
+   // every three character window of s packed into a long, 16 bits per char
+   private static long[] trigrams (String s) {
+      if (s.length() < 3)
+         return new long[0];
+      long[] grams = new long[s.length() - 2];
+      for (int i = 0; i < grams.length; ++i)
+         grams[i] = ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+      return grams;
+   }//end trigrams
+
+   // every two character window of s, tagged above the 48 bits of a trigram
+   private static long[] bigrams (String s) {
+      if (s.length() < 2)
+         return new long[0];
+      long[] grams = new long[s.length() - 1];
+      for (int i = 0; i < grams.length; ++i)
+         grams[i] = (1L << 48) | ((long) s.charAt(i) << 16) | s.charAt(i + 1);
+      return grams;
+   }//end bigrams
+
+   private static final Comparator<Hit> RANKING = new Comparator<Hit>() {
+      public int compare (Hit a, Hit b) {
+         if (a.tier != b.tier)
+            return a.tier - b.tier;
+         if (a.similarity != b.similarity)
+            return (a.similarity > b.similarity) ? -1 : 1;
+         return a.userId.compareTo(b.userId);
+      }
+   };
+
+   /**
+    * One page of search results.
+    */
+   public static final class Page {
+      // {userId, name, email} of every result on the page
+      public final List<String[]> rows;
+      // number of matches over all pages
+      public final int total;
+
+      Page (List<String[]> rows, int total) {
+         this.rows = rows;
+         this.total = total;
+      }
+   }//end Page
+
+   private static final class Hit {
+      final int doc;
+      final int tier;
+      final double similarity;
+      final String userId;
+
+      Hit (int doc, int tier, double similarity, String userId) {
+         this.doc = doc;
+         this.tier = tier;
+         this.similarity = similarity;
+         this.userId = userId;
+      }
+   }//end Hit
+
+   // a growable sorted list of document numbers
+   private static final class Postings {
+      int[] docs = new int[4];
+      int size = 0;
+
+      void add (int d) {
+         if (this.size == this.docs.length)
+            this.docs = Arrays.copyOf(this.docs, this.size * 2);
+         this.docs[this.size++] = d;
+      }
+
+      void insert (int d) {
+         int pos = Arrays.binarySearch(this.docs, 0, this.size, d);
+         if (pos >= 0)
+            return;
+         pos = -pos - 1;
+         if (this.size == this.docs.length)
+            this.docs = Arrays.copyOf(this.docs, this.size * 2);
+         System.arraycopy(this.docs, pos, this.docs, pos + 1, this.size - pos);
+         this.docs[pos] = d;
+         ++this.size;
+      }
+
+      void remove (int d) {
+         int pos = Arrays.binarySearch(this.docs, 0, this.size, d);
+         if (pos < 0)
+            return;
+         System.arraycopy(this.docs, pos + 1, this.docs, pos, this.size - pos - 1);
+         --this.size;
+      }
+   }//end Postings
+
+}//end PeopleSearchIndex
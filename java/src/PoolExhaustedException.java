@@ -0,0 +1,34 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLTransientException;
+
+/**
+ * Thrown by ConnectionPool.borrow when no connection became free in time.
+ * Nothing was sent to the database, so the work can safely be retried
+ * elsewhere. The SQLSTATE is 53300 (too_many_connections).
+ */
+public class PoolExhaustedException extends SQLTransientException {
+
+   private static final long serialVersionUID = 1L;
+
+   /**
+    * @param waitMs how long the borrower waited
+    * @param maxSize the size limit of the pool
+    */
+   public PoolExhaustedException (long waitMs, int maxSize) {
+      super(String.format("Timed out after %d ms waiting for a database connection (pool max %d)",
+                          waitMs, maxSize), "53300");
+   }//end PoolExhaustedException
+
+}//end PoolExhaustedException
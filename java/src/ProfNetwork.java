@@ -15,16 +15,28 @@
  */
 
 
-import java.sql.DriverManager;
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.sql.Types;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -33,17 +45,116 @@ import java.util.ArrayList;
  */
 public class ProfNetwork {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by every query method.
+   private ConnectionPool _pool = null;
 
-   // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
+   // streaming replicas serving the read only queries, null unless profnetwork.replicas is set.
+   private ReplicaRouter _replicas = null;
+
+   // bounded executor of the async query methods, see submit.
+   private ThreadPoolExecutor _async = null;
+
+   // write behind queue for SendMessage, null unless profnetwork.messages.async=true.
+   private MessageQueue _messageQueue = null;
+
+   // read through cache of USR profiles, sized by profnetwork.profileCache.size
+   // (default 10000) and expired after profnetwork.profileCache.ttlMs (default 60000).
+   private final ProfileCache _profiles = new ProfileCache(
+      Integer.getInteger("profnetwork.profileCache.size", 10000),
+      Long.getLong("profnetwork.profileCache.ttlMs", 60000L));
+
+   // background purge of fully deleted messages, null unless started.
+   private MessagePurger _purger = null;
+
+   // latency, row and error counters of the query methods and menu operations.
+   private final Metrics _metrics = new Metrics();
+
+   // Bloom filter of every USR userId, built at startup by buildUserFilter
+   // when profnetwork.bloom.enabled=true, the database time in ms up to which
+   // it has seen new users, and the local time of its last refresh.
+   private volatile BloomFilter _userFilter = null;
+   private volatile long _userFilterSyncedAt = 0;
+   private long _userFilterRefreshedAt = 0;
+   private final Object _userFilterLock = new Object();
+   static final long BLOOM_REFRESH_MS = Long.getLong("profnetwork.bloom.refreshMs", 1000L);
+
+   // in memory index of accepted connections, loaded on first use.
+   private volatile SocialGraph _graph = null;
+
+   // database time in ms up to which the graph has seen CONNECTION_USR
+   // changes, and the local time of its last refresh.
+   private volatile long _graphSyncedAt = 0;
+   private long _graphRefreshedAt = 0;
+   private final Object _graphRefreshLock = new Object();
+
+   // the graph is caught up on connections changed by other clients at most
+   // every GRAPH_REFRESH_MS before it answers a question.
+   static final long GRAPH_REFRESH_MS = Long.getLong("profnetwork.graph.refreshMs", 1000L);
+
+   // in memory trigram index of USR for SearchPeople, loaded on first use.
+   private volatile PeopleSearchIndex _searchIndex = null;
+
+   // database time in ms up to which the search index has seen USR changes,
+   // and the local time of its last refresh.
+   private volatile long _searchSyncedAt = 0;
+   private long _searchRefreshedAt = 0;
+   private final Object _searchRefreshLock = new Object();
+
+   // snapshot file of the graph and the search index, null unless warmStart
+   // was called, and the database time in ms up to which both are current.
+   private volatile File _snapshotFile = null;
+   private volatile long _syncedAt = 0;
+   private final Object _snapshotLock = new Object();
+   private Timer _snapshotTimer = null;
+
+   // rows changed up to this long before a watermark are read again when
+   // catching up, for transactions that had not committed at the watermark.
+   static final long SNAPSHOT_OVERLAP_MS = Long.getLong("profnetwork.snapshot.overlapSec", 60L) * 1000L;
+
+   // SearchPeople is served by the pg_trgm indexes from create_indexes.sql
+   // unless profnetwork.search.inMemory=true, in which case it uses the in
+   // memory index, caught up on USR changes at most every SEARCH_REFRESH_MS.
+   static final boolean SEARCH_IN_MEMORY = Boolean.getBoolean("profnetwork.search.inMemory");
+   static final long SEARCH_REFRESH_MS = Long.getLong("profnetwork.search.refreshMs", 1000L);
+
+   // number of rows pulled per round trip by the streaming query methods.
+   static final int FETCH_SIZE = Integer.getInteger("profnetwork.fetchSize", 256);
+
+   // CONNECTION_USR and MESSAGE store users by their integer uid: this
+   // subquery looks up the uid of the userId bound to its parameter, and is
+   // NULL for an unknown user.
+   static final String UID = "(SELECT uid FROM USR WHERE userId = ?)";
 
    /**
     * Creates a new instance of ProfNetwork
     *
+    * The connection pool is sized with the system properties
+    * profnetwork.pool.min (default 1), profnetwork.pool.max (default 8),
+    * profnetwork.pool.borrowTimeoutMs (default 5000),
+    * profnetwork.pool.idleTimeoutMs (default 300000),
+    * profnetwork.pool.validateAfterMs (default 1000) and
+    * profnetwork.pool.statementCacheSize (default 64).
+    *
+    * With profnetwork.messages.async=true messages are written by a
+    * MessageQueue holding up to profnetwork.messages.queueSize (default
+    * 10000) messages, written profnetwork.messages.batchSize (default 500)
+    * at a time; senders wait up to profnetwork.messages.offerTimeoutMs
+    * (default 1000) for room in a full queue.
+    *
+    * With profnetwork.replicas=host:port[,host:port...] the read only query
+    * methods run on those streaming replicas of the same database whenever
+    * one is healthy and fresh enough, see ReplicaRouter. Updates,
+    * executeUpdateReturning and getCurrSeqVal always run on the primary.
+    *
+    * The async query methods run on up to profnetwork.async.threads
+    * (default profnetwork.pool.max) threads, with up to
+    * profnetwork.async.queueSize (default 256) tasks waiting; when the
+    * queue is full the submitting thread runs the task itself.
+    *
+    * Every query method honors the Deadline of the calling thread; the menu
+    * operations get theirs from profnetwork.budget.<operation>Ms and
+    * profnetwork.budgetMs (default 30000).
+    *
     * @param hostname the MySQL or PostgreSQL server hostname
     * @param database the name of the database
     * @param username the user name used to login to the database
@@ -58,8 +169,50 @@ public class ProfNetwork {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the pool of physical connections
+         this._pool = new ConnectionPool(url, user, passwd,
+            Integer.getInteger("profnetwork.pool.min", 1),
+            Integer.getInteger("profnetwork.pool.max", 8),
+            Long.getLong("profnetwork.pool.borrowTimeoutMs", 5000L),
+            Long.getLong("profnetwork.pool.idleTimeoutMs", 300000L),
+            Long.getLong("profnetwork.pool.validateAfterMs", 1000L),
+            Integer.getInteger("profnetwork.pool.statementCacheSize", 64));
+         List<String> replicas = ReplicaRouter.urls(System.getProperty("profnetwork.replicas"), dbname);
+         if (!replicas.isEmpty()) {
+            this._replicas = new ReplicaRouter(replicas, user, passwd,
+               Integer.getInteger("profnetwork.replicas.poolMax", Integer.getInteger("profnetwork.pool.max", 8)),
+               Long.getLong("profnetwork.replicas.maxStalenessMs", 5000L),
+               Long.getLong("profnetwork.replicas.healthCheckMs", 1000L));
+            System.out.println("Replicas: " + replicas);
+         }
+         if (Boolean.getBoolean("profnetwork.messages.async"))
+            this._messageQueue = new MessageQueue(this._pool,
+               Integer.getInteger("profnetwork.messages.queueSize", 10000),
+               Integer.getInteger("profnetwork.messages.batchSize", 500),
+               Long.getLong("profnetwork.messages.offerTimeoutMs", 1000L));
+         final int threads = Integer.getInteger("profnetwork.async.threads", Integer.getInteger("profnetwork.pool.max", 8));
+         this._async = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(Integer.getInteger("profnetwork.async.queueSize", 256)),
+            new ThreadFactory() {
+               private final AtomicInteger _count = new AtomicInteger();
+               public Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, "ProfNetwork-async-" + this._count.incrementAndGet());
+                  t.setDaemon(true);
+                  return t;
+               }
+            },
+            new RejectedExecutionHandler() {
+               public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                  // run in the caller while the queue is full, fail once shut down
+                  if (executor.isShutdown())
+                     ((Future<?>) r).cancel(false);
+                  else
+                     r.run();
+               }
+            });
+         this._async.allowCoreThreadTimeOut(true);
+         this._metrics.register();
+         this._metrics.startDump(Long.getLong("profnetwork.metrics.dumpSec", 0L));
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -69,173 +222,1648 @@ public class ProfNetwork {
    }//end ProfNetwork
 
    /**
-    * Method to execute an update SQL statement.  Update SQL instructions
-    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+    * Method to execute an update SQL statement.  Update SQL instructions
+    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+    *
+    * @param sql the input SQL string
+    * @throws java.sql.SQLException when update failed
+    */
+   public void executeUpdate (String sql) throws SQLException {
+      long start = System.nanoTime ();
+      long rows = -1;
+      String template = Metrics.template (sql);
+      Connection conn = borrow (this._pool, "executeUpdate", template, start);
+      try {
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
+         try {
+            Deadline.Guard guard = Deadline.watch (stmt, template);
+            try {
+               // issues the update instruction
+               rows = stmt.executeUpdate (sql);
+            } catch (SQLException e) {
+               throw guard.translate (e);
+            } finally {
+               guard.close ();
+            }
+         } finally {
+            // close the instruction
+            stmt.close ();
+         }
+      } finally {
+         this._pool.release (conn);
+         this._metrics.statement ("executeUpdate", template, start, rows);
+         wrote ();
+      }
+   }//end executeUpdate
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and outputs the results to
+    * standard out.
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query) throws SQLException {
+      ConnectionPool pool = readPool ();
+      boolean[] printed = new boolean[1];
+      try {
+         return executeQueryAndPrintResult (pool, query, printed);
+      } catch (SQLException e) {
+         // rows already on the screen cannot be taken back, so only a print
+         // that failed before writing anything is retried
+         if (printed[0] || !failOver (pool, e))
+            throw e;
+         return executeQueryAndPrintResult (this._pool, query, printed);
+      }
+   }//end executeQueryAndPrintResult
+
+   // printed[0] is set once any part of the table has been written
+   private int executeQueryAndPrintResult (ConnectionPool pool, String query, boolean[] printed) throws SQLException {
+      long start = System.nanoTime ();
+      long rows = -1;
+      String template = Metrics.template (query);
+      Connection conn = borrow (pool, "executeQueryAndPrintResult", template, start);
+      try {
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
+         try {
+            Deadline.Guard guard = Deadline.watch (stmt, template);
+            TableRenderer table = null;
+            try {
+               // issues the query instruction
+               ResultSet rs = stmt.executeQuery (query);
+
+               /*
+                ** obtains the metadata object for the returned result set.  The metadata
+                ** contains row and column info.
+                */
+               ResultSetMetaData rsmd = rs.getMetaData ();
+               int numCol = rsmd.getColumnCount ();
+               String[] header = new String[numCol];
+               for (int i = 1; i <= numCol; i++)
+                  header[i - 1] = rsmd.getColumnName(i);
+
+               // iterates through the result set and output them to standard out.
+               table = new TableRenderer(System.out, header);
+               String[] row = new String[numCol];
+               while (rs.next()){
+                  for (int i=1; i<=numCol; ++i)
+                     row[i - 1] = rs.getString (i);
+                  table.addRow(row);
+               }//end while
+               table.flush();
+               rows = table.getRowCount();
+               return table.getRowCount();
+            } catch (SQLException e) {
+               throw guard.translate (e);
+            } finally {
+               guard.close ();
+               printed[0] = table != null && table.hasPrinted ();
+            }
+         } finally {
+            stmt.close ();
+         }
+      } finally {
+         pool.release (conn);
+         this._metrics.statement ("executeQueryAndPrintResult", template, start, rows);
+      }
+   }//end executeQuery
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the results as
+    * a list of records. Each record in turn is a list of attribute values
+    *
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      ConnectionPool pool = readPool ();
+      try {
+         return executeQueryAndReturnResult (pool, query);
+      } catch (SQLException e) {
+         if (!failOver (pool, e))
+            throw e;
+         return executeQueryAndReturnResult (this._pool, query);
+      }
+   }//end executeQueryAndReturnResult
+
+   private List<List<String>> executeQueryAndReturnResult (ConnectionPool pool, String query) throws SQLException {
+      long start = System.nanoTime ();
+      long rows = -1;
+      String template = Metrics.template (query);
+      Connection conn = borrow (pool, "executeQueryAndReturnResult", template, start);
+      try {
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
+         try {
+            Deadline.Guard guard = Deadline.watch (stmt, template);
+            try {
+               // issues the query instruction
+               ResultSet rs = stmt.executeQuery (query);
+               List<List<String>> result = readRows (rs);
+               rows = result.size ();
+               return result;
+            } catch (SQLException e) {
+               throw guard.translate (e);
+            } finally {
+               guard.close ();
+            }
+         } finally {
+            stmt.close ();
+         }
+      } finally {
+         pool.release (conn);
+         this._metrics.statement ("executeQueryAndReturnResult", template, start, rows);
+      }
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Reads the remaining rows of a result set as lists of column strings.
+    *
+    * @param rs the result set, positioned before its first unread row
+    * @return the rows
+    * @throws java.sql.SQLException when failed to read the result set
+    */
+   static List<List<String>> readRows (ResultSet rs) throws SQLException {
+      /*
+       ** obtains the metadata object for the returned result set.  The metadata
+       ** contains row and column info.
+       */
+      ResultSetMetaData rsmd = rs.getMetaData ();
+      int numCol = rsmd.getColumnCount ();
+
+      // iterates through the result set and saves the data returned by the query.
+      List<List<String>> result  = new ArrayList<List<String>>();
+      while (rs.next()){
+         List<String> record = new ArrayList<String>(numCol);
+         for (int i=1; i<=numCol; ++i)
+            record.add(rs.getString (i));
+         result.add(record);
+      }//end while
+      return result;
+   }//end readRows
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the number of results
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query) throws SQLException {
+      ConnectionPool pool = readPool ();
+      try {
+         return executeQuery (pool, query);
+      } catch (SQLException e) {
+         if (!failOver (pool, e))
+            throw e;
+         return executeQuery (this._pool, query);
+      }
+   }//end executeQuery
+
+   private int executeQuery (ConnectionPool pool, String query) throws SQLException {
+      long start = System.nanoTime ();
+      long rows = -1;
+      String template = Metrics.template (query);
+      Connection conn = borrow (pool, "executeQuery", template, start);
+      try {
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
+         try {
+            Deadline.Guard guard = Deadline.watch (stmt, template);
+            try {
+               // issues the query instruction
+               ResultSet rs = stmt.executeQuery (query);
+
+               int rowCount = 0;
+
+               // iterates through the result set and count nuber of results.
+               if(rs.next()){
+                  rowCount++;
+               }//end while
+               rows = rowCount;
+               return rowCount;
+            } catch (SQLException e) {
+               throw guard.translate (e);
+            } finally {
+               guard.close ();
+            }
+         } finally {
+            stmt.close ();
+         }
+      } finally {
+         pool.release (conn);
+         this._metrics.statement ("executeQuery", template, start, rows);
+      }
+   }//end executeQuery
+
+   /**
+    * Method to execute a parameterized update SQL statement. The statement
+    * is prepared once per pooled connection and reused from its cache.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      long rows = -1;
+      Connection conn = borrow (this._pool, "executeUpdate", sql, start);
+      try {
+         StatementCache cache = this._pool.statementCache (conn);
+         PreparedStatement stmt = cache.prepare (sql);
+         try {
+            bind (stmt, params);
+            Deadline.Guard guard = Deadline.watch (stmt, sql);
+            try {
+               int count = stmt.executeUpdate ();
+               rows = count;
+               return count;
+            } catch (SQLException e) {
+               throw guard.translate (e);
+            } finally {
+               guard.close ();
+            }
+         } catch (SQLException e) {
+            cache.evict (sql);
+            throw e;
+         }
+      } finally {
+         this._pool.release (conn);
+         this._metrics.statement ("executeUpdate", sql, start, rows);
+         wrote ();
+      }
+   }//end executeUpdate
+
+   /**
+    * Method to execute a parameterized query and return the results as a
+    * list of records. Each record in turn is a list of attribute values
+    *
+    * @param query the SQL template with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      ConnectionPool pool = readPool ();
+      try {
+         return returnResult (pool, "executeQueryAndReturnResult", query, params);
+      } catch (SQLException e) {
+         if (!failOver (pool, e))
+            throw e;
+         return returnResult (this._pool, "executeQueryAndReturnResult", query, params);
+      }
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute a parameterized INSERT, UPDATE or DELETE with a
+    * RETURNING clause and return the returned rows, so a write and the read
+    * of its outcome take a single round trip. Always runs on the primary.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the returned rows as a list of records
+    * @throws java.sql.SQLException when update failed
+    */
+   public List<List<String>> executeUpdateReturning (String sql, Object... params) throws SQLException {
+      try {
+         return returnResult (this._pool, "executeUpdateReturning", sql, params);
+      } finally {
+         wrote ();
+      }
+   }//end executeUpdateReturning
+
+   // runs a prepared statement producing rows and reads them all
+   private List<List<String>> returnResult (ConnectionPool pool, String method, String query, Object[] params) throws SQLException {
+      long start = System.nanoTime ();
+      long rows = -1;
+      Connection conn = borrow (pool, method, query, start);
+      try {
+         StatementCache cache = pool.statementCache (conn);
+         PreparedStatement stmt = cache.prepare (query);
+         try {
+            bind (stmt, params);
+            Deadline.Guard guard = Deadline.watch (stmt, query);
+            try {
+               ResultSet rs = stmt.executeQuery ();
+               try {
+                  List<List<String>> result = readRows (rs);
+                  rows = result.size ();
+                  return result;
+               } finally {
+                  rs.close ();
+               }
+            } catch (SQLException e) {
+               throw guard.translate (e);
+            } finally {
+               guard.close ();
+            }
+         } catch (SQLException e) {
+            cache.evict (query);
+            throw e;
+         }
+      } finally {
+         pool.release (conn);
+         this._metrics.statement (method, query, start, rows);
+      }
+   }//end returnResult
+
+   /**
+    * Method to run a task on the async executor, usually one or more calls
+    * of the query methods, so independent round trips overlap. The task
+    * reads replicas like the calling thread would: it inherits the
+    * caller's last write (see ReplicaRouter) and its Deadline.
+    *
+    * @param task the work to run
+    * @param <T> the type of its result
+    * @return the pending result; cancelling it cancels the running statement
+    */
+   public <T> QueryFuture<T> submit (final Callable<T> task) {
+      final long[] lastWrite = (this._replicas == null) ? null : this._replicas.lastWrite ();
+      final Deadline deadline = Deadline.current ();
+      QueryFuture<T> future = new QueryFuture<T> (new Callable<T> () {
+         public T call () throws Exception {
+            if (_replicas != null)
+               _replicas.inheritLastWrite (lastWrite);
+            Deadline outer = Deadline.enter (deadline);
+            try {
+               return task.call ();
+            } finally {
+               Deadline.restore (outer);
+            }
+         }
+      });
+      this._async.execute (future);
+      return future;
+   }//end submit
+
+   /**
+    * Async variant of executeQueryAndReturnResult(String, Object...).
+    *
+    * @param query the SQL template with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the pending query result as a list of records
+    */
+   public QueryFuture<List<List<String>>> executeQueryAndReturnResultAsync (final String query, final Object... params) {
+      return submit (new Callable<List<List<String>>> () {
+         public List<List<String>> call () throws SQLException {
+            return executeQueryAndReturnResult (query, params);
+         }
+      });
+   }//end executeQueryAndReturnResultAsync
+
+   /**
+    * Async variant of executeUpdate(String, Object...). The calling thread
+    * counts as having written as soon as the update is submitted, so its
+    * next reads go to the primary.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the pending number of rows affected
+    */
+   public QueryFuture<Integer> executeUpdateAsync (final String sql, final Object... params) {
+      wroteLater ();
+      return submit (new Callable<Integer> () {
+         public Integer call () throws SQLException {
+            return executeUpdate (sql, params);
+         }
+      });
+   }//end executeUpdateAsync
+
+   /**
+    * Method to execute a parameterized query under a deadline, see Deadline.
+    *
+    * @param deadline the deadline, or null for the calling thread's
+    * @param query the SQL template with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query, or
+    *         QueryTimeoutException when the deadline passed
+    */
+   public List<List<String>> executeQueryAndReturnResult (Deadline deadline, String query, Object... params) throws SQLException {
+      Deadline outer = Deadline.enter (deadline);
+      try {
+         return executeQueryAndReturnResult (query, params);
+      } finally {
+         Deadline.restore (outer);
+      }
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute a parameterized query under a deadline and return
+    * whether it produced any rows, see Deadline.
+    *
+    * @param deadline the deadline, or null for the calling thread's
+    * @param query the SQL template with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned, capped at one
+    * @throws java.sql.SQLException when failed to execute the query, or
+    *         QueryTimeoutException when the deadline passed
+    */
+   public int executeQuery (Deadline deadline, String query, Object... params) throws SQLException {
+      Deadline outer = Deadline.enter (deadline);
+      try {
+         return executeQuery (query, params);
+      } finally {
+         Deadline.restore (outer);
+      }
+   }//end executeQuery
+
+   /**
+    * Method to execute a parameterized update under a deadline, see Deadline.
+    *
+    * @param deadline the deadline, or null for the calling thread's
+    * @param sql the SQL template with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed, or
+    *         QueryTimeoutException when the deadline passed
+    */
+   public int executeUpdate (Deadline deadline, String sql, Object... params) throws SQLException {
+      Deadline outer = Deadline.enter (deadline);
+      try {
+         return executeUpdate (sql, params);
+      } finally {
+         Deadline.restore (outer);
+      }
+   }//end executeUpdate
+
+   /**
+    * Method to execute a parameterized update with a RETURNING clause under
+    * a deadline, see Deadline.
+    *
+    * @param deadline the deadline, or null for the calling thread's
+    * @param sql the SQL template with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the returned rows as a list of records
+    * @throws java.sql.SQLException when update failed, or
+    *         QueryTimeoutException when the deadline passed
+    */
+   public List<List<String>> executeUpdateReturning (Deadline deadline, String sql, Object... params) throws SQLException {
+      Deadline outer = Deadline.enter (deadline);
+      try {
+         return executeUpdateReturning (sql, params);
+      } finally {
+         Deadline.restore (outer);
+      }
+   }//end executeUpdateReturning
+
+   /**
+    * Method to execute a parameterized query and return whether it produced
+    * any rows (1) or not (0), like executeQuery(String).
+    *
+    * @param query the SQL template with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned, capped at one
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query, Object... params) throws SQLException {
+      ConnectionPool pool = readPool ();
+      try {
+         return executeQuery (pool, query, params);
+      } catch (SQLException e) {
+         if (!failOver (pool, e))
+            throw e;
+         return executeQuery (this._pool, query, params);
+      }
+   }//end executeQuery
+
+   private int executeQuery (ConnectionPool pool, String query, Object[] params) throws SQLException {
+      long start = System.nanoTime ();
+      long rows = -1;
+      Connection conn = borrow (pool, "executeQuery", query, start);
+      try {
+         StatementCache cache = pool.statementCache (conn);
+         PreparedStatement stmt = cache.prepare (query);
+         try {
+            bind (stmt, params);
+            Deadline.Guard guard = Deadline.watch (stmt, query);
+            try {
+               ResultSet rs = stmt.executeQuery ();
+               try {
+                  int count = rs.next() ? 1 : 0;
+                  rows = count;
+                  return count;
+               } finally {
+                  rs.close ();
+               }
+            } catch (SQLException e) {
+               throw guard.translate (e);
+            } finally {
+               guard.close ();
+            }
+         } catch (SQLException e) {
+            cache.evict (query);
+            throw e;
+         }
+      } finally {
+         pool.release (conn);
+         this._metrics.statement ("executeQuery", query, start, rows);
+      }
+   }//end executeQuery
+
+   /**
+    * Callback receiving the rows of a streamed query one at a time.
+    */
+   public interface RowHandler {
+      /**
+       * @param row the column values of the current row; the array is reused
+       *            for the next row, so copy it if it has to be kept
+       * @return false to stop reading further rows
+       * @throws java.sql.SQLException to abort the query
+       */
+      boolean handleRow (String[] row) throws SQLException;
+   }//end RowHandler
+
+   /**
+    * Method to open a streaming cursor over a parameterized query. The query
+    * runs as a server side cursor inside a transaction and its rows are
+    * fetched fetchSize per round trip instead of materializing the whole
+    * result, see QueryCursor. The returned cursor keeps its connection until
+    * closed.
+    *
+    * @param query the SQL template with ? placeholders
+    * @param fetchSize number of rows fetched per round trip
+    * @param offset number of leading rows to skip
+    * @param limit maximum number of rows to return, or 0 for no limit
+    * @param params the values bound to the placeholders, in order
+    * @return an open cursor positioned before the first row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public QueryCursor openCursor (String query, int fetchSize, long offset, long limit, Object... params) throws SQLException {
+      ConnectionPool pool = readPool ();
+      try {
+         return openCursor (pool, query, fetchSize, offset, limit, params);
+      } catch (SQLException e) {
+         if (!failOver (pool, e))
+            throw e;
+         return openCursor (this._pool, query, fetchSize, offset, limit, params);
+      }
+   }//end openCursor
+
+   private QueryCursor openCursor (ConnectionPool pool, String query, int fetchSize, long offset, long limit,
+                                   Object[] params) throws SQLException {
+      // the cursor returns the connection to the pool when it fails to open
+      return new QueryCursor (pool, borrow (pool, query), query, fetchSize, offset, limit, params);
+   }//end openCursor
+
+   /**
+    * Method to stream the rows of a parameterized query to a callback
+    * without holding the result in memory.
+    *
+    * @param query the SQL template with ? placeholders
+    * @param fetchSize number of rows fetched per round trip
+    * @param offset number of leading rows to skip
+    * @param limit maximum number of rows to return, or 0 for no limit
+    * @param handler receives each row; returning false stops the scan
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows passed to the handler
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryStreaming (String query, int fetchSize, long offset, long limit,
+                                     RowHandler handler, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      long rows = -1;
+      QueryCursor cursor;
+      try {
+         cursor = openCursor (query, fetchSize, offset, limit, params);
+      } catch (SQLException e) {
+         this._metrics.statement ("executeQueryStreaming", query, start, rows);
+         throw e;
+      }
+      try {
+         while (cursor.hasNext ()) {
+            if (!handler.handleRow (cursor.next ()))
+               break;
+         }//end while
+         rows = cursor.getRowCount ();
+         return cursor.getRowCount ();
+      } catch (IllegalStateException e) {
+         // QueryCursor wraps driver errors raised while fetching
+         if (e.getCause () instanceof SQLException)
+            throw (SQLException) e.getCause ();
+         throw e;
+      } finally {
+         cursor.close ();
+         this._metrics.statement ("executeQueryStreaming", query, start, rows);
+      }
+   }//end executeQueryStreaming
+
+   /**
+    * Method to stream the rows of a parameterized query under a deadline,
+    * which bounds the whole scan, see Deadline.
+    *
+    * @param deadline the deadline, or null for the calling thread's
+    * @param query the SQL template with ? placeholders
+    * @param fetchSize number of rows fetched per round trip
+    * @param offset number of leading rows to skip
+    * @param limit maximum number of rows to return, or 0 for no limit
+    * @param handler receives each row; returning false stops the scan
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows passed to the handler
+    * @throws java.sql.SQLException when failed to execute the query, or
+    *         QueryTimeoutException when the deadline passed
+    */
+   public int executeQueryStreaming (Deadline deadline, String query, int fetchSize, long offset, long limit,
+                                     RowHandler handler, Object... params) throws SQLException {
+      Deadline outer = Deadline.enter (deadline);
+      try {
+         return executeQueryStreaming (query, fetchSize, offset, limit, handler, params);
+      } finally {
+         Deadline.restore (outer);
+      }
+   }//end executeQueryStreaming
+
+   // borrows a pooled connection, counting a failure against the statement
+   private Connection borrow (ConnectionPool pool, String method, String template, long start) throws SQLException {
+      try {
+         return borrow (pool, template);
+      } catch (SQLException e) {
+         this._metrics.statement (method, template, start, -1);
+         throw e;
+      }
+   }//end borrow
+
+   // borrows a pooled connection, waiting no longer than the calling thread's deadline
+   private Connection borrow (ConnectionPool pool, String template) throws SQLException {
+      Deadline deadline = Deadline.current ();
+      if (deadline == null)
+         return pool.borrow ();
+      long ms = deadline.remainingMs ();
+      if (ms <= 0)
+         throw deadline.timeout (template, null);
+      try {
+         return pool.borrow (ms);
+      } catch (SQLException e) {
+         throw deadline.expired () ? deadline.timeout (template, e) : e;
+      }
+   }//end borrow
+
+   // the pool a read of the calling thread runs on: a replica when one is
+   // fresh enough, otherwise the primary
+   private ConnectionPool readPool () {
+      ConnectionPool replica = (this._replicas == null) ? null : this._replicas.pick ();
+      return (replica == null) ? this._pool : replica;
+   }//end readPool
+
+   // whether a read that failed on pool should be retried on the primary
+   private boolean failOver (ConnectionPool pool, SQLException e) {
+      return pool != this._pool && this._replicas.failOver (pool, e);
+   }//end failOver
+
+   // sends the calling thread's next reads to the primary until the replicas
+   // replayed the WAL position of its write
+   private void wrote () {
+      if (this._replicas == null)
+         return;
+      long position = 0;
+      try {
+         position = Long.parseLong (returnResult (this._pool, "walPosition", ReplicaRouter.WAL_POSITION_QUERY,
+                                                  new Object[0]).get (0).get (0));
+      } catch (SQLException e) {
+         // without the position reads stay on the primary for a while
+      }
+      this._replicas.wrote (position);
+   }//end wrote
+
+   // like wrote, for a write that has not run yet
+   private void wroteLater () {
+      if (this._replicas != null)
+         this._replicas.wrote (0);
+   }//end wroteLater
+
+   /**
+    * Binds positional parameters to a prepared statement.
+    *
+    * @param stmt the statement to bind
+    * @param params the values, Strings, Integers, Longs or null
+    * @throws java.sql.SQLException when a value cannot be bound
+    */
+   static void bind (PreparedStatement stmt, Object[] params) throws SQLException {
+      for (int i = 0; i < params.length; ++i) {
+         Object p = params[i];
+         if (p == null)
+            stmt.setNull (i + 1, Types.VARCHAR);
+         else if (p instanceof String)
+            stmt.setString (i + 1, (String) p);
+         else if (p instanceof Integer)
+            stmt.setInt (i + 1, ((Integer) p).intValue ());
+         else if (p instanceof Long)
+            stmt.setLong (i + 1, ((Long) p).longValue ());
+         else
+            stmt.setObject (i + 1, p);
+      }//end for
+   }//end bind
+
+   /**
+    * Method to fetch the last value from sequence. This
+    * method issues the query to the DBMS and returns the current
+    * value of sequence used for autogenerated keys
+    *
+    * Note that currval is tracked per database session, so this only sees
+    * values generated on the same pooled connection.
+    *
+    * @param sequence name of the DB sequence
+    * @return current value of a sequence
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int getCurrSeqVal(String sequence) throws SQLException {
+      Connection conn = this._pool.borrow ();
+      try {
+         Statement stmt = conn.createStatement ();
+         try {
+            ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+            if (rs.next())
+               return rs.getInt(1);
+            return -1;
+         } finally {
+            stmt.close ();
+         }
+      } finally {
+         this._pool.release (conn);
+      }
+   }
+
+   /**
+    * Returns the in memory social graph, loading it from CONNECTION_USR
+    * the first time it is needed. A loaded graph first reads the
+    * connections changed by any client since its last refresh, at most
+    * every profnetwork.graph.refreshMs (default 1000).
+    *
+    * @return the social graph
+    * @throws java.sql.SQLException when failed to load or refresh the graph
+    */
+   public SocialGraph socialGraph() throws SQLException {
+      SocialGraph graph = this._graph;
+      if (graph == null) {
+         synchronized (this) {
+            if (this._graph == null) {
+               // a full load is not bounded by the operation that first needs it
+               Deadline outer = Deadline.suspend();
+               try {
+                  long now = databaseTime();
+                  this._graph = SocialGraph.load(this);
+                  this._graphSyncedAt = now;
+               } finally {
+                  Deadline.restore(outer);
+               }
+            }
+            graph = this._graph;
+         }
+      }
+      refreshGraph(graph);
+      return graph;
+   }
+
+   /**
+    * Method to suggest new connections for a user, ranked by the number of
+    * mutual friends.
+    *
+    * @param user the user to make suggestions for
+    * @param k the maximum number of suggestions
+    * @return up to k suggestions, most mutual friends first
+    * @throws java.sql.SQLException when failed to load the social graph
+    */
+   public List<SocialGraph.Suggestion> suggestFriends(String user, int k) throws SQLException {
+      return socialGraph().suggestFriends(user, k);
+   }
+
+   /**
+    * Returns the in memory people search index, loading it from USR the
+    * first time it is needed.
+    *
+    * @return the search index
+    * @throws java.sql.SQLException when failed to load the index
+    */
+   public PeopleSearchIndex searchIndex() throws SQLException {
+      PeopleSearchIndex index = this._searchIndex;
+      if (index == null) {
+         synchronized (this) {
+            if (this._searchIndex == null) {
+               Deadline outer = Deadline.suspend();
+               try {
+                  long now = databaseTime();
+                  this._searchIndex = PeopleSearchIndex.load(this);
+                  this._searchSyncedAt = now;
+               } finally {
+                  Deadline.restore(outer);
+               }
+            }
+            index = this._searchIndex;
+         }
+      }
+      return index;
+   }
+
+   /**
+    * @return the search index if it has been loaded already, otherwise null
+    */
+   public PeopleSearchIndex loadedSearchIndex(){
+      return this._searchIndex;
+   }
+
+   /**
+    * Method to load the social graph and the people search index at startup
+    * from a WarmSnapshot file instead of scanning USR and CONNECTION_USR.
+    * After the snapshot is read, only the rows whose changedAt (see
+    * snapshot_changes.sql) is past its watermark are read to catch up.
+    * Without a usable snapshot both are loaded from the database and a
+    * snapshot is written for the next start.
+    *
+    * The snapshot is written again every intervalSec seconds, when
+    * positive, and by cleanup.
+    *
+    * @param file the snapshot file
+    * @param intervalSec seconds between snapshot writes, 0 to only write at cleanup
+    * @throws java.sql.SQLException when failed to load or catch up; the graph
+    *         and the index are then loaded on first use as without a snapshot
+    */
+   public void warmStart(File file, long intervalSec) throws SQLException {
+      WarmSnapshot snapshot = null;
+      try {
+         snapshot = WarmSnapshot.read(file);
+      } catch (IOException e) {
+         System.err.println(e.getMessage() + ", loading from the database");
+      }
+      try {
+         long now = databaseTime();
+         if (snapshot != null) {
+            synchronized (this) {
+               this._graph = snapshot.graph;
+               this._searchIndex = snapshot.index;
+            }
+            catchUp(snapshot.watermark);
+         } else {
+            socialGraph();
+            searchIndex();
+         }
+         this._syncedAt = now;
+         this._searchSyncedAt = now;
+         this._graphSyncedAt = now;
+      } catch (SQLException e) {
+         synchronized (this) {
+            this._graph = null;
+            this._searchIndex = null;
+         }
+         throw e;
+      }//end try
+      this._snapshotFile = file;
+      if (snapshot == null)
+         trySaveSnapshot();
+      if (intervalSec > 0) {
+         this._snapshotTimer = new Timer("WarmSnapshot", true);
+         this._snapshotTimer.schedule(new TimerTask() {
+            public void run() {
+               trySaveSnapshot();
+            }
+         }, intervalSec * 1000L, intervalSec * 1000L);
+      }//end if
+   }
+
+   /**
+    * Method to catch up on rows changed by other clients and write a fresh
+    * snapshot. Does nothing unless warmStart succeeded.
+    *
+    * @throws java.sql.SQLException when failed to catch up
+    * @throws java.io.IOException when failed to write the snapshot
+    */
+   public void saveSnapshot() throws SQLException, IOException {
+      File file = this._snapshotFile;
+      if (file == null)
+         return;
+      synchronized (this._snapshotLock) {
+         long now = databaseTime();
+         catchUp(this._syncedAt);
+         this._syncedAt = now;
+         WarmSnapshot.write(file, now, this._searchIndex, this._graph);
+      }
+   }
+
+   // a snapshot that cannot be written only makes the next start slower
+   private void trySaveSnapshot(){
+      try {
+         saveSnapshot();
+      } catch (Exception e) {
+         System.err.println("Snapshot not written: " + e.getMessage());
+      }
+   }
+
+   // the database clock in ms, which changedAt is set from
+   private long databaseTime() throws SQLException {
+      return Long.parseLong(executeQueryAndReturnResult(
+         "SELECT CAST(EXTRACT(EPOCH FROM clock_timestamp()) * 1000 AS bigint)").get(0).get(0));
+   }
+
+   // applies the USR and CONNECTION_USR rows changed since the given database
+   // time, less SNAPSHOT_OVERLAP_MS; replaying a row twice is harmless
+   private void catchUp(long since) throws SQLException {
+      final PeopleSearchIndex index = this._searchIndex;
+      final SocialGraph graph = this._graph;
+      Long from = Long.valueOf(since - SNAPSHOT_OVERLAP_MS);
+      executeQueryStreaming(
+         "SELECT userId, name, email FROM USR WHERE changedAt >= to_timestamp(CAST(? AS double precision) / 1000)",
+         FETCH_SIZE, 0, 0, new RowHandler() {
+            public boolean handleRow(String[] row) {
+               index.put(row[0], row[1], row[2]);
+               BloomFilter filter = _userFilter;
+               if (filter != null)
+                  filter.add(row[0]);
+               invalidateProfile(row[0]);
+               return true;
+            }
+         }, from);
+      catchUpGraph(graph, from);
+   }
+
+   // applies the CONNECTION_USR rows changed since the given database time
+   // in ms to the graph
+   private void catchUpGraph(final SocialGraph graph, Long from) throws SQLException {
+      executeQueryStreaming(
+         "SELECT u.userId, c.userId, s.status FROM CONNECTION_USR s" +
+         " JOIN USR u ON u.uid = s.userUid JOIN USR c ON c.uid = s.connectionUid" +
+         " WHERE s.changedAt >= to_timestamp(CAST(? AS double precision) / 1000)",
+         FETCH_SIZE, 0, 0, new RowHandler() {
+            public boolean handleRow(String[] row) {
+               if (row[2].equals("Accept"))
+                  graph.acceptRequest(row[0], row[1]);
+               else if (row[2].equals("Request"))
+                  graph.addRequest(row[0], row[1]);
+               else
+                  graph.rejectRequest(row[0], row[1]);
+               return true;
+            }
+         }, from);
+   }
+
+   // applies the CONNECTION_USR rows changed by any client since the last
+   // refresh, less SNAPSHOT_OVERLAP_MS, at most every GRAPH_REFRESH_MS
+   private void refreshGraph(SocialGraph graph) throws SQLException {
+      synchronized (this._graphRefreshLock) {
+         long started = System.currentTimeMillis();
+         if (started - this._graphRefreshedAt < GRAPH_REFRESH_MS)
+            return;
+         long now = databaseTime();
+         catchUpGraph(graph, Long.valueOf(this._graphSyncedAt - SNAPSHOT_OVERLAP_MS));
+         this._graphSyncedAt = now;
+         this._graphRefreshedAt = started;
+      }
+   }
+
+   // applies the USR rows changed by any client since the last refresh, less
+   // SNAPSHOT_OVERLAP_MS, at most every SEARCH_REFRESH_MS; users are never
+   // deleted by the application, so changed rows are all there is to see
+   private void refreshSearchIndex(final PeopleSearchIndex index) throws SQLException {
+      synchronized (this._searchRefreshLock) {
+         long started = System.currentTimeMillis();
+         if (started - this._searchRefreshedAt < SEARCH_REFRESH_MS)
+            return;
+         long now = databaseTime();
+         executeQueryStreaming(
+            "SELECT userId, name, email FROM USR WHERE changedAt >= to_timestamp(CAST(? AS double precision) / 1000)",
+            FETCH_SIZE, 0, 0, new RowHandler() {
+               public boolean handleRow(String[] row) {
+                  index.put(row[0], row[1], row[2]);
+                  return true;
+               }
+            }, Long.valueOf(this._searchSyncedAt - SNAPSHOT_OVERLAP_MS));
+         this._searchSyncedAt = now;
+         this._searchRefreshedAt = started;
+      }
+   }
+
+   /**
+    * Method to search users by a case insensitive substring of their user
+    * id or name. Results are ranked exact match first, then prefix matches,
+    * then by similarity, and returned one page at a time.
+    *
+    * @param term the text to look for
+    * @param offset number of leading results to skip
+    * @param limit maximum number of results to return
+    * @return the page of {userId, name, email} rows and the total match count
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public PeopleSearchIndex.Page searchPeople(String term, int offset, int limit) throws SQLException {
+      if (SEARCH_IN_MEMORY) {
+         PeopleSearchIndex index = searchIndex();
+         refreshSearchIndex(index);
+         return index.search(term, offset, limit);
+      }
+
+      // served by the i9/i10 trigram indexes; the term is matched literally,
+      // like the in memory index does, so its LIKE wildcards are escaped
+      String q = term.trim().toLowerCase();
+      String literal = likeEscape(q);
+      String contains = "%" + literal + "%";
+      String where = " FROM USR WHERE LOWER(userId) LIKE ? ESCAPE '!' OR LOWER(name) LIKE ? ESCAPE '!'";
+      List<List<String>> count = executeQueryAndReturnResult("SELECT COUNT(*)" + where, contains, contains);
+      List<List<String>> rows = executeQueryAndReturnResult(
+         "SELECT userId, name, email" + where +
+         " ORDER BY (LOWER(userId) = ?) DESC," +
+         " (LOWER(userId) LIKE ? ESCAPE '!' OR LOWER(name) LIKE ? ESCAPE '!' OR LOWER(name) LIKE ? ESCAPE '!') DESC," +
+         " GREATEST(similarity(LOWER(userId), ?), similarity(LOWER(COALESCE(name, '')), ?)) DESC, userId" +
+         " LIMIT ? OFFSET ?",
+         contains, contains, q, literal + "%", literal + "%", "% " + literal + "%", q, q, limit, offset);
+      List<String[]> page = new ArrayList<String[]>(rows.size());
+      for (List<String> row : rows)
+         page.add(row.toArray(new String[row.size()]));
+      return new PeopleSearchIndex.Page(page, Integer.parseInt(count.get(0).get(0)));
+   }
+
+   // escapes the LIKE wildcards % and _ in s for a pattern with ESCAPE '!';
+   // with an explicit escape character a backslash is an ordinary character
+   static String likeEscape(String s){
+      StringBuilder sb = new StringBuilder(s.length() + 8);
+      for (int i = 0; i < s.length(); ++i) {
+         char c = s.charAt(i);
+         if (c == '%' || c == '_' || c == '!')
+            sb.append('!');
+         sb.append(c);
+      }
+      return sb.toString();
+   }
+
+   /**
+    * Method to list the conversations of a user, most recently active first.
+    * Only messages visible to the user are considered (see ViewMessages for
+    * the deleteStatus states). Both branches are served by the
+    * (receiverUid, senderUid, sendTime, msgId) and (senderUid, receiverUid,
+    * sendTime, msgId) indexes.
+    *
+    * @param user the user whose inbox is listed
+    * @param limit maximum number of conversations
+    * @return rows of {partner, last activity, unread count, last message preview}
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> inbox(String user, int limit) throws SQLException {
+      return executeQueryAndReturnResult(
+         "SELECT u.userId, lastTime, unread, preview FROM (" +
+         " SELECT DISTINCT ON (partner) partner, sendTime AS lastTime," +
+         " SUM(unread) OVER (PARTITION BY partner) AS unread, LEFT(contents, 40) AS preview" +
+         " FROM (SELECT senderUid AS partner, msgId, contents, sendTime, CASE WHEN status = 'Read' THEN 0 ELSE 1 END AS unread" +
+         "       FROM MESSAGE WHERE receiverUid = " + UID + " AND deleteStatus IN (0, 1) AND status IN ('Sent', 'Delivered', 'Read')" +
+         "       UNION ALL" +
+         "       SELECT receiverUid, msgId, contents, sendTime, 0" +
+         "       FROM MESSAGE WHERE senderUid = " + UID + " AND deleteStatus IN (0, 2) AND status IN ('Sent', 'Delivered', 'Read')) V" +
+         " ORDER BY partner, sendTime DESC, msgId DESC) C" +
+         " JOIN USR u ON u.uid = C.partner" +
+         " ORDER BY lastTime DESC, u.userId LIMIT ?",
+         user, user, limit);
+   }
+
+   /**
+    * Method to fetch one page of a conversation, newest first, using keyset
+    * pagination on (sendTime, msgId). Each branch is an ordered range scan
+    * that stops after limit rows, so every page costs the same however long
+    * the conversation is.
+    *
+    * @param user the user reading the conversation
+    * @param partner the other party of the conversation
+    * @param beforeTime sendTime of the oldest message already shown, or null for the newest page
+    * @param beforeId msgId of the oldest message already shown
+    * @param limit maximum number of messages
+    * @return rows of {msgId, contents, sendTime, senderId}, newest first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> conversationPage(String user, String partner, String beforeTime, int beforeId, int limit) throws SQLException {
+      String time = (beforeTime == null) ? "infinity" : beforeTime;
+      int id = (beforeTime == null) ? Integer.MAX_VALUE : beforeId;
+      return executeQueryAndReturnResult(
+         "SELECT M.msgId, M.contents, M.sendTime, u.userId FROM (" +
+         " (SELECT msgId, contents, sendTime, senderUid FROM MESSAGE" +
+         "  WHERE receiverUid = " + UID + " AND senderUid = " + UID + " AND deleteStatus IN (0, 1) AND status IN ('Sent', 'Delivered', 'Read')" +
+         "  AND (sendTime, msgId) < (CAST(? AS timestamp), ?) ORDER BY sendTime DESC, msgId DESC LIMIT ?)" +
+         " UNION ALL" +
+         " (SELECT msgId, contents, sendTime, senderUid FROM MESSAGE" +
+         "  WHERE senderUid = " + UID + " AND receiverUid = " + UID + " AND deleteStatus IN (0, 2) AND status IN ('Sent', 'Delivered', 'Read')" +
+         // messages to oneself are already in the first branch
+         "  AND senderUid <> receiverUid" +
+         "  AND (sendTime, msgId) < (CAST(? AS timestamp), ?) ORDER BY sendTime DESC, msgId DESC LIMIT ?)) M" +
+         " JOIN USR u ON u.uid = M.senderUid" +
+         " ORDER BY M.sendTime DESC, M.msgId DESC LIMIT ?",
+         user, partner, time, id, limit, user, partner, time, id, limit, limit);
+   }
+
+   /**
+    * Method to mark every message a user received from a partner as read.
+    *
+    * @param user the receiving user
+    * @param partner the sender
+    * @return the number of messages that were unread
+    * @throws java.sql.SQLException when update failed
+    */
+   public int markConversationRead(String user, String partner) throws SQLException {
+      return executeUpdate(
+         "UPDATE MESSAGE SET status = 'Read' WHERE receiverUid = " + UID + " AND senderUid = " + UID + " AND status IN ('Sent', 'Delivered')",
+         user, partner);
+   }
+
+   // deletes for the user every message matched by the extra condition that
+   // is still visible to them: the sender's delete adds 1 to deleteStatus and
+   // the receiver's adds 2 (0 -> 1 or 2, then 3), a message to oneself goes
+   // straight to 3. The row lock of the UPDATE orders concurrent deletes by
+   // both parties, so neither transition is lost. Binds the user, then the
+   // partner.
+   private static final String DELETE_MESSAGES =
+      "UPDATE MESSAGE SET deleteStatus = CASE WHEN senderUid = receiverUid THEN 3" +
+      " WHEN senderUid = K.me THEN deleteStatus + 1 ELSE deleteStatus + 2 END" +
+      " FROM (SELECT " + UID + " AS me, " + UID + " AS partner) K" +
+      " WHERE ((senderUid = K.me AND receiverUid = K.partner AND deleteStatus IN (0, 2))" +
+      "     OR (receiverUid = K.me AND senderUid = K.partner AND deleteStatus IN (0, 1)))";
+
+   /**
+    * Method to delete messages of a conversation for one of its parties with
+    * a single UPDATE. The other party keeps seeing them until they delete
+    * them too. IDs that are not part of the conversation, or that the user
+    * already deleted, are left alone.
+    *
+    * @param user the user deleting the messages
+    * @param partner the other party of the conversation
+    * @param msgIds the messages to delete
+    * @return the IDs of the messages that were deleted
+    * @throws java.sql.SQLException when update failed
+    */
+   public List<Integer> deleteMessages(String user, String partner, List<Integer> msgIds) throws SQLException {
+      if (msgIds.isEmpty())
+         return new ArrayList<Integer>();
+      // pad the IN list to a power of two so only a few statement shapes get cached
+      int slots = Integer.highestOneBit(msgIds.size() - 1 | 1) << 1;
+      StringBuilder sql = new StringBuilder(DELETE_MESSAGES).append(" AND msgId IN (?");
+      Object[] params = new Object[2 + slots];
+      params[0] = user;
+      params[1] = partner;
+      for (int i = 0; i < slots; ++i) {
+         if (i > 0)
+            sql.append(", ?");
+         params[2 + i] = msgIds.get(Math.min(i, msgIds.size() - 1));
+      }
+      sql.append(") RETURNING msgId");
+      return deletedIds(executeUpdateReturning(sql.toString(), params));
+   }
+
+   /**
+    * Method to delete, for one of its parties, every message of a
+    * conversation still visible to them with a single UPDATE.
+    *
+    * @param user the user deleting the conversation
+    * @param partner the other party of the conversation
+    * @return the IDs of the messages that were deleted
+    * @throws java.sql.SQLException when update failed
+    */
+   public List<Integer> deleteConversation(String user, String partner) throws SQLException {
+      return deletedIds(executeUpdateReturning(DELETE_MESSAGES + " RETURNING msgId", user, partner));
+   }
+
+   /**
+    * Method to count the pending connection requests sent to a user, an
+    * index only scan of the partial (connectionUid, userUid) index.
+    *
+    * @param user the receiving user
+    * @return the number of pending requests
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int pendingRequestCount(String user) throws SQLException {
+      List<List<String>> rows = executeQueryAndReturnResult(
+         "SELECT COUNT(*) FROM CONNECTION_USR WHERE connectionUid = " + UID + " AND status = 'Request'", user);
+      return Integer.parseInt(rows.get(0).get(0));
+   }
+
+   /**
+    * Method to list one page of the pending connection requests sent to a
+    * user, ordered by sender, using keyset pagination on the sender's
+    * userId.
+    *
+    * @param user the receiving user
+    * @param after the last sender of the previous page, or null for the first page
+    * @param limit maximum number of requests
+    * @return the senders of the requests
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<String> pendingRequests(String user, String after, int limit) throws SQLException {
+      return firstColumn(executeQueryAndReturnResult(
+         "SELECT u.userId FROM CONNECTION_USR c JOIN USR u ON u.uid = c.userUid" +
+         " WHERE c.connectionUid = " + UID + " AND c.status = 'Request' AND u.userId > ?" +
+         " ORDER BY u.userId LIMIT ?",
+         user, (after == null) ? "" : after, limit));
+   }
+
+   /**
+    * Method to accept or reject pending connection requests sent to a user
+    * with one set based UPDATE, which is a single transaction. The social
+    * graph is updated for every request that changed.
+    *
+    * @param user the receiving user
+    * @param senders the senders whose requests to answer, or null for every pending request
+    * @param accept true to accept, false to reject
+    * @return the senders whose requests were answered
+    * @throws java.sql.SQLException when update failed
+    */
+   public List<String> answerRequests(String user, List<String> senders, boolean accept) throws SQLException {
+      StringBuilder sql = new StringBuilder("UPDATE CONNECTION_USR c SET status = CAST(? AS connection_status)")
+         .append(" FROM USR u WHERE u.uid = c.userUid AND c.connectionUid = ").append(UID)
+         .append(" AND c.status = 'Request'");
+      List<Object> params = new ArrayList<Object>();
+      params.add(accept ? "Accept" : "Reject");
+      params.add(user);
+      if (senders != null) {
+         if (senders.isEmpty())
+            return new ArrayList<String>();
+         // pad the IN list to a power of two so only a few statement shapes get cached
+         int slots = Integer.highestOneBit(senders.size() - 1 | 1) << 1;
+         sql.append(" AND u.userId IN (?");
+         for (int i = 0; i < slots; ++i) {
+            if (i > 0)
+               sql.append(", ?");
+            params.add(senders.get(Math.min(i, senders.size() - 1)));
+         }
+         sql.append(')');
+      }//end if
+      sql.append(" RETURNING u.userId");
+      List<String> answered = firstColumn(executeUpdateReturning(sql.toString(), params.toArray()));
+      SocialGraph graph = loadedSocialGraph();
+      for (int i = 0; i < answered.size(); ++i) {
+         String sender = answered.get(i);
+         if (graph == null)
+            continue;
+         if (accept)
+            graph.acceptRequest(sender, user);
+         else
+            graph.rejectRequest(sender, user);
+      }//end for
+      return answered;
+   }
+
+   private static List<Integer> deletedIds(List<List<String>> rows){
+      List<Integer> ids = new ArrayList<Integer>(rows.size());
+      for (List<String> row : rows)
+         ids.add(Integer.valueOf(row.get(0)));
+      return ids;
+   }
+
+   /**
+    * Method to build the Bloom filter of existing user ids with one
+    * streaming scan of USR, or from the people search index when it is
+    * loaded already (after warmStart). The filter is sized for
+    * profnetwork.bloom.expectedUsers (default twice the current users) at a
+    * false positive rate of profnetwork.bloom.fpp (default 0.01), unless
+    * profnetwork.bloom.bits fixes its size in bits.
+    *
+    * Users created by other clients are added when a lookup misses, see
+    * userMightExist.
+    *
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public void buildUserFilter() throws SQLException {
+      long now = databaseTime();
+      PeopleSearchIndex index = this._searchIndex;
+      List<String> indexed = (index == null) ? null : index.userIds();
+      if (indexed != null)
+         now = this._searchSyncedAt;
+      long users = (indexed != null) ? indexed.size()
+         : Long.parseLong(executeQueryAndReturnResult("SELECT COUNT(*) FROM USR").get(0).get(0));
+      long expected = Long.getLong("profnetwork.bloom.expectedUsers", Math.max(1024, 2 * users));
+      Long bits = Long.getLong("profnetwork.bloom.bits");
+      final BloomFilter filter = (bits == null)
+         ? BloomFilter.create(expected, Double.parseDouble(System.getProperty("profnetwork.bloom.fpp", "0.01")))
+         : new BloomFilter(bits, BloomFilter.optimalHashCount(expected, bits));
+      if (indexed != null) {
+         for (String userId : indexed)
+            filter.add(userId);
+      } else {
+         executeQueryStreaming("SELECT userId FROM USR", FETCH_SIZE, 0, 0, new RowHandler() {
+            public boolean handleRow(String[] row) {
+               filter.add(row[0]);
+               return true;
+            }
+         });
+      }//end if
+      synchronized (this._userFilterLock) {
+         this._userFilterSyncedAt = now;
+         this._userFilter = filter;
+      }
+   }
+
+   /**
+    * Method to check whether a user may exist without a round trip. When
+    * the filter misses, the users created since its last refresh (by any
+    * client) are added and it is asked again, so a user created elsewhere
+    * is reported missing for at most profnetwork.bloom.refreshMs (default
+    * 1000; 0 refreshes on every miss).
+    *
+    * @param userId the user id
+    * @return false only when the user does not exist; true when it may
+    *         exist or no filter has been built
+    * @throws java.sql.SQLException when failed to refresh the filter
+    */
+   public boolean userMightExist(String userId) throws SQLException {
+      BloomFilter filter = this._userFilter;
+      if (filter == null || filter.mightContain(userId))
+         return true;
+      refreshUserFilter(filter);
+      return filter.mightContain(userId);
+   }
+
+   // adds the users created since the last refresh, less SNAPSHOT_OVERLAP_MS
+   // for transactions that had not committed then
+   private void refreshUserFilter(final BloomFilter filter) throws SQLException {
+      synchronized (this._userFilterLock) {
+         long started = System.currentTimeMillis();
+         if (filter != this._userFilter || started - this._userFilterRefreshedAt < BLOOM_REFRESH_MS)
+            return;
+         long now = databaseTime();
+         executeQueryStreaming(
+            "SELECT userId FROM USR WHERE changedAt >= to_timestamp(CAST(? AS double precision) / 1000)",
+            FETCH_SIZE, 0, 0, new RowHandler() {
+               public boolean handleRow(String[] row) {
+                  filter.add(row[0]);
+                  return true;
+               }
+            }, Long.valueOf(this._userFilterSyncedAt - SNAPSHOT_OVERLAP_MS));
+         this._userFilterSyncedAt = now;
+         this._userFilterRefreshedAt = started;
+      }
+   }
+
+   /**
+    * Method to record a newly created user in the existence filter.
+    *
+    * @param userId the user id
+    */
+   public void userCreated(String userId){
+      BloomFilter filter = this._userFilter;
+      if (filter != null)
+         filter.add(userId);
+      invalidateProfile(userId);
+   }
+
+   /**
+    * Method to read a user profile through the profile cache.
+    *
+    * @param userId the user id
+    * @return the profile, or null when the user does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ProfileCache.UserProfile getProfile(String userId) throws SQLException {
+      ProfileCache.UserProfile profile = this._profiles.get(userId);
+      if (profile != null)
+         return profile;
+      long[] stamp = this._profiles.stamp();
+      List<List<String>> rows = executeQueryAndReturnResult(
+         "SELECT userId, email, name, dateOfBirth FROM USR WHERE userId = ?", userId);
+      if (rows.isEmpty())
+         return null;
+      profile = toProfile(rows.get(0));
+      this._profiles.put(profile, stamp);
+      return profile;
+   }
+
+   /**
+    * Method to read several user profiles through the profile cache. All
+    * misses are loaded with one query.
     *
-    * @param sql the input SQL string
-    * @throws java.sql.SQLException when update failed
+    * @param userIds the user ids
+    * @return the profiles of the users that exist, in the order asked for
+    * @throws java.sql.SQLException when failed to execute the query
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
-   }//end executeUpdate
+   public List<ProfileCache.UserProfile> getProfiles(List<String> userIds) throws SQLException {
+      ProfileCache.UserProfile[] found = new ProfileCache.UserProfile[userIds.size()];
+      List<String> missing = new ArrayList<String>();
+      for (int i = 0; i < found.length; ++i) {
+         found[i] = this._profiles.get(userIds.get(i));
+         if (found[i] == null)
+            missing.add(userIds.get(i));
+      }
+      if (!missing.isEmpty()) {
+         // pad the IN list to a power of two so only a few statement shapes get cached
+         int slots = Integer.highestOneBit(missing.size() - 1 | 1) << 1;
+         StringBuilder sql = new StringBuilder("SELECT userId, email, name, dateOfBirth FROM USR WHERE userId IN (?");
+         Object[] params = new Object[slots];
+         for (int i = 0; i < slots; ++i) {
+            if (i > 0)
+               sql.append(", ?");
+            params[i] = missing.get(Math.min(i, missing.size() - 1));
+         }
+         sql.append(')');
+         HashMap<String, ProfileCache.UserProfile> loaded = new HashMap<String, ProfileCache.UserProfile>();
+         long[] stamp = this._profiles.stamp();
+         for (List<String> row : executeQueryAndReturnResult(sql.toString(), params)) {
+            ProfileCache.UserProfile profile = toProfile(row);
+            this._profiles.put(profile, stamp);
+            loaded.put(profile.userId, profile);
+         }
+         for (int i = 0; i < found.length; ++i)
+            if (found[i] == null)
+               found[i] = loaded.get(userIds.get(i));
+      }//end if
+      List<ProfileCache.UserProfile> result = new ArrayList<ProfileCache.UserProfile>(found.length);
+      for (ProfileCache.UserProfile profile : found)
+         if (profile != null)
+            result.add(profile);
+      return result;
+   }
 
    /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * Method to list the accepted connections of a user, in either direction,
+    * with one range scan of the symmetric FRIEND edges (see
+    * friend_edges.sql). The profiles come from the same query and refresh
+    * the profile cache.
     *
-    * @param query the input query string
-    * @return the number of rows returned
+    * @param userId the user id
+    * @return the profiles of the user's friends
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   public List<ProfileCache.UserProfile> friendProfiles(String userId) throws SQLException {
+      long[] stamp = this._profiles.stamp();
+      List<List<String>> rows = executeQueryAndReturnResult(
+         "SELECT u.userId, u.email, u.name, u.dateOfBirth FROM FRIEND f JOIN USR u ON u.uid = f.friendUid" +
+         " WHERE f.userUid = " + UID + " ORDER BY f.friendUid",
+         userId);
+      List<ProfileCache.UserProfile> friends = new ArrayList<ProfileCache.UserProfile>(rows.size());
+      for (List<String> row : rows) {
+         ProfileCache.UserProfile profile = toProfile(row);
+         this._profiles.put(profile, stamp);
+         friends.add(profile);
+      }
+      return friends;
+   }
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
+   /**
+    * Method to read the number of friends of a user, kept in USR by the
+    * FRIEND triggers.
+    *
+    * @param userId the user id
+    * @return the number of friends, 0 for an unknown user
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int friendCount(String userId) throws SQLException {
+      List<List<String>> rows = executeQueryAndReturnResult(
+         "SELECT friendCount FROM USR WHERE userId = ?", userId);
+      return rows.isEmpty() ? 0 : Integer.parseInt(rows.get(0).get(0));
+   }
 
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-         if(outputHeader) {
-            for(int i = 1; i <= numCol; i++){
-            System.out.print(rsmd.getColumnName(i) + "\t");
-            }
-            System.out.println();
-            outputHeader = false;
-         }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print(rs.getString (i) + "\t");
-         System.out.println();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
-   }//end executeQuery
+   /**
+    * Method to drop a user's cached profile after its USR row changed.
+    *
+    * @param userId the user id
+    */
+   public void invalidateProfile(String userId){
+      this._profiles.invalidate(userId);
+   }
 
    /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the results as
-    * a list of records. Each record in turn is a list of attribute values
+    * Method to start purging fully deleted messages in the background, as
+    * configured by the profnetwork.purge.* properties (see MessagePurger).
     *
-    * @param query the input query string
-    * @return the query result as a list of records
-    * @throws java.sql.SQLException when failed to execute the query
+    * @param intervalSec seconds between purge runs
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public synchronized void startPurger(long intervalSec){
+      if (this._purger == null) {
+         this._purger = new MessagePurger(this);
+         this._purger.start(intervalSec);
+      }
+   }
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   /**
+    * @return the latency, row and error counters
+    */
+   public Metrics metrics(){
+      return this._metrics;
+   }
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
+   /**
+    * @return a one line summary of the profile cache counters
+    */
+   public String profileCacheStats(){
+      return this._profiles.stats();
+   }
 
-      // iterates through the result set and saves the data returned by the query.
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-         List<String> record = new ArrayList<String>();
-         for (int i=1; i<=numCol; ++i)
-            record.add(rs.getString (i));
-         result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
-   }//end executeQueryAndReturnResult
+   static List<String> firstColumn(List<List<String>> rows){
+      List<String> column = new ArrayList<String>(rows.size());
+      for (List<String> row : rows)
+         column.add(row.get(0));
+      return column;
+   }
+
+   private static ProfileCache.UserProfile toProfile(List<String> row){
+      return new ProfileCache.UserProfile(row.get(0), row.get(1), row.get(2), row.get(3));
+   }
 
    /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the number of results
-    *
-    * @param query the input query string
-    * @return the number of rows returned
-    * @throws java.sql.SQLException when failed to execute the query
+    * @return the social graph if it has been loaded already, otherwise null.
+    *         Writers use this to keep a loaded graph current without
+    *         forcing a load.
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+   public SocialGraph loadedSocialGraph(){
+      return this._graph;
+   }
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   /**
+    * @return the connection pool, for components that manage their own
+    *         transactions on borrowed connections
+    */
+   ConnectionPool pool(){
+      return this._pool;
+   }
 
-       int rowCount = 0;
+   /**
+    * @return a one line summary of the connection pool metrics
+    */
+   public String poolStats(){
+      return this._pool.stats ();
+   }
 
-       // iterates through the result set and count nuber of results.
-       if(rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+   /**
+    * @return the state of every replica and the read routing counters, or
+    *         null when no replica is configured
+    */
+   public String replicaStats(){
+      return (this._replicas == null) ? null : this._replicas.stats ();
    }
 
    /**
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * Method to send a message. With the write behind queue enabled the
+    * message is only queued here and the listener is called once it has
+    * been written; otherwise it is inserted right away and the listener is
+    * called before returning.
     *
-    * @param sequence name of the DB sequence
-    * @return current value of a sequence
-    * @throws java.sql.SQLException when failed to execute the query
+    * @param sender the sending user
+    * @param receiver the receiving user
+    * @param contents the message text
+    * @param listener told whether the message was stored, may be null
+    * @throws java.sql.SQLException when the message could not be queued or stored
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-      Statement stmt = this._connection.createStatement ();
-
-      ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-      if (rs.next())
-         return rs.getInt(1);
-      return -1;
+   public void sendMessage(String sender, String receiver, String contents,
+                           MessageQueue.DeliveryListener listener) throws SQLException {
+      if (this._messageQueue != null) {
+         this._messageQueue.send(sender, receiver, contents, listener);
+         wroteLater();
+         return;
+      }
+      executeUpdate("INSERT INTO MESSAGE (senderUid, receiverUid, contents, sendTime, deleteStatus, status) VALUES (" + UID + ", " + UID + ", ?, CURRENT_TIMESTAMP, 0, 'Delivered')", sender, receiver, contents);
+      if (listener != null)
+         listener.delivered(new MessageQueue.OutgoingMessage(sender, receiver, contents, listener));
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to flush queued messages and close the physical connections if
+    * they are open.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      if (this._purger != null){
+         this._purger.close ();
+      }//end if
+      this._metrics.close ();
+      if (this._messageQueue != null){
+         this._messageQueue.close ();
+      }//end if
+      if (this._snapshotTimer != null){
+         this._snapshotTimer.cancel ();
+      }//end if
+      if (this._snapshotFile != null){
+         trySaveSnapshot ();
+      }//end if
+      if (this._async != null){
+         // queued tasks are cancelled so nobody waits on them forever
+         for (Runnable r : this._async.shutdownNow ())
+            ((Future<?>) r).cancel (false);
+      }//end if
+      if (this._replicas != null){
+         this._replicas.close ();
+      }//end if
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
     * The main execution method
     *
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    *             optionally followed by --load <data directory> to bulk import
+    *             the CSV files, by --server <port> to serve the menus to
+    *             TCP clients instead of the console, or by --analytics
+    *             <output directory> to write network statistics as CSV
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      boolean load = args.length == 5 && args[3].equals("--load");
+      boolean server = args.length == 5 && args[3].equals("--server");
+      boolean analytics = args.length == 5 && args[3].equals("--analytics");
+      if (args.length != 3 && !load && !server && !analytics) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             ProfNetwork.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [--load <data directory> | --server <port> | --analytics <output directory>]");
          return;
       }//end if
 
-      Greeting();
+      Greeting(System.out);
       ProfNetwork esql = null;
       try{
          // use postgres JDBC driver.
@@ -245,51 +1873,60 @@ public class ProfNetwork {
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
+
+         if (load) {
+            // one pooled connection per loader thread
+            int workers = Integer.getInteger("profnetwork.load.workers", Runtime.getRuntime().availableProcessors());
+            if (System.getProperty("profnetwork.pool.max") == null)
+               System.setProperty("profnetwork.pool.max", Integer.toString(workers));
+            esql = new ProfNetwork(dbname, dbport, user, "");
+            new BulkLoader(esql.pool(), workers, Integer.getInteger("profnetwork.load.batchSize", 1000))
+               .loadAll(new File(args[4]));
+            return;
+         }//end if
          esql = new ProfNetwork(dbname, dbport, user, "");
+         if (analytics) {
+            GraphAnalytics.export(esql, new File(args[4]));
+            return;
+         }//end if
+         String snapshot = System.getProperty("profnetwork.snapshot.file");
+         if (snapshot != null) {
+            try {
+               esql.warmStart(new File(snapshot), Long.getLong("profnetwork.snapshot.intervalSec", 0L));
+            } catch (SQLException e) {
+               System.err.println("Warm start disabled: " + e.getMessage());
+            }
+         }
+         if (Boolean.getBoolean("profnetwork.bloom.enabled")) {
+            try {
+               esql.buildUserFilter();
+            } catch (SQLException e) {
+               System.err.println("User filter disabled: " + e.getMessage());
+            }
+         }
+         long purgeInterval = Long.getLong("profnetwork.purge.intervalSec", 0L);
+         if (purgeInterval > 0)
+            esql.startPurger(purgeInterval);
 
-         boolean keepon = true;
-         while(keepon) {
-            // These are sample SQL statements
-            System.out.println("\nMAIN MENU");
-            System.out.println("---------");
-            System.out.println("1. Create user");
-            System.out.println("2. Log in");
-            System.out.println("9. < EXIT");
-            String authorisedUser = null;
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
-            if (authorisedUser != null) {
-               boolean usermenu = true;
-               while(usermenu) {
-                  System.out.println("MAIN MENU");
-                  System.out.println("---------");
-                  System.out.println("1. Search People");
-                  System.out.println("2. View User Profile");
-                  System.out.println("3. Check Incoming Requests");
-                  System.out.println("4. View Friends");
-                  System.out.println("5. Send Message");
-                  System.out.println("6. View Messages");
-                  System.out.println("7. Update Profile");
-                  System.out.println(".........................");
-                  System.out.println("9. Log out");
-                  switch (readChoice()){
-                     case 1: SearchPeople(esql); break;
-                     case 2: ViewUserProfile(esql, authorisedUser); break;
-                     case 3: CheckIncomingRequests(esql, authorisedUser); break;
-                     case 4: ViewFriends(esql, authorisedUser); break;
-                     case 5: SendMessage(esql, authorisedUser); break;
-                     case 6: ViewMessages(esql, authorisedUser); break;
-                     case 7: UpdateProfile(esql, authorisedUser); break;
-                     case 9: usermenu = false; break;
-                     default : System.out.println("Unrecognized choice!"); break;
+         if (server) {
+            final ProfNetworkServer listener = new ProfNetworkServer(esql, Integer.parseInt(args[4]));
+            final Thread mainThread = Thread.currentThread();
+            // on Ctrl-C stop serving and let main flush and close the database
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+               public void run() {
+                  listener.close();
+                  try {
+                     mainThread.join(10000);
+                  } catch (InterruptedException e) {
+                     // ignored.
                   }
                }
-            }
-         }//end while
+            });
+            System.out.println("Listening on " + listener.getAddress());
+            listener.serve();
+         } else {
+            runSession(esql, Session.console());
+         }
       }catch(Exception e) {
          System.err.println (e.getMessage ());
       }finally{
@@ -306,53 +1943,133 @@ public class ProfNetwork {
       }//end try
    }//end main
 
-   public static void Greeting(){
-      System.out.println(
+   // the user menu operations by choice, for metrics and latency budgets
+   private static final String[] USER_OPERATIONS = {
+      "SearchPeople", "ViewUserProfile", "CheckIncomingRequests", "ViewFriends",
+      "SendMessage", "ViewMessages", "UpdateProfile", "PeopleYouMayKnow" };
+
+   /**
+    * Runs the login and user menus for one session until the user exits or
+    * the session input ends.
+    *
+    * @param esql the shared database
+    * @param io the session to read from and print to
+    */
+   public static void runSession (ProfNetwork esql, Session io) {
+      try {
+         boolean keepon = true;
+         while(keepon) {
+            // These are sample SQL statements
+            io.out.println("\nMAIN MENU");
+            io.out.println("---------");
+            io.out.println("1. Create user");
+            io.out.println("2. Log in");
+            if (io.isConsole())
+               io.out.println("8. Statistics");
+            io.out.println("9. < EXIT");
+            String authorisedUser = null;
+            int choice = io.readChoice();
+            long start = System.nanoTime(), waited = io.getInputNanos();
+            String operation = (choice == 1) ? "CreateUser" : (choice == 2) ? "LogIn" : null;
+            // every operation runs under its latency budget, see Deadline
+            Deadline outer = Deadline.enter(Deadline.forOperation(operation));
+            try {
+               switch (choice){
+                  case 1: CreateUser(esql, io); break;
+                  case 2: authorisedUser = LogIn(esql, io); break;
+                  case 8:
+                     if (io.isConsole()) {
+                        ShowStatistics(esql, io);
+                        break;
+                     }
+                     io.out.println("Unrecognized choice!"); break;
+                  case 9: keepon = false; break;
+                  default : io.out.println("Unrecognized choice!"); break;
+               }//end switch
+            } finally {
+               Deadline.restore(outer);
+            }
+            if (operation != null)
+               esql.metrics().menu(operation, System.nanoTime() - start - (io.getInputNanos() - waited));
+            if (authorisedUser != null) {
+               boolean usermenu = true;
+               while(usermenu) {
+                  io.out.println("MAIN MENU");
+                  io.out.println("---------");
+                  io.out.println("1. Search People");
+                  io.out.println("2. View User Profile");
+                  io.out.println("3. Check Incoming Requests");
+                  io.out.println("4. View Friends");
+                  io.out.println("5. Send Message");
+                  io.out.println("6. View Messages");
+                  io.out.println("7. Update Profile");
+                  io.out.println("8. People You May Know");
+                  io.out.println(".........................");
+                  io.out.println("9. Log out");
+                  choice = io.readChoice();
+                  start = System.nanoTime();
+                  waited = io.getInputNanos();
+                  operation = (choice >= 1 && choice <= USER_OPERATIONS.length) ? USER_OPERATIONS[choice - 1] : null;
+                  outer = Deadline.enter(Deadline.forOperation(operation));
+                  try {
+                     switch (choice){
+                        case 1: SearchPeople(esql, io); break;
+                        case 2: ViewUserProfile(esql, io, authorisedUser); break;
+                        case 3: CheckIncomingRequests(esql, io, authorisedUser); break;
+                        case 4: ViewFriends(esql, io, authorisedUser); break;
+                        case 5: SendMessage(esql, io, authorisedUser); break;
+                        case 6: ViewMessages(esql, io, authorisedUser); break;
+                        case 7: UpdateProfile(esql, io, authorisedUser); break;
+                        case 8: PeopleYouMayKnow(esql, io, authorisedUser); break;
+                        case 9: usermenu = false; break;
+                        default : io.out.println("Unrecognized choice!"); break;
+                     }
+                  } finally {
+                     Deadline.restore(outer);
+                  }
+                  // time spent waiting for the user's input is not part of the operation
+                  if (operation != null)
+                     esql.metrics().menu(operation, System.nanoTime() - start - (io.getInputNanos() - waited));
+               }
+            }
+         }//end while
+      } catch (Session.Closed e) {
+         // the user went away, nothing left to print to
+      } finally {
+         io.close();
+      }//end try
+   }//end runSession
+
+   public static void Greeting(java.io.PrintStream out){
+      out.println(
          "\n\n*******************************************************\n" +
          "              User Interface      	               \n" +
          "*******************************************************\n");
    }//end Greeting
 
-   /*
-    * Reads the users choice given from the keyboard
-    * @int
-    **/
-   public static int readChoice() {
-      int input;
-      // returns only if a correct value is given.
-      do {
-         System.out.print("Please make your choice: ");
-         try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
-            break;
-         }catch (Exception e) {
-            System.out.println("Your input is invalid!");
-            continue;
-         }//end try
-      }while (true);
-      return input;
-   }//end readChoice
-
    /*
     * Creates a new user with privided login, passowrd and phoneNum
     * An empty block and contact list would be generated and associated with a user
     **/
-   public static void CreateUser(ProfNetwork esql){
+   public static void CreateUser(ProfNetwork esql, Session io){
       try{
-         System.out.print("\tEnter user login: ");
-         String login = in.readLine();
-         System.out.print("\tEnter user password: ");
-         String password = in.readLine();
-         System.out.print("\tEnter user email: ");
-         String email = in.readLine();
+         io.out.print("\tEnter user login: ");
+         String login = io.readLine();
+         io.out.print("\tEnter user password: ");
+         String password = io.readLine();
+         io.out.print("\tEnter user email: ");
+         String email = io.readLine();
 
 	      //Creating empty contact\block lists for a user
-	      String query = String.format("INSERT INTO USR (userId, password, email) VALUES ('%s','%s','%s')", login, password, email);
+	      String query = "INSERT INTO USR (userId, password, email) VALUES (?, ?, ?)";
 
-         esql.executeUpdate(query);
-         System.out.println ("User successfully created!");
+         esql.executeUpdate(query, login, password, email);
+         esql.userCreated(login);
+         if (esql.loadedSearchIndex() != null)
+            esql.loadedSearchIndex().put(login, null, email);
+         io.out.println ("User successfully created!");
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         io.err.println (e.getMessage ());
       }
    }//end
 
@@ -360,121 +2077,143 @@ public class ProfNetwork {
     * Check log in credentials for an existing user
     * @return User login or null is the user does not exist
     **/
-   public static String LogIn(ProfNetwork esql){
+   public static String LogIn(ProfNetwork esql, Session io){
       try{
-         System.out.print("\tEnter user login: ");
-         String login = in.readLine();
-         System.out.print("\tEnter user password: ");
-         String password = in.readLine();
+         io.out.print("\tEnter user login: ");
+         String login = io.readLine();
+         io.out.print("\tEnter user password: ");
+         String password = io.readLine();
 
-         String query = String.format("SELECT * FROM USR WHERE userId = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
+         // unknown user ids never reach the database
+         if (!esql.userMightExist(login))
+            return null;
+         String query = "SELECT userId FROM USR WHERE userId = ? AND password = ?";
+         int userNum = esql.executeQuery(query, login, password);
          if (userNum > 0)
             return login;
          return null;
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         io.err.println (e.getMessage ());
          return null;
       }
    }//end
 
-   public static void SearchPeople(ProfNetwork esql) {
+   /*
+    * Searches people by user id or name, one ranked page at a time.
+    * The page size is set by profnetwork.search.pageSize (default 20).
+    **/
+   public static void SearchPeople(ProfNetwork esql, Session io) {
       try {
-         System.out.print("Enter name: ");
-         String search = in.readLine();
-         String query = String.format("SELECT userId, name, email FROM USR U WHERE LOWER(userId) LIKE '%%%s%%' OR LOWER(name) LIKE '%%%s%%'", search.toLowerCase(), search.toLowerCase());
-         List<List<String>> results = esql.executeQueryAndReturnResult(query);
-         if (results.size() == 0) {
-            System.out.println("No results.");
-         } else {
-            System.out.format("%-50s%-50s%-50s\n", "Username", "Full Name", "Email");
-            System.out.format("------------------------------------------------------------------------------------------------------------------------------------------------------\n");
-            for (List<String> entry : results) {
-               for (String col : entry) {
-                  System.out.format("%-50s", (col == null) ? "-----" : col);
-               }
-               System.out.println();
+         io.out.print("Enter name: ");
+         String search = io.readLine();
+         int pageSize = Integer.getInteger("profnetwork.search.pageSize", 20);
+         int offset = 0;
+         while (true) {
+            PeopleSearchIndex.Page page = esql.searchPeople(search, offset, pageSize);
+            if (page.total == 0) {
+               io.out.println("No results.");
+               return;
             }
+            TableRenderer table = new TableRenderer(io.out, "Username", "Full Name", "Email");
+            for (String[] row : page.rows)
+               table.addRow(row);
+            table.flush();
+            offset += page.rows.size();
+            io.out.format("Showing %d-%d of %d\n", offset - page.rows.size() + 1, offset, page.total);
+            if (offset >= page.total || page.rows.isEmpty())
+               return;
+            io.out.print("Press Enter for more results, or q to stop: ");
+            String more = io.readLine();
+            if (more == null || more.trim().length() > 0)
+               return;
          }
-
       } catch (Exception e) {
-         System.err.println(e.getMessage());
+         io.err.println(e.getMessage());
       }
    }
 
-   public static void ViewUserProfile(ProfNetwork esql, String authorisedUser) {
-      System.out.print("Enter username of user to view: ");
+   // the connection requests between the two bound users, in either direction
+   private static final String CONNECTION_STATUS =
+      "SELECT CASE WHEN c.userUid = K.me THEN 'sent' ELSE 'received' END, c.status" +
+      " FROM CONNECTION_USR c, (SELECT " + UID + " AS me, " + UID + " AS them) K" +
+      " WHERE (c.userUid = K.me AND c.connectionUid = K.them) OR (c.userUid = K.them AND c.connectionUid = K.me)";
+
+   public static void ViewUserProfile(final ProfNetwork esql, Session io, String authorisedUser) {
+      io.out.print("Enter username of user to view: ");
       try{
-         String user = in.readLine();
-         String query = String.format("SELECT userId, email, name, dateOfBirth FROM USR WHERE userId = '%s'", user.trim());
-         List<List<String>> results = esql.executeQueryAndReturnResult(query);
-         if (results.size() == 0) {
-            System.out.format("No results for user with username %s\n", user);
+         final String user = io.readLine().trim();
+         if (!esql.userMightExist(user)) {
+            io.out.format("No results for user with username %s\n", user);
             return;
          }
-         List<String> info = results.get(0);
-         System.out.format("%-50s%-50s%-50s%-50s\n", "Username", "Email", "Name", "Date of Birth");
-         for (String i : info) {
-            if (i == null) {
-               System.out.format("%-50s", "------");
-            } else {
-               System.out.format("%-50s", i.trim());
+         // the profile, friend count, work history and request status are
+         // independent, so their round trips overlap
+         QueryFuture<ProfileCache.UserProfile> profileResult = esql.submit(new Callable<ProfileCache.UserProfile>() {
+            public ProfileCache.UserProfile call() throws SQLException {
+               return esql.getProfile(user);
             }
+         });
+         QueryFuture<Integer> friendsResult = esql.submit(new Callable<Integer>() {
+            public Integer call() throws SQLException {
+               return esql.friendCount(user);
+            }
+         });
+         QueryFuture<List<List<String>>> workResult = esql.executeQueryAndReturnResultAsync(
+            "SELECT company, role, location, startDate, endDate FROM WORK_EXPR WHERE userId = ? ORDER BY startDate DESC", user);
+         QueryFuture<String> statusResult = esql.executeQueryAndReturnResultAsync(CONNECTION_STATUS, authorisedUser, user)
+            .then(new QueryFuture.Step<List<List<String>>, String>() {
+               public String apply(List<List<String>> rows) {
+                  return connectionStatus(rows);
+               }
+            });
+         QueryFuture.joinAll(profileResult, friendsResult, workResult, statusResult);
+
+         ProfileCache.UserProfile found = profileResult.join();
+         if (found == null) {
+            io.out.format("No results for user with username %s\n", user);
+            return;
          }
-         System.out.println();
-         // System.out.format("%-50s%-50s%-50s%-50s\n\n", info.get(0).trim(), info.get(1).trim(), info.get(2).trim(), info.get(3).trim());
+         TableRenderer profile = new TableRenderer(io.out, "Username", "Email", "Name", "Date of Birth");
+         profile.addRow(found.toRow());
+         profile.flush();
+         // io.out.format("%-50s%-50s%-50s%-50s\n\n", info.get(0).trim(), info.get(1).trim(), info.get(2).trim(), info.get(3).trim());
+         List<List<String>> work = workResult.join();
+         if (!work.isEmpty()) {
+            io.out.println("Work experience:");
+            TableRenderer jobs = new TableRenderer(io.out, "Company", "Role", "Location", "Start", "End");
+            jobs.addRows(work);
+            jobs.flush();
+         }
+         String status = statusResult.join();
+         if (status != null)
+            io.out.println(status);
 
-         System.out.println("What would you like to do?");
-         System.out.println("1. Send connection request");
-         System.out.println("2. View Friends");
-         System.out.println("-------------");
-         System.out.println("9. Return");
-         switch (readChoice()) {
+         io.out.println("What would you like to do?");
+         io.out.println("1. Send connection request");
+         io.out.format("2. View Friends (%d)\n", friendsResult.join());
+         io.out.println("-------------");
+         io.out.println("9. Return");
+         switch (io.readChoice()) {
             case 1:
-               // Need to compile list of my friends, friends of my friends, and friends of my friends friends
-               // Theres probably a better way to do this with a single sql statement, but I didn't have time to
-               // figure it out.
-               List<List<String>> friends = esql.executeQueryAndReturnResult(String.format("SELECT F.connectionId FROM CONNECTION_USR F WHERE F.userId = '%s' AND status='Accept'", authorisedUser));
-
-               if (friends.size() < 5) { // If <5 friends, can connect with anyone
-                  esql.executeUpdate(String.format("INSERT INTO CONNECTION_USR (userId, connectionId, status) VALUES ('%s', '%s', 'Request')", authorisedUser, user));
-                  System.out.println("Request Sent!");
+               // Users with fewer than 5 friends can connect with anyone, everyone else only
+               // within 3 hops. The hops are answered from the in memory graph rather than
+               // a query per friend and friend of friend.
+               SocialGraph graph = esql.socialGraph();
+               if (graph.degree(authorisedUser) < 5 || graph.withinHops(authorisedUser, user, 3)) {
+                  esql.executeUpdate("INSERT INTO CONNECTION_USR (userUid, connectionUid, status) VALUES (" + UID + ", " + UID + ", 'Request')", authorisedUser, user);
+                  graph.addRequest(authorisedUser, user);
+                  io.out.println("Request Sent!");
                } else {
-                  ArrayList<String> allowedFriends = new ArrayList<String>();
-                  for (List<String> friend : friends) {
-                     // Get friends of friends, add each one to list of allowedFriends
-                     List<List<String>> fofs = esql.executeQueryAndReturnResult(String.format("SELECT F.connectionId FROM CONNECTION_USR F WHERE F.userId = '%s' AND status='Accept'", friend.get(0)));
-                     for (List<String> fof : fofs) {
-                        allowedFriends.add(fof.get(0));
-                        List<List<String>> foffs = esql.executeQueryAndReturnResult(String.format("SELECT F.connectionId FROM CONNECTION_USR F WHERE F.userId = '%s' AND status='Accept'", fof.get(0)));
-                        for (List<String> foff : foffs) {
-                           allowedFriends.add(foff.get(0));
-                        }
-                     }
-                  }
-                  if (allowedFriends.contains(user)) {
-                     esql.executeUpdate(String.format("INSERT INTO CONNECTION_USR (userId, connectionId, status) VALUES ('%s', '%s', 'Request')", authorisedUser, user));
-                     System.out.println("Request Sent!");
-                  } else {
-                     System.out.println("Error, this user is outside of your social circle, cannot add as friend!");
-                  }
+                  io.out.println("Error, this user is outside of your social circle, cannot add as friend!");
                }
                break;
             case 2:
-               List<List<String>> fofs = esql.executeQueryAndReturnResult(String.format("SELECT C.connectionId, name, email, dateOfBirth FROM USR U, CONNECTION_USR C WHERE C.userId = '%s' AND C.connectionId = U.userId AND C.status = 'Accept'" +
-                                                                                 " UNION SELECT C.connectionId, name, email, dateOfBirth FROM USR U, CONNECTION_USR C WHERE C.connectionId = '%s' AND C.connectionId = U.userId AND C.status = 'Accept'", user, user));
+               List<ProfileCache.UserProfile> fofs = esql.friendProfiles(user);
                if (fofs.size() == 0) {
-                  System.out.println("User has no friends!");
+                  io.out.println("User has no friends!");
                } else {
-                  System.out.format("%-50s%-50s%-50s%-50s\n", "Username", "Full Name", "Email", "DateOfBirth");
-                  System.out.format("--------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------\n");
-                  for (List<String> entry : fofs) {
-                     for (String col : entry) {
-                        System.out.format("%-50s", (col == null) ? "-----" : col);
-                     }
-                     System.out.println();
-                  }
-                  System.out.println();
+                  printFriends(io.out, fofs);
+                  io.out.println();
                }
                break;
             case 9:
@@ -483,244 +2222,399 @@ public class ProfNetwork {
 
          }
       } catch(Exception e) {
-         System.err.println(e.getMessage());
+         io.err.println(e.getMessage());
+      }
+   }
+
+   // describes the connection requests between the viewer and a profile
+   static String connectionStatus(List<List<String>> rows) {
+      String sent = null, received = null;
+      for (List<String> row : rows) {
+         if (row.get(1).equals("Accept"))
+            return "You are connected.";
+         if (row.get(0).equals("sent"))
+            sent = row.get(1);
+         else
+            received = row.get(1);
       }
+      if ("Request".equals(received))
+         return "This user sent you a connection request.";
+      if ("Request".equals(sent))
+         return "Your connection request is pending.";
+      if (sent != null || received != null)
+         return "A connection request was rejected.";
+      return null;
    }
 
-   public static void CheckIncomingRequests(ProfNetwork esql, String authorisedUser) {
-      String query = String.format("SELECT U.userId, U.name FROM CONNECTION_USR C, USR U WHERE connectionId = '%s' AND C.userId = U.userId AND status = 'Request'", authorisedUser);
+   public static void CheckIncomingRequests(ProfNetwork esql, Session io, String authorisedUser) {
+      int pageSize = Integer.getInteger("profnetwork.requests.pageSize", 20);
+      // last sender of the previous page, null on the first page
+      String pageStart = null;
       try {
-         List<List<String>> results = esql.executeQueryAndReturnResult(query);
-         if (results.size() == 0) {
-            System.out.println("No incoming connection requests.");
-         } else {
-            System.out.format("%-50s%-50s\n", "Username", "Name");
-            System.out.format("----------------------------------------------------------------------------------------------------\n");
-            for (List<String> entry : results) {
-               for (String col : entry) {
-                  System.out.format("%-50s", (col == null) ? "-----" : col);
-               }
-               System.out.println();
-            }
-         }
          while (true) {
-            System.out.println("\nWhat would you like to do?");
-            System.out.println("1. Accept Request");
-            System.out.println("2. Deny Request");
-            System.out.println(".......................");
-            System.out.println("9. Return to main menu");
-            String user;
-            switch(readChoice()) {
+            // re-read every time so the listing reflects what was just answered
+            int pending = esql.pendingRequestCount(authorisedUser);
+            if (pending == 0) {
+               io.out.println("No incoming connection requests.");
+               return;
+            }
+            List<String> senders = esql.pendingRequests(authorisedUser, pageStart, pageSize);
+            if (senders.isEmpty() && pageStart != null) {
+               pageStart = null;
+               continue;
+            }
+            io.out.format("%d pending connection request(s):\n", pending);
+            TableRenderer table = new TableRenderer(io.out, "Username", "Name");
+            String[] row = new String[2];
+            for (ProfileCache.UserProfile profile : esql.getProfiles(senders)) {
+               row[0] = profile.userId;
+               row[1] = profile.name;
+               table.addRow(row);
+            }
+            table.flush();
+            boolean more = senders.size() == pageSize;
+
+            io.out.println("\nWhat would you like to do?");
+            io.out.println("1. Accept Requests");
+            io.out.println("2. Deny Requests");
+            io.out.println("3. Accept All");
+            io.out.println("4. Deny All");
+            if (more)
+               io.out.println("5. Next page");
+            io.out.println(".......................");
+            io.out.println("9. Return to main menu");
+            List<String> answered;
+            switch(io.readChoice()) {
                case 1:
-                  System.out.print("Enter username of user: ");
-                  user = in.readLine().replace("\n", "");
-                  query = String.format("UPDATE CONNECTION_USR SET status = 'Accept' WHERE connectionId = '%s' AND userId = '%s'", authorisedUser, user);
-                  esql.executeUpdate(query);
-                  System.out.format("Accepted request from %s!\n", user);
+                  answered = esql.answerRequests(authorisedUser, readUsernames(io), true);
+                  io.out.format("Accepted %d request(s) %s\n", answered.size(), answered);
                   break;
                case 2:
-                  System.out.print("Enter username of user: ");
-                  user = in.readLine();
-                  query = String.format("UPDATE CONNECTION_USR SET status = 'Reject' WHERE connectionId = '%s' AND userId = '%s'", authorisedUser, user);
-                  esql.executeUpdate(query);
-                  System.out.format("Rejected request from %s!\n", user);
+                  answered = esql.answerRequests(authorisedUser, readUsernames(io), false);
+                  io.out.format("Rejected %d request(s) %s\n", answered.size(), answered);
+                  break;
+               case 3:
+                  io.out.format("Accepted %d request(s)\n", esql.answerRequests(authorisedUser, null, true).size());
                   break;
+               case 4:
+                  io.out.format("Rejected %d request(s)\n", esql.answerRequests(authorisedUser, null, false).size());
+                  break;
+               case 5:
+                  if (more) {
+                     pageStart = senders.get(senders.size() - 1);
+                     break;
+                  }
+                  io.out.println("Invalid choice!"); break;
                case 9: return;
-               default: System.out.println("Invalid choice!"); break;
+               default: io.out.println("Invalid choice!"); break;
             }
          }
+      } catch (Session.Closed e) {
+         throw e;
       } catch (Exception e) {
-         System.out.println(e.getMessage());
+         io.out.println(e.getMessage());
       }
    }
 
-   public static void ViewFriends(ProfNetwork esql, String authorisedUser) {
-      String query = String.format("SELECT C.connectionId, name, email, dateOfBirth FROM USR U, CONNECTION_USR C WHERE C.userId = '%s' AND C.connectionId = U.userId AND C.status = 'Accept' " +
-                                   " UNION SELECT C.connectionId, name, email, dateOfBirth FROM USR U, CONNECTION_USR C WHERE C.connectionId = '%s' AND C.connectionId = U.userId AND C.status = 'Accept'", authorisedUser, authorisedUser, authorisedUser, authorisedUser);
+   // reads usernames separated by spaces or commas
+   static List<String> readUsernames(Session io) {
+      io.out.print("Enter usernames, separated by spaces or commas: ");
+      List<String> users = new ArrayList<String>();
+      for (String user : io.readLine().trim().split("[\\s,]+"))
+         if (!user.isEmpty())
+            users.add(user);
+      return users;
+   }
+
+   public static void ViewFriends(ProfNetwork esql, Session io, String authorisedUser) {
       try {
-         List<List<String>> results = esql.executeQueryAndReturnResult(query);
+         List<ProfileCache.UserProfile> results = esql.friendProfiles(authorisedUser);
          if (results.size() == 0) {
-            System.out.println("No results.");
+            io.out.println("No results.");
          } else {
-            System.out.format("%-50s%-50s%-50s%-50s\n", "Username", "Full Name", "Email", "DateOfBirth");
-            System.out.format("--------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------\n");
-            for (List<String> entry : results) {
-               for (String col : entry) {
-                  System.out.format("%-50s", (col == null) ? "-----" : col);
-               }
-               System.out.println();
-            }
+            printFriends(io.out, results);
          }
-         System.out.println();
+         io.out.println();
       } catch (Exception e) {
-         System.out.println(e.getMessage());
+         io.out.println(e.getMessage());
+      }
+   }
+
+   /*
+    * Prints a table of friend profiles
+    **/
+   static void printFriends(java.io.PrintStream out, List<ProfileCache.UserProfile> friends) {
+      TableRenderer table = new TableRenderer(out, "Username", "Full Name", "Email", "DateOfBirth");
+      String[] row = new String[4];
+      for (ProfileCache.UserProfile friend : friends) {
+         row[0] = friend.userId;
+         row[1] = friend.name;
+         row[2] = friend.email;
+         row[3] = friend.dateOfBirth;
+         table.addRow(row);
       }
+      table.flush();
+   }
+
+   // reports messages the write behind queue could not store to the sender's session
+   static MessageQueue.DeliveryListener deliveryReport(final Session io) {
+      return new MessageQueue.DeliveryListener() {
+         public void delivered(MessageQueue.OutgoingMessage message) {
+         }
+         public void failed(MessageQueue.OutgoingMessage message, SQLException error) {
+            io.err.format("Message to %s could not be delivered: %s\n", message.receiverId, error.getMessage());
+            io.err.flush();
+         }
+      };
    }
 
-   public static void SendMessage(ProfNetwork esql, String authorisedUser) {
+   public static void SendMessage(ProfNetwork esql, Session io, String authorisedUser) {
       try {
-         System.out.print("Enter username of user to send message to: ");
-         String user = in.readLine();
-         System.out.print("Enter message to sent them: ");
-         String message = in.readLine();
-         esql.executeUpdate(String.format("INSERT INTO MESSAGE (senderId, receiverId, contents, sendTime, deleteStatus, status) VALUES ('%s', '%s', '%s', CURRENT_TIMESTAMP, 0, 'Delivered')", authorisedUser, user, message));
-         System.out.println("Message sent!\n");
+         io.out.print("Enter username of user to send message to: ");
+         String user = io.readLine().trim();
+         if (!esql.userMightExist(user)) {
+            io.out.format("No user with username %s\n", user);
+            return;
+         }
+         io.out.print("Enter message to sent them: ");
+         String message = io.readLine();
+         esql.sendMessage(authorisedUser, user, message, deliveryReport(io));
+         io.out.println("Message sent!\n");
       } catch (Exception e) {
-         System.err.println(e.getMessage());
+         io.err.println(e.getMessage());
       }
    }
 
-   public static void ViewMessages(ProfNetwork esql, String authorisedUser) {
-      // A -> B
-      // deleteStatus = 0  :  Both parties can see message
-      // deleteStatus = 1  :  A deleted message, B can still see it
-      // deleteStatus = 2  :  B deleted message, A can still see it
-      // deleteStatus = 3  :  Both deletes message, neither can see it
-      String query = String.format("SELECT senderId FROM MESSAGE WHERE receiverId='%s' AND (deleteStatus=0 OR deleteStatus=1) AND (status='Sent' OR status='Delivered' OR status='Read') " +
-                                   "UNION SELECT receiverID FROM MESSAGE WHERE senderId='%s' AND (deleteStatus=0 OR deleteStatus=2) AND (status='Sent' OR status='Delivered' OR status='Read')", authorisedUser, authorisedUser);
+   /*
+    * Lists the user's conversations by last activity and pages through a
+    * conversation newest first.
+    * Page sizes are set by profnetwork.inbox.pageSize (default 20) and
+    * profnetwork.thread.pageSize (default 20).
+    **/
+   public static void ViewMessages(ProfNetwork esql, Session io, String authorisedUser) {
+      int inboxSize = Integer.getInteger("profnetwork.inbox.pageSize", 20);
+      int threadSize = Integer.getInteger("profnetwork.thread.pageSize", 20);
       do {
          try{
-            List<List<String>> results = esql.executeQueryAndReturnResult(query);
+            List<List<String>> results = esql.inbox(authorisedUser, inboxSize);
             if (results.size() == 0) {
-               System.out.println("You have no messages\n");
+               io.out.println("You have no messages\n");
                return;
             }
-            System.out.println("You have messages from:");
-            for (List<String> row : results) {
-               System.out.println(row.get(0));
-            }
-            System.out.println("\nWhat would you like to do?");
-            System.out.println("1. View messages from user");
-            System.out.println("---------");
-            System.out.println("9. Return to main menu");
-            switch(readChoice()) {
+            io.out.println("Your conversations:");
+            TableRenderer partners = new TableRenderer(io.out, "Username", "Last Activity", "Unread", "Last Message");
+            partners.addRows(results);
+            partners.flush();
+            io.out.println("\nWhat would you like to do?");
+            io.out.println("1. View messages from user");
+            io.out.println("---------");
+            io.out.println("9. Return to main menu");
+            switch(io.readChoice()) {
                case 1:
-                  System.out.print("Enter name of user: ");
-                  String user = in.readLine();
-                  // A -> B
-                  // deleteStatus = 0  :  Both parties can see message
-                  // deleteStatus = 1  :  A deleted message, B can still see it
-                  // deleteStatus = 2  :  B deleted message, A can still see it
-                  // deleteStatus = 3  :  Both deletes message, neither can see it
-                  String get_msgs = String.format("SELECT msgId,contents,sendTime,senderId as sender FROM MESSAGE WHERE receiverId='%s' AND senderId='%s' AND (deleteStatus=0 OR deleteStatus=1) AND (status='Sent' OR status='Delivered' OR status='Read') " +
-                                                  " UNION SELECT msgId,contents,sendTime,senderId as sender FROM MESSAGE WHERE senderId='%s' AND receiverId='%s' AND (deleteStatus=0 OR deleteStatus=2) AND (status='Sent' OR status='Delivered' OR status='Read')", authorisedUser, user, authorisedUser, user);
-                  // System.out.println(get_msgs);
-                  List<List<String>> messages = esql.executeQueryAndReturnResult(get_msgs);
-                  for (List<String> message : messages) {
-                     System.out.format("(%s) At %s %s said:\n\t%s\n", message.get(0), message.get(2), message.get(3).trim(), message.get(1));
-                  }
-                  System.out.println("What would you like to do?");
-                  System.out.println("1. Delete message");
-                  System.out.println("--------");
-                  System.out.println("9. Return");
-                  switch(readChoice()){
-                     case 1:
-                        System.out.print("Enter ID of message to delete: ");
-                        String delete_msg = in.readLine();
-                        String get_cur_status_q = String.format("SELECT deleteStatus,receiverId,senderId FROM MESSAGE WHERE ((receiverId='%s' AND senderId='%s') OR (senderId='%s' AND receiverId='%s')) AND msgId=%s", authorisedUser, user, authorisedUser, user, delete_msg);
-                        List<List<String>> res = esql.executeQueryAndReturnResult(get_cur_status_q);
-                        if (res.size() == 0) {
-                           System.out.println("That message does not exist");
+                  io.out.print("Enter name of user: ");
+                  String user = io.readLine().trim();
+                  esql.markConversationRead(authorisedUser, user);
+                  // keyset of the oldest message shown so far, null for the newest page
+                  String beforeTime = null;
+                  int beforeId = 0;
+                  boolean reading = true;
+                  while (reading) {
+                     List<List<String>> messages = esql.conversationPage(authorisedUser, user, beforeTime, beforeId, threadSize);
+                     if (messages.size() == 0) {
+                        io.out.println((beforeTime == null) ? "No messages with that user" : "No older messages");
+                     }
+                     // pages come newest first, print them in reading order
+                     for (int i = messages.size() - 1; i >= 0; --i) {
+                        List<String> message = messages.get(i);
+                        io.out.format("(%s) At %s %s said:\n\t%s\n", message.get(0), message.get(2), message.get(3), message.get(1));
+                     }
+                     if (messages.size() > 0) {
+                        List<String> oldest = messages.get(messages.size() - 1);
+                        beforeTime = oldest.get(2);
+                        beforeId = Integer.parseInt(oldest.get(0));
+                     }
+                     io.out.println("What would you like to do?");
+                     io.out.println("1. Delete messages");
+                     if (messages.size() == threadSize)
+                        io.out.println("2. Older messages");
+                     io.out.println("3. Delete conversation");
+                     io.out.println("--------");
+                     io.out.println("9. Return");
+                     switch(io.readChoice()){
+                        case 1:
+                           DeleteMessage(esql, io, authorisedUser, user);
+                           reading = false;
+                           break;
+                        case 2:
+                           break;
+                        case 3:
+                           DeleteConversation(esql, io, authorisedUser, user);
+                           reading = false;
+                           break;
+                        case 9:
                            return;
-                        }
-                        String q = "";
-                        String cur = res.get(0).get(0);
-                        // Sender (A) = .get(2)
-                        // Receiver (B) = .get(1)
-                        // A -> B
-                        // deleteStatus = 0  :  Both parties can see message
-                        // deleteStatus = 1  :  A deleted message, B can still see it
-                        // deleteStatus = 2  :  B deleted message, A can still see it
-                        // deleteStatus = 3  :  Both deletes message, neither can see it
-                        switch (cur) {
-                           case "0":
-                              if (res.get(0).get(2).trim().equals(authorisedUser)) { // If I am the sender (A)
-                                 q = String.format("UPDATE MESSAGE SET deleteStatus='1' WHERE msgId='%s'", delete_msg);
-                              } else {
-                                 q = String.format("UPDATE MESSAGE SET deleteStatus='2' WHERE msgId='%s'", delete_msg);
-                              }
-                              break;
-                           case "1":
-                              q = String.format("UPDATE MESSAGE SET deleteStatus='3' WHERE msgId='%s'", delete_msg);
-                              break;
-                           case "2":
-                              q = String.format("UPDATE MESSAGE SET deleteStatus='3' WHERE msgId='%s'", delete_msg);
-                              break;
-                        }
-                        esql.executeUpdate(q);
-                        System.out.println("Message deleted!");
-                        break;
-                     case 9:
-                        return;
-                     default:
-                        System.out.println("Invalid choice");
-                        break;
+                        default:
+                           io.out.println("Invalid choice");
+                           reading = false;
+                           break;
+                     }
                   }
                   break;
                case 9:
                   return;
                default:
-                  System.out.println("Invalid choice!");
+                  io.out.println("Invalid choice!");
                   break;
             }
+         }catch(Session.Closed e) {
+            throw e;
          }catch(Exception e) {
-            System.out.println(e.getMessage());
+            io.out.println(e.getMessage());
          }
       } while(true);
    }
 
-   public static void UpdateProfile(ProfNetwork esql, String authorisedUser) {
+   /*
+    * Deletes one or more messages of a conversation for the user
+    * deleteStatus = 0  :  Both parties can see message
+    * deleteStatus = 1  :  The sender deleted it, the receiver can still see it
+    * deleteStatus = 2  :  The receiver deleted it, the sender can still see it
+    * deleteStatus = 3  :  Both deleted it, neither can see it
+    **/
+   public static void DeleteMessage(ProfNetwork esql, Session io, String authorisedUser, String user) throws Exception {
+      io.out.print("Enter IDs of messages to delete, separated by spaces or commas: ");
+      List<Integer> ids = new ArrayList<Integer>();
+      for (String id : io.readLine().trim().split("[\\s,]+"))
+         if (!id.isEmpty())
+            ids.add(Integer.valueOf(id));
+      if (ids.isEmpty())
+         return;
+      List<Integer> deleted = esql.deleteMessages(authorisedUser, user, ids);
+      List<Integer> missing = new ArrayList<Integer>(ids);
+      missing.removeAll(deleted);
+      if (deleted.size() > 0)
+         io.out.format("%d message(s) deleted!\n", deleted.size());
+      if (missing.size() > 0)
+         io.out.println("No such message: " + missing);
+   }
+
+   /*
+    * Deletes every message of a conversation for the user
+    **/
+   public static void DeleteConversation(ProfNetwork esql, Session io, String authorisedUser, String user) throws Exception {
+      io.out.format("Delete your whole conversation with %s? (y/n): ", user);
+      if (!io.readLine().trim().equalsIgnoreCase("y"))
+         return;
+      io.out.format("%d message(s) deleted!\n", esql.deleteConversation(authorisedUser, user).size());
+   }
+
+   public static void UpdateProfile(ProfNetwork esql, Session io, String authorisedUser) {
       do {
-         System.out.println("Update Profile");
-         System.out.println("--------------");
-         System.out.println("1. Update email");
-         System.out.println("2. Update name");
-         System.out.println("3. Update password");
-         System.out.println(".........................");
-         System.out.println("9. Return");
-         switch(readChoice()) {
+         io.out.println("Update Profile");
+         io.out.println("--------------");
+         io.out.println("1. Update email");
+         io.out.println("2. Update name");
+         io.out.println("3. Update password");
+         io.out.println(".........................");
+         io.out.println("9. Return");
+         switch(io.readChoice()) {
             case 1:
                try {
-                  System.out.print("Enter new email: ");
-                  String new_email = in.readLine();
-                  String q = String.format("UPDATE USR SET email = '%s' WHERE userId = '%s'", new_email, authorisedUser);
-                  esql.executeUpdate(q);
-                  System.out.println("Updated email successfully!");
+                  io.out.print("Enter new email: ");
+                  String new_email = io.readLine();
+                  String q = "UPDATE USR SET email = ? WHERE userId = ?";
+                  esql.executeUpdate(q, new_email, authorisedUser);
+                  esql.invalidateProfile(authorisedUser);
+                  PeopleSearchIndex index = esql.loadedSearchIndex();
+                  String[] indexed = (index == null) ? null : index.get(authorisedUser);
+                  if (indexed != null)
+                     index.put(authorisedUser, indexed[1], new_email);
+                  io.out.println("Updated email successfully!");
                } catch (Exception e) {
-                  System.err.println(e.getMessage());
+                  io.err.println(e.getMessage());
                }
                break;
             case 2:
                try {
-                  System.out.print("Enter new name: ");
-                  String new_name = in.readLine();
-                  String q = String.format("UPDATE USR SET name = '%s' WHERE userId = '%s'", new_name, authorisedUser);
-                  esql.executeUpdate(q);
-                  System.out.println("Updated name successfully!");
+                  io.out.print("Enter new name: ");
+                  String new_name = io.readLine();
+                  String q = "UPDATE USR SET name = ? WHERE userId = ?";
+                  esql.executeUpdate(q, new_name, authorisedUser);
+                  esql.invalidateProfile(authorisedUser);
+                  PeopleSearchIndex index = esql.loadedSearchIndex();
+                  String[] indexed = (index == null) ? null : index.get(authorisedUser);
+                  if (indexed != null)
+                     index.put(authorisedUser, new_name, indexed[2]);
+                  io.out.println("Updated name successfully!");
                } catch (Exception e) {
-                  System.err.println(e.getMessage());
+                  io.err.println(e.getMessage());
                }
                break;
             case 3:
                try {
-                  System.out.print("Enter new password: ");
-                  String new_password = in.readLine();
-                  String q = String.format("UPDATE USR SET password = '%s' WHERE userId = '%s'", new_password, authorisedUser);
-                  esql.executeUpdate(q);
-                  System.out.println("Updated password successfully!");
+                  io.out.print("Enter new password: ");
+                  String new_password = io.readLine();
+                  String q = "UPDATE USR SET password = ? WHERE userId = ?";
+                  esql.executeUpdate(q, new_password, authorisedUser);
+                  esql.invalidateProfile(authorisedUser);
+                  io.out.println("Updated password successfully!");
                } catch (Exception e) {
-                  System.err.println(e.getMessage());
+                  io.err.println(e.getMessage());
                }
                break;
             case 9:
                return;
             default:
-               System.out.println("Invalid choice!");
+               io.out.println("Invalid choice!");
                break;
          }
       } while(true);
    }
 
+   /*
+    * Lists the friends of friends sharing the most mutual friends with the
+    * user, leaving out existing friends and pending requests.
+    * The number of suggestions is set by profnetwork.suggestions (default 10).
+    **/
+   public static void PeopleYouMayKnow(ProfNetwork esql, Session io, String authorisedUser) {
+      try {
+         List<SocialGraph.Suggestion> suggestions = esql.suggestFriends(authorisedUser, Integer.getInteger("profnetwork.suggestions", 10));
+         if (suggestions.size() == 0) {
+            io.out.println("No suggestions yet, try connecting with more people!");
+            return;
+         }
+         TableRenderer table = new TableRenderer(io.out, "Username", "Mutual Friends");
+         String[] row = new String[2];
+         for (SocialGraph.Suggestion suggestion : suggestions) {
+            row[0] = suggestion.userId;
+            row[1] = Integer.toString(suggestion.mutualFriends);
+            table.addRow(row);
+         }
+         table.flush();
+         io.out.println();
+      } catch (Exception e) {
+         io.err.println(e.getMessage());
+      }
+   }
+
+   /*
+    * Prints the latency counters, the connection pool and the profile cache
+    * state, and optionally clears the counters. Only offered on the console.
+    **/
+   public static void ShowStatistics(ProfNetwork esql, Session io) {
+      esql.metrics().print(io.out);
+      io.out.println("Pool: " + esql.poolStats());
+      if (esql.replicaStats() != null)
+         io.out.println("Replicas: " + esql.replicaStats());
+      io.out.println("Profile cache: " + esql.profileCacheStats());
+      io.out.println("\n1. Reset counters");
+      io.out.println("9. Return");
+      if (io.readChoice() == 1) {
+         esql.metrics().reset();
+         io.out.println("Counters reset.");
+      }
+   }
+
 // Rest of the functions definition go in here
 
 }//end ProfNetwork
@@ -0,0 +1,216 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the ProfNetwork menus over plain TCP, one session per client
+ * connection, so a single process (and a single connection pool) serves
+ * many users at once. A client is anything that sends lines, e.g.
+ * "nc localhost 7000".
+ *
+ * Every session runs on its own thread and only holds a database connection
+ * while a query runs. On a JVM with virtual threads (Java 21+) each session
+ * gets a virtual thread, otherwise a pooled platform thread with a small
+ * stack. The number of open sessions is bounded; clients beyond the limit
+ * are told so and disconnected.
+ *
+ * Settings: profnetwork.server.bind (default 127.0.0.1),
+ * profnetwork.server.maxSessions (default 10000),
+ * profnetwork.server.idleTimeoutMs (default 1800000, 0 disables) and
+ * profnetwork.server.backlog (default 256).
+ */
+public class ProfNetworkServer implements Closeable {
+
+   private final ProfNetwork _esql;
+   private final ServerSocket _socket;
+   private final ExecutorService _sessions;
+   private final Semaphore _permits;
+   private final int _idleTimeoutMs;
+   // open client connections, closed by close() to end blocked reads
+   private final Set<Socket> _clients = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+   private final AtomicLong _accepted = new AtomicLong();
+   private final AtomicLong _refused = new AtomicLong();
+   private final AtomicInteger _open = new AtomicInteger();
+   private volatile boolean _closed = false;
+
+   /**
+    * Binds the listening socket.
+    *
+    * @param esql the shared database
+    * @param port the TCP port to listen on, 0 for any free port
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public ProfNetworkServer (ProfNetwork esql, int port) throws IOException {
+      this._esql = esql;
+      this._permits = new Semaphore(Integer.getInteger("profnetwork.server.maxSessions", 10000));
+      this._idleTimeoutMs = Integer.getInteger("profnetwork.server.idleTimeoutMs", 1800000);
+      this._socket = new ServerSocket();
+      this._socket.setReuseAddress(true);
+      this._socket.bind(new InetSocketAddress(InetAddress.getByName(System.getProperty("profnetwork.server.bind", "127.0.0.1")), port),
+                        Integer.getInteger("profnetwork.server.backlog", 256));
+      this._sessions = newSessionExecutor();
+   }//end ProfNetworkServer
+
+   /**
+    * Accepts clients until close() is called.
+    *
+    * @throws java.io.IOException when accepting fails for another reason than close()
+    */
+   public void serve () throws IOException {
+      while (!this._closed) {
+         final Socket client;
+         try {
+            client = this._socket.accept();
+         } catch (SocketException e) {
+            if (this._closed)
+               break;
+            throw e;
+         }//end try
+         this._accepted.incrementAndGet();
+         if (!this._permits.tryAcquire()) {
+            refuse(client);
+            continue;
+         }
+         try {
+            this._sessions.execute(new Runnable() {
+               public void run () {
+                  handle(client);
+               }
+            });
+         } catch (RuntimeException e) {
+            // the executor is shutting down
+            this._permits.release();
+            refuse(client);
+         }//end try
+      }//end while
+   }//end serve
+
+   /**
+    * Method to stop accepting clients, disconnect the open sessions and
+    * wait briefly for their threads to finish.
+    */
+   public void close () {
+      if (this._closed)
+         return;
+      this._closed = true;
+      try {
+         this._socket.close();
+      } catch (IOException e) {
+         // ignored.
+      }//end try
+      this._sessions.shutdownNow();
+      for (Socket client : this._clients)
+         closeQuietly(client);
+      try {
+         this._sessions.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end close
+
+   /**
+    * @return the address the server listens on
+    */
+   public InetSocketAddress getAddress () {
+      return (InetSocketAddress) this._socket.getLocalSocketAddress();
+   }
+
+   public long getAcceptedCount () { return this._accepted.get(); }
+   public long getRefusedCount () { return this._refused.get(); }
+   public int getOpenCount () { return this._open.get(); }
+
+   // runs one session on the calling thread
+   private void handle (Socket client) {
+      this._open.incrementAndGet();
+      this._clients.add(client);
+      if (this._closed)
+         closeQuietly(client);
+      try {
+         client.setSoTimeout(this._idleTimeoutMs);
+         client.setTcpNoDelay(true);
+         Session io = Session.open(client);
+         ProfNetwork.Greeting(io.out);
+         ProfNetwork.runSession(this._esql, io);
+      } catch (IOException e) {
+         closeQuietly(client);
+      } finally {
+         this._clients.remove(client);
+         this._open.decrementAndGet();
+         this._permits.release();
+      }//end try
+   }//end handle
+
+   private void refuse (Socket client) {
+      this._refused.incrementAndGet();
+      try {
+         PrintStream out = new PrintStream(client.getOutputStream(), true, "UTF-8");
+         out.println("Server busy, try again later.");
+      } catch (IOException e) {
+         // ignored.
+      } finally {
+         closeQuietly(client);
+      }//end try
+   }//end refuse
+
+   private static void closeQuietly (Socket client) {
+      try {
+         client.close();
+      } catch (IOException e) {
+         // ignored.
+      }//end try
+   }//end closeQuietly
+
+   /**
+    * Uses Executors.newVirtualThreadPerTaskExecutor() when the running JVM
+    * has it. The code is compiled for Java 7, so it is looked up reflectively;
+    * older JVMs fall back to an unbounded pool of small stack daemon threads
+    * (the session limit is enforced by the caller).
+    */
+   static ExecutorService newSessionExecutor () {
+      try {
+         Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService) virtual.invoke(null);
+      } catch (Exception e) {
+         return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger _count = new AtomicInteger();
+
+            public Thread newThread (Runnable r) {
+               Thread t = new Thread(null, r, "session-" + this._count.incrementAndGet(), 256 * 1024);
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }//end try
+   }//end newSessionExecutor
+
+}//end ProfNetworkServer
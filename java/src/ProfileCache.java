@@ -0,0 +1,215 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in memory cache of USR profiles keyed by userId. The cache is
+ * split into independently locked segments, each an access ordered
+ * LinkedHashMap evicting its least recently used entry when full, so
+ * concurrent sessions rarely contend on the same lock. Entries also expire
+ * a fixed time after they were loaded.
+ *
+ * The cache never loads anything itself; ProfNetwork reads through it and
+ * invalidates entries whenever it writes a USR row. Every invalidation
+ * bumps the generation of its segment. A reader takes a stamp() before it
+ * queries and hands it to put(), which drops the row when its segment was
+ * invalidated in between, so a row read before a write cannot be cached
+ * after the write invalidated it.
+ */
+public class ProfileCache {
+
+   /**
+    * The cached columns of a USR row. The password is deliberately not kept.
+    */
+   public static final class UserProfile {
+      public final String userId;
+      public final String email;
+      public final String name;
+      public final String dateOfBirth;
+      final long loadedAt;
+
+      public UserProfile (String userId, String email, String name, String dateOfBirth) {
+         this.userId = userId;
+         this.email = email;
+         this.name = name;
+         this.dateOfBirth = dateOfBirth;
+         this.loadedAt = System.currentTimeMillis();
+      }
+
+      /**
+       * @return {userId, email, name, dateOfBirth}
+       */
+      public String[] toRow () {
+         return new String[] { this.userId, this.email, this.name, this.dateOfBirth };
+      }
+   }//end UserProfile
+
+   private static final int SEGMENTS = 16;
+
+   private final Segment[] _segments = new Segment[SEGMENTS];
+   private final long _ttlMs;
+
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _misses = new AtomicLong();
+   private final AtomicLong _evictions = new AtomicLong();
+   private final AtomicLong _expirations = new AtomicLong();
+
+   /**
+    * @param maxEntries upper bound on cached profiles
+    * @param ttlMs how long a profile may be served after it was loaded
+    */
+   public ProfileCache (int maxEntries, long ttlMs) {
+      this._ttlMs = ttlMs;
+      int perSegment = Math.max(1, maxEntries / SEGMENTS);
+      for (int i = 0; i < SEGMENTS; ++i)
+         this._segments[i] = new Segment(perSegment);
+   }//end ProfileCache
+
+   /**
+    * @param userId the user id
+    * @return the cached profile, or null on a miss or when it has expired
+    */
+   public UserProfile get (String userId) {
+      Segment seg = segment(userId);
+      synchronized (seg) {
+         UserProfile p = seg.get(userId);
+         if (p != null && System.currentTimeMillis() - p.loadedAt > this._ttlMs) {
+            seg.remove(userId);
+            this._expirations.incrementAndGet();
+            p = null;
+         }
+         if (p == null)
+            this._misses.incrementAndGet();
+         else
+            this._hits.incrementAndGet();
+         return p;
+      }
+   }//end get
+
+   /**
+    * @param profile a freshly loaded profile
+    */
+   public void put (UserProfile profile) {
+      Segment seg = segment(profile.userId);
+      synchronized (seg) {
+         seg.put(profile.userId, profile);
+      }
+   }//end put
+
+   /**
+    * @return the generation of every segment, to be taken before reading
+    *         rows that will be put()
+    */
+   public long[] stamp () {
+      long[] stamp = new long[SEGMENTS];
+      for (int i = 0; i < SEGMENTS; ++i) {
+         synchronized (this._segments[i]) {
+            stamp[i] = this._segments[i]._generation;
+         }
+      }
+      return stamp;
+   }//end stamp
+
+   /**
+    * Caches a profile read after the stamp was taken, unless its user may
+    * have been invalidated since.
+    *
+    * @param profile a freshly loaded profile
+    * @param stamp the stamp() taken before the profile was read
+    * @return false when the profile was dropped as possibly stale
+    */
+   public boolean put (UserProfile profile, long[] stamp) {
+      int i = index(profile.userId);
+      Segment seg = this._segments[i];
+      synchronized (seg) {
+         if (seg._generation != stamp[i])
+            return false;
+         seg.put(profile.userId, profile);
+         return true;
+      }
+   }//end put
+
+   /**
+    * Drops the cached profile of a user after its USR row changed.
+    *
+    * @param userId the user id
+    */
+   public void invalidate (String userId) {
+      Segment seg = segment(userId);
+      synchronized (seg) {
+         ++seg._generation;
+         seg.remove(userId);
+      }
+   }//end invalidate
+
+   /**
+    * @return the number of cached profiles
+    */
+   public int size () {
+      int n = 0;
+      for (Segment seg : this._segments) {
+         synchronized (seg) {
+            n += seg.size();
+         }
+      }
+      return n;
+   }//end size
+
+   public long getHits () { return this._hits.get(); }
+   public long getMisses () { return this._misses.get(); }
+   public long getEvictions () { return this._evictions.get(); }
+   public long getExpirations () { return this._expirations.get(); }
+
+   /**
+    * @return a one line summary of the cache counters
+    */
+   public String stats () {
+      long hits = getHits(), misses = getMisses();
+      return String.format("size=%d hits=%d misses=%d hitRate=%.1f%% evictions=%d expirations=%d",
+                           size(), hits, misses, (hits + misses == 0) ? 0.0 : 100.0 * hits / (hits + misses),
+                           getEvictions(), getExpirations());
+   }//end stats
+
+   private Segment segment (String key) {
+      return this._segments[index(key)];
+   }//end segment
+
+   private static int index (String key) {
+      int h = key.hashCode();
+      return (h ^ (h >>> 16)) & (SEGMENTS - 1);
+   }//end index
+
+   // one least recently used map, guarded by its own monitor
+   private final class Segment extends LinkedHashMap<String, UserProfile> {
+      private static final long serialVersionUID = 1L;
+      private final int _capacity;
+      // number of invalidations so far
+      long _generation = 0;
+
+      Segment (int capacity) {
+         super(16, 0.75f, true);
+         this._capacity = capacity;
+      }
+
+      protected boolean removeEldestEntry (Map.Entry<String, UserProfile> eldest) {
+         if (size() <= this._capacity)
+            return false;
+         _evictions.incrementAndGet();
+         return true;
+      }
+   }//end Segment
+
+}//end ProfileCache
@@ -0,0 +1,198 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An open, forward only cursor over a query result. The query is opened as
+ * a server side cursor with DECLARE and its rows are pulled with FETCH,
+ * fetchSize at a time, so memory use does not depend on the size of the
+ * result. This does not rely on Statement.setFetchSize, which the bundled
+ * driver does not implement. The cursor holds a pooled connection inside a
+ * transaction until it is closed, so callers must always close() it.
+ *
+ * next() returns the same String[] buffer for every row; copy it if a row
+ * has to outlive the following call to next().
+ *
+ * The Deadline the cursor was opened under bounds the whole scan: its
+ * statements are cancelled when the deadline passes before close().
+ */
+public class QueryCursor implements Iterator<String[]>, Closeable {
+
+   // makes cursor names unique, also across connections
+   private static final AtomicLong NEXT_ID = new AtomicLong();
+
+   private final ConnectionPool _pool;
+   private Connection _connection;
+   private final Statement _fetch;
+   private final Deadline.Guard _guard;
+   private final String _fetchSql;
+   private final int _fetchSize;
+   private final String[] _row;
+
+   // the current batch, and whether it was the last one
+   private ResultSet _rs;
+   private int _batchRows = 0;
+   private boolean _fetched = false;
+   private boolean _hasNext = false;
+   private int _rowCount = 0;
+
+   /**
+    * Declares the cursor and fetches the first batch.
+    *
+    * @param pool the pool the connection is returned to on close
+    * @param connection a borrowed connection with auto-commit disabled
+    * @param query the SQL template with ? placeholders
+    * @param fetchSize number of rows fetched per round trip
+    * @param offset number of leading rows to skip
+    * @param limit maximum number of rows to return, or 0 for no limit
+    * @param params the values bound to the placeholders, in order
+    * @throws java.sql.SQLException when failed to execute the query; the
+    *         connection is then back in the pool
+    */
+   QueryCursor (ConnectionPool pool, Connection connection, String query, int fetchSize,
+                long offset, long limit, Object[] params) throws SQLException {
+      this._pool = pool;
+      this._connection = connection;
+      this._fetchSize = Math.max(1, fetchSize);
+      String name = "profnetwork_cursor_" + NEXT_ID.incrementAndGet();
+      this._fetchSql = "FETCH FORWARD " + this._fetchSize + " FROM " + name;
+      Statement fetch = null;
+      Deadline.Guard guard = null;
+      try {
+         // cursors only exist inside a transaction
+         connection.setAutoCommit(false);
+         fetch = connection.createStatement();
+         // the deadline bounds the whole scan, until the cursor is closed
+         guard = Deadline.watch(fetch, query);
+         PreparedStatement declare = connection.prepareStatement(
+            "DECLARE " + name + " NO SCROLL CURSOR FOR " + query + " LIMIT ? OFFSET ?");
+         try {
+            ProfNetwork.bind(declare, params);
+            declare.setLong(params.length + 1, limit > 0 ? limit : Long.MAX_VALUE);
+            declare.setLong(params.length + 2, Math.max(0, offset));
+            declare.executeUpdate();
+         } finally {
+            declare.close();
+         }
+         fetchBatch(fetch);
+         this._row = new String[this._rs.getMetaData().getColumnCount()];
+      } catch (SQLException e) {
+         if (guard != null)
+            guard.close();
+         if (fetch != null)
+            closeQuietly(fetch);
+         pool.release(connection);
+         throw (guard == null) ? e : guard.translate(e);
+      }//end try
+      this._fetch = fetch;
+      this._guard = guard;
+   }//end QueryCursor
+
+   // replaces the current batch with the next fetchSize rows
+   private void fetchBatch (Statement fetch) throws SQLException {
+      if (this._rs != null)
+         this._rs.close();
+      this._rs = fetch.executeQuery(this._fetchSql);
+      this._batchRows = 0;
+   }//end fetchBatch
+
+   /**
+    * @return the number of columns of every row
+    */
+   public int getColumnCount () {
+      return this._row.length;
+   }
+
+   /**
+    * @return the number of rows returned by next() so far
+    */
+   public int getRowCount () {
+      return this._rowCount;
+   }
+
+   public boolean hasNext () {
+      if (!this._fetched) {
+         try {
+            this._hasNext = this._connection != null && this._rs.next();
+            // a full batch may be followed by more rows on the server
+            if (!this._hasNext && this._connection != null && this._batchRows == this._fetchSize) {
+               fetchBatch(this._fetch);
+               this._hasNext = this._rs.next();
+            }
+            if (this._hasNext)
+               ++this._batchRows;
+         } catch (SQLException e) {
+            SQLException cause = this._guard.translate(e);
+            throw new IllegalStateException(cause.getMessage(), cause);
+         }//end try
+         this._fetched = true;
+      }
+      return this._hasNext;
+   }//end hasNext
+
+   public String[] next () {
+      if (!hasNext())
+         throw new NoSuchElementException();
+      try {
+         for (int i = 0; i < this._row.length; ++i)
+            this._row[i] = this._rs.getString(i + 1);
+      } catch (SQLException e) {
+         SQLException cause = this._guard.translate(e);
+         throw new IllegalStateException(cause.getMessage(), cause);
+      }//end try
+      this._fetched = false;
+      ++this._rowCount;
+      return this._row;
+   }//end next
+
+   public void remove () {
+      throw new UnsupportedOperationException();
+   }
+
+   /**
+    * Method to close the cursor and return its connection to the pool.
+    */
+   public void close () {
+      if (this._connection == null)
+         return;
+      this._guard.close();
+      try {
+         this._rs.close();
+      } catch (SQLException e) {
+         // ignored.
+      }//end try
+      closeQuietly(this._fetch);
+      // release() rolls back the transaction, which closes the server side
+      // cursor, and restores auto-commit
+      this._pool.release(this._connection);
+      this._connection = null;
+   }//end close
+
+   private static void closeQuietly (Statement stmt) {
+      try {
+         stmt.close();
+      } catch (SQLException e) {
+         // ignored.
+      }//end try
+   }//end closeQuietly
+
+}//end QueryCursor
@@ -0,0 +1,262 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of a query submitted to ProfNetwork's async executor
+ * (see ProfNetwork.submit and the *Async query methods), so independent
+ * round trips of one screen overlap instead of adding up.
+ *
+ * Cancelling a future that has started also cancels the statement it is
+ * running on the server, so the pooled connection comes back quickly
+ * instead of finishing a query nobody waits for. A cancelled future never
+ * starts another statement.
+ *
+ * Futures are combined with then, which derives a future from the result
+ * of this one, and joinAll, which waits for several and cancels the rest
+ * when one fails. Do not join a future from inside another async task: the
+ * executor is bounded, so tasks waiting on queued tasks can stall it.
+ *
+ * @param <T> the type of the result
+ */
+public class QueryFuture<T> extends FutureTask<T> {
+
+   /**
+    * A step applied to the result of a future by then.
+    *
+    * @param <A> the type of the result it is applied to
+    * @param <R> the type of its own result
+    */
+   public interface Step<A, R> {
+      /**
+       * @param value the result of the future
+       * @return the result of the derived future
+       * @throws Exception when the step failed; the derived future fails with it
+       */
+      R apply (A value) throws Exception;
+   }//end Step
+
+   // the future whose task the current thread is running
+   private static final ThreadLocal<QueryFuture<?>> CURRENT = new ThreadLocal<QueryFuture<?>>();
+
+   // SQLSTATE query_canceled
+   static final String CANCELLED = "57014";
+
+   // the statement running for this future, null between statements
+   private Statement _running = null;
+   // run once this future completes, null once it has
+   private List<Runnable> _dependents = new ArrayList<Runnable>();
+
+   /**
+    * @param task the work, usually a call of a query method
+    */
+   public QueryFuture (Callable<T> task) {
+      super(task);
+   }//end QueryFuture
+
+   public void run () {
+      QueryFuture<?> outer = CURRENT.get();
+      CURRENT.set(this);
+      try {
+         super.run();
+      } finally {
+         if (outer == null)
+            CURRENT.remove();
+         else
+            CURRENT.set(outer);
+      }//end try
+   }//end run
+
+   /**
+    * Cancels the future and the statement it is running, if any.
+    *
+    * @param mayInterruptIfRunning whether the thread running the task is interrupted as well
+    * @return false when the future had completed already
+    */
+   public boolean cancel (boolean mayInterruptIfRunning) {
+      if (!super.cancel(mayInterruptIfRunning))
+         return false;
+      cancelStatement();
+      return true;
+   }//end cancel
+
+   private synchronized void cancelStatement () {
+      if (this._running != null) {
+         try {
+            this._running.cancel();
+         } catch (SQLException e) {
+            // the statement then runs to completion and its result is dropped
+         }
+      }
+   }//end cancelStatement
+
+   /**
+    * Waits for the result, at most until the Deadline of the calling thread;
+    * a future still running then is cancelled.
+    *
+    * @return the result
+    * @throws java.sql.SQLException the failure of the task, SQLSTATE 57014
+    *         when the future was cancelled or the wait interrupted, or
+    *         QueryTimeoutException when the deadline passed
+    */
+   public T join () throws SQLException {
+      Deadline deadline = Deadline.current();
+      try {
+         if (deadline == null)
+            return get();
+         return get(Math.max(0, deadline.remainingMs()), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+         cancel(true);
+         throw deadline.timeout(null, e);
+      } catch (InterruptedException e) {
+         cancel(true);
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a query", CANCELLED, e);
+      } catch (CancellationException e) {
+         throw new SQLException("Query cancelled", CANCELLED, e);
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+         if (cause instanceof Error)
+            throw (Error) cause;
+         throw new SQLException(cause.getMessage(), cause);
+      }//end try
+   }//end join
+
+   /**
+    * Derives a future from the result of this one. The step runs on the
+    * thread that completes this future, or right away when it is done
+    * already, so it should be quick. Cancelling the derived future cancels
+    * this one; a failed or cancelled future fails or cancels the derived one.
+    *
+    * @param step what to apply to the result
+    * @param <R> the type of the derived result
+    * @return the derived future
+    */
+   public <R> QueryFuture<R> then (final Step<? super T, R> step) {
+      final QueryFuture<T> source = this;
+      final QueryFuture<R> derived = new QueryFuture<R>(new Callable<R>() {
+         public R call () throws Exception {
+            T value;
+            try {
+               value = source.get();
+            } catch (ExecutionException e) {
+               throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+            }
+            return step.apply(value);
+         }
+      }) {
+         public boolean cancel (boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            source.cancel(mayInterruptIfRunning);
+            return cancelled;
+         }
+      };
+      whenDone(new Runnable() {
+         public void run () {
+            if (source.isCancelled())
+               derived.cancel(false);
+            else
+               derived.run();
+         }
+      });
+      return derived;
+   }//end then
+
+   /**
+    * Waits for every future. When one fails the others are cancelled and
+    * its failure is thrown.
+    *
+    * @param futures the futures to wait for
+    * @throws java.sql.SQLException the first failure, see join
+    */
+   public static void joinAll (QueryFuture<?>... futures) throws SQLException {
+      boolean ok = false;
+      try {
+         for (QueryFuture<?> future : futures)
+            future.join();
+         ok = true;
+      } finally {
+         if (!ok)
+            for (QueryFuture<?> future : futures)
+               future.cancel(true);
+      }//end try
+   }//end joinAll
+
+   protected void done () {
+      List<Runnable> dependents;
+      synchronized (this) {
+         dependents = this._dependents;
+         this._dependents = null;
+      }
+      for (Runnable r : dependents)
+         r.run();
+   }//end done
+
+   private void whenDone (Runnable r) {
+      synchronized (this) {
+         if (this._dependents != null) {
+            this._dependents.add(r);
+            return;
+         }
+      }
+      r.run();
+   }//end whenDone
+
+   /**
+    * Method to record the statement the calling thread is about to execute,
+    * so cancelling its future cancels it. Does nothing outside async tasks.
+    *
+    * @param stmt the statement
+    * @throws java.sql.SQLException with SQLSTATE 57014 when the future was cancelled already
+    */
+   static void started (Statement stmt) throws SQLException {
+      QueryFuture<?> future = CURRENT.get();
+      if (future != null)
+         future.setRunning(stmt);
+   }//end started
+
+   /**
+    * Method to record that the statement passed to started has finished,
+    * before its connection goes back to the pool.
+    */
+   static void finished () {
+      QueryFuture<?> future = CURRENT.get();
+      if (future != null)
+         future.clearRunning();
+   }//end finished
+
+   private synchronized void setRunning (Statement stmt) throws SQLException {
+      if (isCancelled())
+         throw new SQLException("Query cancelled", CANCELLED);
+      this._running = stmt;
+   }//end setRunning
+
+   private synchronized void clearRunning () {
+      this._running = null;
+   }//end clearRunning
+
+}//end QueryFuture
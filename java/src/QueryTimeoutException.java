@@ -0,0 +1,76 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLTimeoutException;
+
+/**
+ * Thrown when a query or a wait for a connection ran past its Deadline.
+ * The query, if one was running, has been cancelled on the server. The
+ * SQLSTATE is 57014 (query_canceled), like a statement_timeout.
+ */
+public class QueryTimeoutException extends SQLTimeoutException {
+
+   private static final long serialVersionUID = 1L;
+
+   private final String _operation;
+   private final String _template;
+   private final long _budgetMs;
+   private final long _elapsedMs;
+
+   /**
+    * @param operation the menu operation of the deadline, may be null
+    * @param template the SQL template that was running or waiting, may be null
+    * @param budgetMs the budget of the deadline
+    * @param elapsedMs the time spent when it was found to have expired
+    * @param cause the driver error of the cancelled statement, may be null
+    */
+   public QueryTimeoutException (String operation, String template, long budgetMs, long elapsedMs, Throwable cause) {
+      super(String.format("%s exceeded its %d ms budget after %d ms%s",
+                          (operation == null) ? "Query" : operation, budgetMs, elapsedMs,
+                          (template == null) ? "" : " in: " + template),
+            QueryFuture.CANCELLED, cause);
+      this._operation = operation;
+      this._template = template;
+      this._budgetMs = budgetMs;
+      this._elapsedMs = elapsedMs;
+   }//end QueryTimeoutException
+
+   /**
+    * @return the menu operation of the deadline, or null
+    */
+   public String getOperation () {
+      return this._operation;
+   }
+
+   /**
+    * @return the SQL template that was running or waiting, or null
+    */
+   public String getTemplate () {
+      return this._template;
+   }
+
+   /**
+    * @return the budget of the deadline in ms
+    */
+   public long getBudgetMs () {
+      return this._budgetMs;
+   }
+
+   /**
+    * @return the time spent in ms when the deadline was found to have expired
+    */
+   public long getElapsedMs () {
+      return this._elapsedMs;
+   }
+
+}//end QueryTimeoutException
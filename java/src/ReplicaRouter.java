@@ -0,0 +1,362 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses where read only queries run: on one of the streaming replicas, or
+ * on the primary. Every replica has its own ConnectionPool. Reads go to the
+ * healthy replica with the fewest borrowed connections, ties broken round
+ * robin, and writes always stay on the primary.
+ *
+ * A background check polls every replica for whether it is still a standby,
+ * how far its replay lags behind and the WAL position it has replayed. A
+ * replica's staleness is that lag plus the age of the check. A read falls
+ * back to the primary when:
+ * - no replica is healthy, or every replica is staler than maxStalenessMs;
+ * - the calling thread wrote past the position the replica had replayed at
+ *   its last check, so the replica may not have its write yet (read your
+ *   writes). The lag alone cannot tell, since WAL the replica has not even
+ *   received does not count as lag;
+ * - the calling thread wrote within maxStalenessMs and the WAL position of
+ *   the write is not known (queued writes, or reading it failed).
+ * In server mode every session has its own thread, and async queries
+ * inherit the last write of the thread that submitted them.
+ *
+ * A read that fails on a replica because its pool was exhausted, the
+ * connection broke, the replica is shutting down or its replay cancelled
+ * the query is retried once on the primary by the caller (see failOver).
+ * A printed result is only retried when nothing had been printed yet.
+ *
+ * Settings: profnetwork.replicas (comma separated host:port list, default
+ * none), profnetwork.replicas.poolMax (default profnetwork.pool.max),
+ * profnetwork.replicas.maxStalenessMs (default 5000) and
+ * profnetwork.replicas.healthCheckMs (default 1000).
+ */
+public class ReplicaRouter {
+
+   // replay lag in ms, 0 when everything received has been replayed, and
+   // the WAL position replayed so far
+   private static final String LAG_QUERY =
+      "SELECT pg_is_in_recovery(), CASE WHEN NOT pg_is_in_recovery()" +
+      " OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0" +
+      " ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END," +
+      " COALESCE(CAST(pg_last_wal_replay_lsn() - '0/0' AS bigint), 0)";
+
+   /**
+    * Query run on the primary after a write for the WAL position that
+    * covers it, in the units of the replicas' replay position.
+    */
+   static final String WAL_POSITION_QUERY = "SELECT CAST(pg_current_wal_insert_lsn() - '0/0' AS bigint)";
+
+   /**
+    * One replica endpoint and its last known state.
+    */
+   static final class Replica {
+      final String url;
+      final ConnectionPool pool;
+      volatile boolean healthy = false;
+      volatile long lagMs = 0;
+      volatile long replayedLsn = 0;
+      volatile long checkedAt = 0;
+      volatile String lastError = "not checked yet";
+      final AtomicLong reads = new AtomicLong();
+
+      Replica (String url, ConnectionPool pool) {
+         this.url = url;
+         this.pool = pool;
+      }
+   }//end Replica
+
+   private final Replica[] _replicas;
+   private final long _maxStalenessMs;
+   private final AtomicInteger _next = new AtomicInteger();
+   // per thread: when it last wrote without a known WAL position, and the
+   // highest WAL position it wrote at
+   private final ThreadLocal<long[]> _lastWrite = new ThreadLocal<long[]>() {
+      protected long[] initialValue () {
+         return new long[2];
+      }
+   };
+   private final AtomicLong _primaryReads = new AtomicLong();
+   private final AtomicLong _failovers = new AtomicLong();
+   private final Timer _checker;
+
+   /**
+    * Creates a pool per replica and starts the health checks. No connection
+    * is opened here, so an unreachable replica only shows up as unhealthy.
+    *
+    * @param urls the JDBC URLs of the replicas
+    * @param user the user name used to login to the replicas
+    * @param passwd the user login password
+    * @param poolMax upper bound on open connections per replica
+    * @param maxStalenessMs replicas staler than this are not used
+    * @param healthCheckMs period of the health checks
+    * @throws java.sql.SQLException when a pool cannot be created
+    */
+   public ReplicaRouter (List<String> urls, String user, String passwd, int poolMax,
+                         long maxStalenessMs, long healthCheckMs) throws SQLException {
+      this._replicas = new Replica[urls.size()];
+      for (int i = 0; i < this._replicas.length; ++i)
+         this._replicas[i] = new Replica(urls.get(i), new ConnectionPool(urls.get(i), user, passwd, 0, poolMax,
+            Long.getLong("profnetwork.pool.borrowTimeoutMs", 5000L),
+            Long.getLong("profnetwork.pool.idleTimeoutMs", 300000L),
+            Long.getLong("profnetwork.pool.validateAfterMs", 1000L),
+            Integer.getInteger("profnetwork.pool.statementCacheSize", 64)));
+      this._maxStalenessMs = maxStalenessMs;
+      this._checker = new Timer("ReplicaRouter-health", true);
+      this._checker.schedule(new TimerTask() {
+         public void run () {
+            checkAll();
+         }
+      }, 0, Math.max(100, healthCheckMs));
+   }//end ReplicaRouter
+
+   /**
+    * Turns the profnetwork.replicas setting into JDBC URLs.
+    *
+    * @param endpoints comma separated host:port pairs, may be null
+    * @param dbname the database name, the same as on the primary
+    * @return the URLs, empty when no replica is configured
+    */
+   public static List<String> urls (String endpoints, String dbname) {
+      List<String> urls = new ArrayList<String>();
+      if (endpoints != null)
+         for (String endpoint : endpoints.split(","))
+            if (endpoint.trim().length() > 0)
+               urls.add("jdbc:postgresql://" + endpoint.trim() + "/" + dbname);
+      return urls;
+   }//end urls
+
+   /**
+    * Picks the pool for a read of the calling thread.
+    *
+    * @return the pool of a replica, or null when the read has to go to the primary
+    */
+   public ConnectionPool pick () {
+      long now = System.currentTimeMillis();
+      long[] lastWrite = this._lastWrite.get();
+      int start = this._next.getAndIncrement() & Integer.MAX_VALUE;
+      Replica best = null;
+      double bestLoad = Double.MAX_VALUE;
+      for (int i = 0; i < this._replicas.length && now - lastWrite[0] > this._maxStalenessMs; ++i) {
+         Replica r = this._replicas[(start + i) % this._replicas.length];
+         if (!r.healthy)
+            continue;
+         long staleness = r.lagMs + (now - r.checkedAt);
+         if (staleness > this._maxStalenessMs || r.replayedLsn < lastWrite[1])
+            continue;
+         double load = (double) r.pool.getActiveCount() / r.pool.getMaxSize();
+         if (load < bestLoad) {
+            best = r;
+            bestLoad = load;
+         }
+      }//end for
+      if (best == null) {
+         this._primaryReads.incrementAndGet();
+         return null;
+      }
+      best.reads.incrementAndGet();
+      return best.pool;
+   }//end pick
+
+   /**
+    * Method to record that the calling thread wrote to the primary, so its
+    * next reads only go to replicas that replayed the write.
+    *
+    * @param walPosition the primary's WAL position after the write (see
+    *        WAL_POSITION_QUERY), or 0 when not known, in which case reads
+    *        stay on the primary for maxStalenessMs
+    */
+   public void wrote (long walPosition) {
+      long[] write = this._lastWrite.get();
+      if (walPosition <= 0)
+         write[0] = System.currentTimeMillis();
+      else
+         write[1] = Math.max(write[1], walPosition);
+   }//end wrote
+
+   /**
+    * @return the last write of the calling thread, for inheritLastWrite
+    */
+   public long[] lastWrite () {
+      return this._lastWrite.get().clone();
+   }//end lastWrite
+
+   /**
+    * Method to give the calling thread the last write of another one, so a
+    * task run on a worker thread reads like the thread that submitted it.
+    *
+    * @param write the other thread's lastWrite
+    */
+   public void inheritLastWrite (long[] write) {
+      System.arraycopy(write, 0, this._lastWrite.get(), 0, write.length);
+   }//end inheritLastWrite
+
+   /**
+    * Decides whether a read that failed on a pool should be retried on the
+    * primary:
+    * - the replica's pool was exhausted, so nothing reached the replica;
+    * - the connection broke or the replica is shutting down, which also
+    *   marks the replica unhealthy until the next successful check;
+    * - replay cancelled the query, or it was a write sent as a query.
+    * Timeouts and errors in the query itself are not retried.
+    *
+    * @param pool the pool the read ran on
+    * @param e why it failed
+    * @return true when pool is a replica and the read should be retried on the primary
+    */
+   public boolean failOver (ConnectionPool pool, SQLException e) {
+      Replica r = replica(pool);
+      if (r == null)
+         return false;
+      int failure = classify(e);
+      if (failure == QUERY_FAILED)
+         return false;
+      if (failure == CONNECTION_LOST) {
+         r.healthy = false;
+         r.lastError = e.getMessage();
+      }
+      this._failovers.incrementAndGet();
+      return true;
+   }//end failOver
+
+   // failure classes of a read, see classify
+   static final int QUERY_FAILED = 0;
+   static final int POOL_EXHAUSTED = 1;
+   static final int CONNECTION_LOST = 2;
+   static final int REPLICA_ONLY = 3;
+
+   // the pg73 driver has no SQLSTATE and no exception subclasses, so its
+   // errors (and the server's, which it passes on as text) are told apart
+   // by their message
+   private static final String[] CONNECTION_LOST_MESSAGES = {
+      "broken the connection", "An I/O error", "Connection refused", "connection attempt failed",
+      "connection error has occurred", "Connection is closed", "terminating connection",
+      "database system is shutting down", "database system is starting up" };
+   private static final String[] REPLICA_ONLY_MESSAGES = {
+      "conflict with recovery", "read-only transaction" };
+
+   /**
+    * Classifies why a read failed, by exception type and SQLSTATE, by the
+    * I/O error beneath it, or by message when the driver sets neither.
+    *
+    * @param e the failure
+    * @return QUERY_FAILED, POOL_EXHAUSTED, CONNECTION_LOST or REPLICA_ONLY
+    */
+   static int classify (SQLException e) {
+      if (e instanceof PoolExhaustedException)
+         return POOL_EXHAUSTED;
+      if (e instanceof SQLTimeoutException)
+         return QUERY_FAILED;
+      if (e instanceof SQLTransientConnectionException || e instanceof SQLNonTransientConnectionException)
+         return CONNECTION_LOST;
+      String state = e.getSQLState();
+      if (state != null) {
+         if (state.startsWith("08") || state.startsWith("57P"))
+            return CONNECTION_LOST;
+         if (state.equals("40001") || state.equals("25006"))
+            return REPLICA_ONLY;
+         return QUERY_FAILED;
+      }
+      for (Throwable t = e.getCause(); t != null; t = t.getCause())
+         if (t instanceof IOException)
+            return CONNECTION_LOST;
+      String message = String.valueOf(e.getMessage());
+      for (String m : CONNECTION_LOST_MESSAGES)
+         if (message.contains(m))
+            return CONNECTION_LOST;
+      for (String m : REPLICA_ONLY_MESSAGES)
+         if (message.contains(m))
+            return REPLICA_ONLY;
+      return QUERY_FAILED;
+   }//end classify
+
+   private Replica replica (ConnectionPool pool) {
+      for (Replica r : this._replicas)
+         if (r.pool == pool)
+            return r;
+      return null;
+   }//end replica
+
+   // runs the health check of every replica, one at a time
+   private void checkAll () {
+      for (Replica r : this._replicas)
+         check(r);
+   }//end checkAll
+
+   private void check (Replica r) {
+      Connection conn = null;
+      try {
+         conn = r.pool.borrow();
+         Statement stmt = conn.createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery(LAG_QUERY);
+            rs.next();
+            boolean standby = rs.getBoolean(1);
+            r.lagMs = (long) rs.getDouble(2);
+            r.replayedLsn = rs.getLong(3);
+            r.checkedAt = System.currentTimeMillis();
+            r.healthy = standby;
+            r.lastError = standby ? null : "not a standby";
+         } finally {
+            stmt.close();
+         }
+         r.pool.release(conn);
+      } catch (SQLException e) {
+         r.healthy = false;
+         r.lastError = e.getMessage();
+         if (conn != null)
+            r.pool.invalidate(conn);
+      }//end try
+   }//end check
+
+   /**
+    * @return one line per replica with its state, plus the routing counters
+    */
+   public String stats () {
+      StringBuilder sb = new StringBuilder(String.format("primaryReads=%d failovers=%d",
+                                                         this._primaryReads.get(), this._failovers.get()));
+      long now = System.currentTimeMillis();
+      for (Replica r : this._replicas) {
+         sb.append(String.format("\n  %s %s lag=%dms replayed=%X checked=%dms ago reads=%d open=%d active=%d",
+                                 r.url, r.healthy ? "up" : "down (" + r.lastError + ")", r.lagMs, r.replayedLsn,
+                                 (r.checkedAt == 0) ? -1 : now - r.checkedAt, r.reads.get(),
+                                 r.pool.getOpenCount(), r.pool.getActiveCount()));
+      }
+      return sb.toString();
+   }//end stats
+
+   /**
+    * Method to stop the health checks and close every replica pool.
+    */
+   public void close () {
+      this._checker.cancel();
+      for (Replica r : this._replicas)
+         r.pool.close();
+   }//end close
+
+}//end ReplicaRouter
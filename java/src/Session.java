@@ -0,0 +1,169 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.Socket;
+
+/**
+ * The input and output of one user of the menus. The console is one session;
+ * in server mode every TCP connection is another, so the handlers read and
+ * print through the session they are given instead of System.in/System.out.
+ *
+ * Output is flushed before every read, so a prompt always reaches the user
+ * before the session waits for the answer. Once the input ends, or the
+ * connection fails or idles out, every further read throws Session.Closed.
+ */
+public class Session implements Closeable {
+
+   /**
+    * Thrown by reads once the session has no more input.
+    */
+   public static final class Closed extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      Closed (String message, Throwable cause) {
+         super(message, cause);
+      }
+   }//end Closed
+
+   public final PrintStream out;
+   public final PrintStream err;
+   private final BufferedReader _in;
+   private final Socket _socket;
+   private volatile boolean _closed = false;
+   // time spent blocked in readLine, so operations can be timed without it
+   private long _inputNanos = 0;
+
+   private Session (BufferedReader in, PrintStream out, PrintStream err, Socket socket) {
+      this._in = in;
+      this.out = out;
+      this.err = err;
+      this._socket = socket;
+   }//end Session
+
+   /**
+    * @return a session reading System.in and printing to System.out and System.err
+    */
+   public static Session console () {
+      return new Session(new BufferedReader(new InputStreamReader(System.in)), System.out, System.err, null);
+   }//end console
+
+   /**
+    * Wraps an accepted client connection. Errors go to the same stream as
+    * the rest of the output, since the client has only one.
+    *
+    * @param socket the client connection
+    * @return the session
+    * @throws java.io.IOException when the socket streams cannot be opened
+    */
+   public static Session open (Socket socket) throws IOException {
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+      PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), false, "UTF-8");
+      return new Session(in, out, out, socket);
+   }//end open
+
+   /**
+    * Flushes pending output and reads one line.
+    *
+    * @return the line, without the line terminator
+    * @throws Session.Closed when there is no more input
+    */
+   public String readLine () {
+      this.out.flush();
+      this.err.flush();
+      String line;
+      long start = System.nanoTime();
+      try {
+         line = this._in.readLine();
+      } catch (IOException e) {
+         this._closed = true;
+         throw new Closed("Session input failed: " + e.getMessage(), e);
+      } finally {
+         long waited = System.nanoTime() - start;
+         this._inputNanos += waited;
+         // the user's think time is not part of the operation's latency budget
+         Deadline deadline = Deadline.current();
+         if (deadline != null)
+            deadline.extend(waited);
+      }//end try
+      if (line == null) {
+         this._closed = true;
+         throw new Closed("Session input ended", null);
+      }
+      return line;
+   }//end readLine
+
+   /*
+    * Reads the users choice given from the session input
+    * @int
+    **/
+   public int readChoice () {
+      int input;
+      // returns only if a correct value is given.
+      do {
+         this.out.print("Please make your choice: ");
+         try { // read the integer, parse it and break.
+            input = Integer.parseInt(readLine().trim());
+            break;
+         }catch (NumberFormatException e) {
+            this.out.println("Your input is invalid!");
+            continue;
+         }//end try
+      }while (true);
+      return input;
+   }//end readChoice
+
+   /**
+    * @return the total time this session spent waiting for input, in nanoseconds
+    */
+   public long getInputNanos () {
+      return this._inputNanos;
+   }
+
+   /**
+    * @return true for the local console, false for a network client
+    */
+   public boolean isConsole () {
+      return this._socket == null;
+   }
+
+   /**
+    * @return true once the input has ended or the session was closed
+    */
+   public boolean isClosed () {
+      return this._closed;
+   }
+
+   /**
+    * Flushes the output and, for a client connection, closes the socket.
+    * The console streams are left open.
+    */
+   public void close () {
+      this._closed = true;
+      this.out.flush();
+      this.err.flush();
+      if (this._socket != null) {
+         try {
+            this._socket.close();
+         } catch (IOException e) {
+            // ignored.
+         }//end try
+      }//end if
+   }//end close
+
+}//end Session
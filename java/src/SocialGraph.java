@@ -0,0 +1,747 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In memory index of the accepted connections in CONNECTION_USR. User ids
+ * are interned to dense ints and the undirected friendship edges are kept in
+ * compressed sparse row form (one offsets array and one targets array), so
+ * neighborhood walks touch a few primitive arrays instead of issuing a query
+ * per user.
+ *
+ * Edges added after the initial load go to small per-user overflow arrays
+ * which are folded back into the CSR arrays once they grow large. Pending
+ * requests are tracked as well so newly inserted requests are known without
+ * going back to the database. The graph is safe for concurrent use.
+ *
+ * A graph read from a WarmSnapshot keeps its CSR arrays in the read only
+ * mapping of the snapshot file, off the heap, until its first compaction.
+ */
+public class SocialGraph {
+
+   private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+
+   // user id <-> dense node number
+   private final HashMap<String, Integer> _ids = new HashMap<String, Integer>();
+   private String[] _users = new String[1024];
+   private int _nodeCount = 0;
+
+   // compressed sparse row adjacency of the accepted edges, on the heap or
+   // mapped from a snapshot file until the next compaction
+   private IntBuffer _offsets = IntBuffer.wrap(new int[1]);
+   private IntBuffer _targets = IntBuffer.wrap(new int[0]);
+   private int _baseNodes = 0;
+
+   // edges added since the last compaction, per node
+   private int[][] _extra = new int[1024][];
+   private int[] _extraCount = new int[1024];
+   private int _extraEdges = 0;
+
+   // pending requests as (from << 32 | to)
+   private final HashSet<Long> _pending = new HashSet<Long>();
+
+   /**
+    * Loads the graph from CONNECTION_USR with a single streaming scan.
+    *
+    * @param esql the database to read from
+    * @return the loaded graph
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static SocialGraph load (ProfNetwork esql) throws SQLException {
+      Loader loader = new Loader();
+      esql.executeQueryStreaming(
+         "SELECT u.userId, c.userId, s.status FROM CONNECTION_USR s" +
+         " JOIN USR u ON u.uid = s.userUid JOIN USR c ON c.uid = s.connectionUid" +
+         " WHERE s.status IN ('Accept', 'Request')",
+         ProfNetwork.FETCH_SIZE, 0, 0, loader);
+      return loader.finish();
+   }//end load
+
+   /**
+    * Builds a graph from (userId, connectionId, status) rows of
+    * CONNECTION_USR, as streamed by load.
+    */
+   static final class Loader implements ProfNetwork.RowHandler {
+      private final SocialGraph _graph = new SocialGraph();
+      private final IntList _from = new IntList();
+      private final IntList _to = new IntList();
+
+      public boolean handleRow (String[] row) {
+         // ids and statuses read from char columns are blank padded
+         int a = this._graph.intern(row[0].trim());
+         int b = this._graph.intern(row[1].trim());
+         String status = row[2].trim();
+         if (status.equals("Accept")) {
+            this._from.add(a);
+            this._to.add(b);
+         } else if (status.equals("Request")) {
+            this._graph._pending.add(pairKey(a, b));
+         }
+         return true;
+      }//end handleRow
+
+      /**
+       * @return the graph of the rows handled so far
+       */
+      SocialGraph finish () {
+         this._graph.buildCsr(this._from, this._to);
+         return this._graph;
+      }//end finish
+   }//end Loader
+
+   /**
+    * Reads a graph written by writeTo. The CSR arrays are views of the
+    * buffer, so a mapped buffer stays the backing store of the adjacency.
+    *
+    * @param buf the snapshot section, positioned at the graph
+    * @return the graph
+    * @throws IllegalArgumentException when the section is malformed
+    */
+   static SocialGraph read (ByteBuffer buf) {
+      SocialGraph graph = new SocialGraph();
+      int n = buf.getInt();
+      if (n < 0)
+         throw new IllegalArgumentException("negative node count");
+      int cap = Math.max(1024, n);
+      graph._users = new String[cap];
+      graph._extra = new int[cap][];
+      graph._extraCount = new int[cap];
+      for (int u = 0; u < n; ++u)
+         if (graph.intern(WarmSnapshot.readString(buf)) != u)
+            throw new IllegalArgumentException("duplicate user id");
+      graph._offsets = WarmSnapshot.intSlice(buf, n + 1);
+      graph._targets = WarmSnapshot.intSlice(buf, graph._offsets.get(n));
+      graph._baseNodes = n;
+      for (int i = buf.getInt(); i > 0; --i)
+         graph._pending.add(buf.getLong());
+      return graph;
+   }//end read
+
+   /**
+    * Writes the graph for read: the user ids by node number, the CSR
+    * arrays with the overflow edges folded in, and the pending requests.
+    *
+    * @param out the snapshot being written
+    * @throws java.io.IOException when failed to write
+    */
+   void writeTo (DataOutputStream out) throws IOException {
+      this._lock.readLock().lock();
+      try {
+         int n = this._nodeCount;
+         out.writeInt(n);
+         for (int u = 0; u < n; ++u)
+            WarmSnapshot.writeString(out, this._users[u]);
+         int edges = 0;
+         out.writeInt(0);
+         for (int u = 0; u < n; ++u) {
+            edges += degree(u);
+            out.writeInt(edges);
+         }
+         IntList neighbors = new IntList();
+         for (int u = 0; u < n; ++u) {
+            neighbors.size = 0;
+            appendNeighbors(u, neighbors);
+            Arrays.sort(neighbors.data, 0, neighbors.size);
+            for (int e = 0; e < neighbors.size; ++e)
+               out.writeInt(neighbors.data[e]);
+         }
+         out.writeInt(this._pending.size());
+         for (Long pair : this._pending)
+            out.writeLong(pair.longValue());
+      } finally {
+         this._lock.readLock().unlock();
+      }
+   }//end writeTo
+
+   /**
+    * Returns whether the target is at most maxHops accepted connections away
+    * from the source. Runs a bidirectional breadth first search that always
+    * expands the smaller frontier, so only a few neighborhoods are touched.
+    *
+    * @param source the user id to start from
+    * @param target the user id to look for
+    * @param maxHops the maximum path length
+    * @return true when a path of at most maxHops edges exists
+    */
+   public boolean withinHops (String source, String target, int maxHops) {
+      this._lock.readLock().lock();
+      try {
+         Integer a = this._ids.get(source);
+         Integer b = this._ids.get(target);
+         if (a == null || b == null)
+            return false;
+         if (a.intValue() == b.intValue())
+            return true;
+
+         IntSet seenA = new IntSet();
+         IntSet seenB = new IntSet();
+         IntList frontA = new IntList();
+         IntList frontB = new IntList();
+         seenA.add(a);
+         seenB.add(b);
+         frontA.add(a);
+         frontB.add(b);
+         for (int hops = 0; hops < maxHops && frontA.size > 0 && frontB.size > 0; ++hops) {
+            boolean expandA = frontA.size <= frontB.size;
+            IntList front = expandA ? frontA : frontB;
+            IntSet seen = expandA ? seenA : seenB;
+            IntSet other = expandA ? seenB : seenA;
+            IntList next = new IntList();
+            for (int i = 0; i < front.size; ++i) {
+               int u = front.data[i];
+               // base CSR neighbors
+               if (u < this._baseNodes) {
+                  for (int e = this._offsets.get(u), end = this._offsets.get(u + 1); e < end; ++e) {
+                     int v = this._targets.get(e);
+                     if (other.contains(v))
+                        return true;
+                     if (seen.add(v))
+                        next.add(v);
+                  }
+               }
+               // neighbors added since the last compaction
+               int[] extra = this._extra[u];
+               for (int e = 0; e < this._extraCount[u]; ++e) {
+                  int v = extra[e];
+                  if (other.contains(v))
+                     return true;
+                  if (seen.add(v))
+                     next.add(v);
+               }
+            }//end for
+            if (expandA)
+               frontA = next;
+            else
+               frontB = next;
+         }//end for
+         return false;
+      } finally {
+         this._lock.readLock().unlock();
+      }
+   }//end withinHops
+
+   /**
+    * Ranks the second degree connections of a user by the number of mutual
+    * friends. Existing friends and users with a pending request in either
+    * direction are left out. Mutual counts are accumulated in a primitive
+    * hash map and the best k are kept in a bounded min-heap.
+    *
+    * @param user the user id to make suggestions for
+    * @param k the maximum number of suggestions
+    * @return up to k suggestions, most mutual friends first
+    */
+   public List<Suggestion> suggestFriends (String user, int k) {
+      this._lock.readLock().lock();
+      try {
+         List<Suggestion> result = new ArrayList<Suggestion>();
+         Integer id = this._ids.get(user);
+         if (id == null || k <= 0)
+            return result;
+         int me = id.intValue();
+
+         IntList friends = new IntList();
+         appendNeighbors(me, friends);
+         IntSet excluded = new IntSet();
+         excluded.add(me);
+         for (int i = 0; i < friends.size; ++i)
+            excluded.add(friends.data[i]);
+
+         // count how many of my friends each friend of a friend is connected to
+         IntCounter mutual = new IntCounter();
+         IntList fofs = new IntList();
+         for (int i = 0; i < friends.size; ++i) {
+            fofs.size = 0;
+            appendNeighbors(friends.data[i], fofs);
+            for (int j = 0; j < fofs.size; ++j) {
+               int v = fofs.data[j];
+               if (!excluded.contains(v))
+                  mutual.increment(v);
+            }
+         }//end for
+
+         // bounded min-heap on (count, node) keeps the k best candidates
+         int[] heapNode = new int[k];
+         int[] heapCount = new int[k];
+         int heapSize = 0;
+         for (int slot = 0; slot < mutual.capacity(); ++slot) {
+            int v = mutual.keyAt(slot);
+            if (v < 0)
+               continue;
+            int c = mutual.valueAt(slot);
+            if (heapSize == k && !better(c, v, heapCount[0], heapNode[0]))
+               continue;
+            if (this._pending.contains(pairKey(me, v)) || this._pending.contains(pairKey(v, me)))
+               continue;
+            if (heapSize < k) {
+               heapNode[heapSize] = v;
+               heapCount[heapSize] = c;
+               siftUp(heapNode, heapCount, heapSize++);
+            } else {
+               heapNode[0] = v;
+               heapCount[0] = c;
+               siftDown(heapNode, heapCount, heapSize);
+            }
+         }//end for
+
+         // drain the heap worst first and fill the result from the back
+         Suggestion[] ordered = new Suggestion[heapSize];
+         for (int i = heapSize - 1; i >= 0; --i) {
+            ordered[i] = new Suggestion(this._users[heapNode[0]], heapCount[0]);
+            heapNode[0] = heapNode[i];
+            heapCount[0] = heapCount[i];
+            siftDown(heapNode, heapCount, i);
+         }
+         for (Suggestion suggestion : ordered)
+            result.add(suggestion);
+         return result;
+      } finally {
+         this._lock.readLock().unlock();
+      }
+   }//end suggestFriends
+
+   /**
+    * @param user the user id
+    * @return the number of accepted connections of the user
+    */
+   public int degree (String user) {
+      this._lock.readLock().lock();
+      try {
+         Integer u = this._ids.get(user);
+         return (u == null) ? 0 : degree(u.intValue());
+      } finally {
+         this._lock.readLock().unlock();
+      }
+   }//end degree
+
+   /**
+    * @param from the user who sent the request
+    * @param to the user who received it
+    * @return true when the request is known to be pending
+    */
+   public boolean isPending (String from, String to) {
+      this._lock.readLock().lock();
+      try {
+         Integer a = this._ids.get(from);
+         Integer b = this._ids.get(to);
+         return a != null && b != null && this._pending.contains(pairKey(a, b));
+      } finally {
+         this._lock.readLock().unlock();
+      }
+   }//end isPending
+
+   /**
+    * Records a newly inserted connection request.
+    *
+    * @param from the user who sent the request
+    * @param to the user who received it
+    */
+   public void addRequest (String from, String to) {
+      this._lock.writeLock().lock();
+      try {
+         this._pending.add(pairKey(intern(from), intern(to)));
+      } finally {
+         this._lock.writeLock().unlock();
+      }
+   }//end addRequest
+
+   /**
+    * Records that a pending request was accepted, turning it into a
+    * friendship edge.
+    *
+    * @param from the user who sent the request
+    * @param to the user who accepted it
+    */
+   public void acceptRequest (String from, String to) {
+      this._lock.writeLock().lock();
+      try {
+         int a = intern(from);
+         int b = intern(to);
+         this._pending.remove(pairKey(a, b));
+         if (!hasEdge(a, b)) {
+            addExtra(a, b);
+            addExtra(b, a);
+            this._extraEdges += 2;
+            if (this._extraEdges > 1024 + this._targets.limit() / 4)
+               compact();
+         }
+      } finally {
+         this._lock.writeLock().unlock();
+      }
+   }//end acceptRequest
+
+   /**
+    * Records that a pending request was rejected.
+    *
+    * @param from the user who sent the request
+    * @param to the user who rejected it
+    */
+   public void rejectRequest (String from, String to) {
+      this._lock.writeLock().lock();
+      try {
+         Integer a = this._ids.get(from);
+         Integer b = this._ids.get(to);
+         if (a != null && b != null)
+            this._pending.remove(pairKey(a, b));
+      } finally {
+         this._lock.writeLock().unlock();
+      }
+   }//end rejectRequest
+
+   /**
+    * @return the number of users known to the graph
+    */
+   public int getNodeCount () {
+      this._lock.readLock().lock();
+      try {
+         return this._nodeCount;
+      } finally {
+         this._lock.readLock().unlock();
+      }
+   }//end getNodeCount
+
+   /**
+    * @return the number of directed adjacency entries (twice the friendships)
+    */
+   public int getEdgeCount () {
+      this._lock.readLock().lock();
+      try {
+         return this._targets.limit() + this._extraEdges;
+      } finally {
+         this._lock.readLock().unlock();
+      }
+   }//end getEdgeCount
+
+   // the caller holds the lock
+   int degree (int u) {
+      int d = this._extraCount[u];
+      if (u < this._baseNodes)
+         d += this._offsets.get(u + 1) - this._offsets.get(u);
+      return d;
+   }//end degree
+
+   // the caller holds the write lock, or is the loader
+   int intern (String user) {
+      Integer id = this._ids.get(user);
+      if (id != null)
+         return id.intValue();
+      int u = this._nodeCount++;
+      if (u == this._users.length) {
+         int cap = u * 2;
+         this._users = Arrays.copyOf(this._users, cap);
+         this._extra = Arrays.copyOf(this._extra, cap);
+         this._extraCount = Arrays.copyOf(this._extraCount, cap);
+      }
+      this._users[u] = user;
+      this._ids.put(user, u);
+      return u;
+   }//end intern
+
+   // builds the CSR arrays from an undirected edge list, dropping duplicate edges
+   private void buildCsr (IntList from, IntList to) {
+      int n = this._nodeCount;
+      int[] offsets = new int[n + 1];
+      for (int i = 0; i < from.size; ++i) {
+         ++offsets[from.data[i] + 1];
+         ++offsets[to.data[i] + 1];
+      }
+      for (int u = 0; u < n; ++u)
+         offsets[u + 1] += offsets[u];
+      int[] targets = new int[offsets[n]];
+      int[] fill = Arrays.copyOf(offsets, n);
+      for (int i = 0; i < from.size; ++i) {
+         int a = from.data[i], b = to.data[i];
+         targets[fill[a]++] = b;
+         targets[fill[b]++] = a;
+      }
+
+      // sort each neighbor list and squeeze out duplicates and self loops
+      int write = 0;
+      int[] compactOffsets = new int[n + 1];
+      for (int u = 0; u < n; ++u) {
+         int start = offsets[u], end = offsets[u + 1];
+         Arrays.sort(targets, start, end);
+         compactOffsets[u] = write;
+         int last = -1;
+         for (int e = start; e < end; ++e) {
+            int v = targets[e];
+            if (v != last && v != u)
+               targets[write++] = v;
+            last = v;
+         }
+      }//end for
+      compactOffsets[n] = write;
+
+      this._offsets = IntBuffer.wrap(compactOffsets);
+      this._targets = IntBuffer.wrap((write == targets.length) ? targets : Arrays.copyOf(targets, write));
+      this._baseNodes = n;
+   }//end buildCsr
+
+   // folds the overflow arrays back into the CSR arrays; the caller holds the write lock
+   private void compact () {
+      IntList from = new IntList();
+      IntList to = new IntList();
+      for (int u = 0; u < this._nodeCount; ++u) {
+         if (u < this._baseNodes) {
+            for (int e = this._offsets.get(u), end = this._offsets.get(u + 1); e < end; ++e) {
+               int v = this._targets.get(e);
+               if (u < v) {
+                  from.add(u);
+                  to.add(v);
+               }
+            }
+         }
+         for (int e = 0; e < this._extraCount[u]; ++e) {
+            if (u < this._extra[u][e]) {
+               from.add(u);
+               to.add(this._extra[u][e]);
+            }
+         }
+         this._extra[u] = null;
+         this._extraCount[u] = 0;
+      }//end for
+      this._extraEdges = 0;
+      buildCsr(from, to);
+   }//end compact
+
+   private boolean hasEdge (int a, int b) {
+      if (a < this._baseNodes && contains(this._targets, this._offsets.get(a), this._offsets.get(a + 1), b))
+         return true;
+      for (int e = 0; e < this._extraCount[a]; ++e)
+         if (this._extra[a][e] == b)
+            return true;
+      return false;
+   }//end hasEdge
+
+   // binary search of the sorted range [from, to) of the buffer
+   private static boolean contains (IntBuffer sorted, int from, int to, int key) {
+      int lo = from, hi = to - 1;
+      while (lo <= hi) {
+         int mid = (lo + hi) >>> 1;
+         int v = sorted.get(mid);
+         if (v < key)
+            lo = mid + 1;
+         else if (v > key)
+            hi = mid - 1;
+         else
+            return true;
+      }
+      return false;
+   }//end contains
+
+   private void addExtra (int u, int v) {
+      int[] list = this._extra[u];
+      int count = this._extraCount[u];
+      if (list == null)
+         list = this._extra[u] = new int[4];
+      else if (count == list.length)
+         list = this._extra[u] = Arrays.copyOf(list, count * 2);
+      list[count] = v;
+      this._extraCount[u] = count + 1;
+   }//end addExtra
+
+   // appends the neighbors of u to out; the caller holds the lock
+   private void appendNeighbors (int u, IntList out) {
+      if (u < this._baseNodes)
+         for (int e = this._offsets.get(u), end = this._offsets.get(u + 1); e < end; ++e)
+            out.add(this._targets.get(e));
+      for (int e = 0; e < this._extraCount[u]; ++e)
+         out.add(this._extra[u][e]);
+   }//end appendNeighbors
+
+   // ranks by mutual count, then by lower node number for a stable order
+   private static boolean better (int countA, int nodeA, int countB, int nodeB) {
+      return countA > countB || (countA == countB && nodeA < nodeB);
+   }//end better
+
+   private static void siftUp (int[] nodes, int[] counts, int i) {
+      while (i > 0) {
+         int parent = (i - 1) >>> 1;
+         if (!better(counts[parent], nodes[parent], counts[i], nodes[i]))
+            break;
+         swap(nodes, counts, i, parent);
+         i = parent;
+      }
+   }//end siftUp
+
+   private static void siftDown (int[] nodes, int[] counts, int size) {
+      int i = 0;
+      while (true) {
+         int worst = i;
+         int l = 2 * i + 1, r = l + 1;
+         if (l < size && better(counts[worst], nodes[worst], counts[l], nodes[l]))
+            worst = l;
+         if (r < size && better(counts[worst], nodes[worst], counts[r], nodes[r]))
+            worst = r;
+         if (worst == i)
+            return;
+         swap(nodes, counts, i, worst);
+         i = worst;
+      }
+   }//end siftDown
+
+   private static void swap (int[] nodes, int[] counts, int i, int j) {
+      int n = nodes[i]; nodes[i] = nodes[j]; nodes[j] = n;
+      int c = counts[i]; counts[i] = counts[j]; counts[j] = c;
+   }//end swap
+
+   static long pairKey (int from, int to) {
+      return ((long) from << 32) | (to & 0xffffffffL);
+   }//end pairKey
+
+   /**
+    * A suggested connection and the number of friends shared with it.
+    */
+   public static final class Suggestion {
+      public final String userId;
+      public final int mutualFriends;
+
+      Suggestion (String userId, int mutualFriends) {
+         this.userId = userId;
+         this.mutualFriends = mutualFriends;
+      }
+   }//end Suggestion
+
+   /**
+    * A growable list of primitive ints.
+    */
+   static final class IntList {
+      int[] data = new int[16];
+      int size = 0;
+
+      void add (int v) {
+         if (this.size == this.data.length)
+            this.data = Arrays.copyOf(this.data, this.size * 2);
+         this.data[this.size++] = v;
+      }
+   }//end IntList
+
+   /**
+    * An open addressing set of non-negative ints.
+    */
+   static final class IntSet {
+      private int[] _slots = new int[64];
+      private int _size = 0;
+
+      IntSet () {
+         Arrays.fill(this._slots, -1);
+      }
+
+      boolean contains (int v) {
+         int mask = this._slots.length - 1;
+         for (int i = mix(v) & mask; ; i = (i + 1) & mask) {
+            int s = this._slots[i];
+            if (s == v)
+               return true;
+            if (s == -1)
+               return false;
+         }
+      }//end contains
+
+      boolean add (int v) {
+         if (2 * (this._size + 1) > this._slots.length)
+            grow();
+         int mask = this._slots.length - 1;
+         for (int i = mix(v) & mask; ; i = (i + 1) & mask) {
+            int s = this._slots[i];
+            if (s == v)
+               return false;
+            if (s == -1) {
+               this._slots[i] = v;
+               ++this._size;
+               return true;
+            }
+         }
+      }//end add
+
+      private void grow () {
+         int[] old = this._slots;
+         this._slots = new int[old.length * 2];
+         Arrays.fill(this._slots, -1);
+         this._size = 0;
+         for (int s : old)
+            if (s != -1)
+               add(s);
+      }//end grow
+
+      static int mix (int v) {
+         int h = v * 0x9E3779B9;
+         return h ^ (h >>> 16);
+      }
+   }//end IntSet
+
+   /**
+    * An open addressing map from non-negative ints to int counters.
+    */
+   static final class IntCounter {
+      private int[] _keys = new int[64];
+      private int[] _values = new int[64];
+      private int _size = 0;
+
+      IntCounter () {
+         Arrays.fill(this._keys, -1);
+      }
+
+      void increment (int key) {
+         if (2 * (this._size + 1) > this._keys.length)
+            grow();
+         int mask = this._keys.length - 1;
+         for (int i = IntSet.mix(key) & mask; ; i = (i + 1) & mask) {
+            if (this._keys[i] == key) {
+               ++this._values[i];
+               return;
+            }
+            if (this._keys[i] == -1) {
+               this._keys[i] = key;
+               this._values[i] = 1;
+               ++this._size;
+               return;
+            }
+         }
+      }//end increment
+
+      int capacity () { return this._keys.length; }
+      // the key stored in a slot, or -1 for an empty slot
+      int keyAt (int slot) { return this._keys[slot]; }
+      int valueAt (int slot) { return this._values[slot]; }
+
+      private void grow () {
+         int[] oldKeys = this._keys;
+         int[] oldValues = this._values;
+         this._keys = new int[oldKeys.length * 2];
+         this._values = new int[oldKeys.length * 2];
+         Arrays.fill(this._keys, -1);
+         int mask = this._keys.length - 1;
+         for (int j = 0; j < oldKeys.length; ++j) {
+            if (oldKeys[j] == -1)
+               continue;
+            int i = IntSet.mix(oldKeys[j]) & mask;
+            while (this._keys[i] != -1)
+               i = (i + 1) & mask;
+            this._keys[i] = oldKeys[j];
+            this._values[i] = oldValues[j];
+         }
+      }//end grow
+   }//end IntCounter
+
+}//end SocialGraph
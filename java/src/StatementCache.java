@@ -0,0 +1,106 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of PreparedStatements belonging to a single
+ * connection, keyed by SQL template. Reusing the same PreparedStatement lets
+ * the driver skip re-parsing and, with drivers that support it, switch to a
+ * server side prepared plan after a few executions.
+ *
+ * Instances are not thread safe; a connection and its cache are only ever
+ * used by the caller that borrowed the connection.
+ */
+public class StatementCache {
+
+   private final Connection _connection;
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   private long _hits = 0;
+   private long _misses = 0;
+
+   /**
+    * @param connection the connection statements are prepared on
+    * @param capacity maximum number of statements kept open
+    */
+   public StatementCache (Connection connection, final int capacity) {
+      this._connection = connection;
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= capacity)
+               return false;
+            closeQuietly(eldest.getValue());
+            return true;
+         }
+      };
+   }//end StatementCache
+
+   /**
+    * Returns the cached statement for the SQL template, preparing it on a miss.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @return an open PreparedStatement with its parameters cleared
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare (String sql) throws SQLException {
+      PreparedStatement ps = this._statements.get(sql);
+      if (ps != null) {
+         ++this._hits;
+         ps.clearParameters();
+         return ps;
+      }
+      ++this._misses;
+      ps = this._connection.prepareStatement(sql);
+      this._statements.put(sql, ps);
+      return ps;
+   }//end prepare
+
+   /**
+    * Drops a statement from the cache, e.g. after it failed and may be in
+    * an unknown state.
+    *
+    * @param sql the SQL template used to prepare the statement
+    */
+   public void evict (String sql) {
+      PreparedStatement ps = this._statements.remove(sql);
+      if (ps != null)
+         closeQuietly(ps);
+   }//end evict
+
+   /**
+    * Method to close every cached statement.
+    */
+   public void close () {
+      for (PreparedStatement ps : this._statements.values())
+         closeQuietly(ps);
+      this._statements.clear();
+   }//end close
+
+   public long getHits () { return this._hits; }
+   public long getMisses () { return this._misses; }
+   public int size () { return this._statements.size(); }
+
+   private static void closeQuietly (PreparedStatement ps) {
+      try {
+         ps.close();
+      } catch (SQLException e) {
+         // ignored.
+      }//end try
+   }//end closeQuietly
+
+}//end StatementCache
@@ -0,0 +1,183 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Renders rows as a left aligned text table. Rows are collected into a page
+ * and each page is padded into one reusable buffer and written with a single
+ * call, instead of formatting and flushing every cell separately.
+ *
+ * Column widths are sized from the header and the data of the current page
+ * and only ever grow, so columns stay aligned across pages of a long result.
+ * Trailing blanks (from char(n) columns) are not counted and null values are
+ * printed as a placeholder.
+ */
+public class TableRenderer {
+
+   // text printed in place of SQL NULL
+   static final String NULL_TEXT = "-----";
+   // spaces between two columns
+   private static final int GAP = 2;
+
+   private final PrintStream _out;
+   private final String[] _headers;
+   private final int[] _widths;
+   private final String[][] _page;
+   private int _pageRows = 0;
+   private int _rowCount = 0;
+   private boolean _headerPrinted = false;
+   private final StringBuilder _buffer = new StringBuilder(4096);
+
+   /**
+    * @param out where pages are written
+    * @param pageSize number of rows buffered before a page is written
+    * @param headers the column titles
+    */
+   public TableRenderer (PrintStream out, int pageSize, String... headers) {
+      this._out = out;
+      this._headers = headers;
+      this._widths = new int[headers.length];
+      this._page = new String[Math.max(1, pageSize)][];
+      for (int i = 0; i < headers.length; ++i)
+         this._widths[i] = headers[i].length();
+   }//end TableRenderer
+
+   /**
+    * Creates a renderer with the page size from profnetwork.render.pageSize
+    * (default 100).
+    *
+    * @param out where pages are written
+    * @param headers the column titles
+    */
+   public TableRenderer (PrintStream out, String... headers) {
+      this(out, Integer.getInteger("profnetwork.render.pageSize", 100), headers);
+   }
+
+   /**
+    * Adds a row, writing out the current page once it is full. The values
+    * are copied, so the array may be reused by the caller.
+    *
+    * @param row the column values, in header order
+    */
+   public void addRow (String[] row) {
+      String[] slot = this._page[this._pageRows];
+      if (slot == null)
+         slot = this._page[this._pageRows] = new String[this._headers.length];
+      int n = Math.min(row.length, slot.length);
+      for (int i = 0; i < n; ++i) {
+         String value = row[i];
+         slot[i] = value;
+         int w = (value == null) ? NULL_TEXT.length() : trimmedLength(value);
+         if (w > this._widths[i])
+            this._widths[i] = w;
+      }//end for
+      for (int i = n; i < slot.length; ++i)
+         slot[i] = null;
+      ++this._rowCount;
+      if (++this._pageRows == this._page.length)
+         flush();
+   }//end addRow
+
+   /**
+    * @param row the column values, in header order
+    */
+   public void addRow (List<String> row) {
+      addRow(row.toArray(new String[row.size()]));
+   }//end addRow
+
+   /**
+    * Adds every row of a materialized query result.
+    *
+    * @param rows the rows as returned by executeQueryAndReturnResult
+    */
+   public void addRows (List<List<String>> rows) {
+      for (List<String> row : rows)
+         addRow(row);
+   }//end addRows
+
+   /**
+    * Writes the buffered rows, preceded by the header on the first page.
+    * Nothing is written for an empty table.
+    */
+   public void flush () {
+      if (this._pageRows == 0)
+         return;
+      StringBuilder sb = this._buffer;
+      sb.setLength(0);
+      if (!this._headerPrinted) {
+         int total = 0;
+         for (int i = 0; i < this._headers.length; ++i) {
+            appendCell(sb, this._headers[i], i);
+            total += this._widths[i] + GAP;
+         }
+         endLine(sb);
+         for (int i = 0; i < total - GAP; ++i)
+            sb.append('-');
+         sb.append('\n');
+         this._headerPrinted = true;
+      }//end if
+      for (int r = 0; r < this._pageRows; ++r) {
+         String[] row = this._page[r];
+         for (int i = 0; i < row.length; ++i) {
+            appendCell(sb, row[i], i);
+            row[i] = null;
+         }
+         endLine(sb);
+      }//end for
+      this._pageRows = 0;
+      this._out.append(sb);
+      this._out.flush();
+   }//end flush
+
+   /**
+    * @return whether anything has been written to the output yet
+    */
+   public boolean hasPrinted () {
+      return this._headerPrinted;
+   }
+
+   /**
+    * @return the number of rows added so far
+    */
+   public int getRowCount () {
+      return this._rowCount;
+   }
+
+   private void appendCell (StringBuilder sb, String value, int column) {
+      if (value == null)
+         value = NULL_TEXT;
+      int len = trimmedLength(value);
+      sb.append(value, 0, len);
+      for (int pad = this._widths[column] + GAP - len; pad > 0; --pad)
+         sb.append(' ');
+   }//end appendCell
+
+   // drops the padding after the last column of a line
+   private static void endLine (StringBuilder sb) {
+      int end = sb.length();
+      while (end > 0 && sb.charAt(end - 1) == ' ')
+         --end;
+      sb.setLength(end);
+      sb.append('\n');
+   }//end endLine
+
+   private static int trimmedLength (String value) {
+      int len = value.length();
+      while (len > 0 && value.charAt(len - 1) <= ' ')
+         --len;
+      return len;
+   }//end trimmedLength
+
+}//end TableRenderer
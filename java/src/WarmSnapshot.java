@@ -0,0 +1,215 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of the in memory structures built from USR and
+ * CONNECTION_USR (the social graph and the people search index), so a
+ * restarted process reads one local file instead of scanning both tables
+ * over JDBC.
+ *
+ * Layout, big endian:
+ * - header: magic, format version (ints) and the watermark (long, database
+ *   time in ms up to which the structures were current);
+ * - the people search index, see PeopleSearchIndex.writeTo;
+ * - the social graph, see SocialGraph.writeTo;
+ * - trailer: CRC32 of everything before it (long).
+ *
+ * A snapshot is written to a temporary file next to the target and renamed
+ * over it, so readers see either the old or the new file. It is read
+ * through a read only MappedByteBuffer; the adjacency arrays of the graph
+ * stay in the mapping instead of being copied to the heap. A snapshot with
+ * another magic, another version or a bad checksum is rejected, and the
+ * caller falls back to loading from the database.
+ *
+ * Rows changed after the watermark are not in the snapshot; the caller
+ * catches up on them, see ProfNetwork.warmStart.
+ */
+public final class WarmSnapshot {
+
+   static final int MAGIC = 0x504e5753;
+   static final int VERSION = 1;
+   private static final int HEADER_BYTES = 16;
+   private static final int TRAILER_BYTES = 8;
+
+   // database time in ms up to which the structures were current
+   public final long watermark;
+   public final PeopleSearchIndex index;
+   public final SocialGraph graph;
+
+   private WarmSnapshot (long watermark, PeopleSearchIndex index, SocialGraph graph) {
+      this.watermark = watermark;
+      this.index = index;
+      this.graph = graph;
+   }//end WarmSnapshot
+
+   /**
+    * Maps and verifies a snapshot file.
+    *
+    * @param file the snapshot file
+    * @return the snapshot, or null when the file does not exist
+    * @throws java.io.IOException when the file cannot be read, is of another
+    *         version or is corrupt
+    */
+   public static WarmSnapshot read (File file) throws IOException {
+      if (!file.exists())
+         return null;
+      MappedByteBuffer buf;
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         long size = raf.length();
+         if (size < HEADER_BYTES + TRAILER_BYTES || size > Integer.MAX_VALUE)
+            throw new IOException("Snapshot " + file + " has an invalid size of " + size + " bytes");
+         // the mapping stays valid after the channel is closed
+         buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+      } finally {
+         raf.close();
+      }
+      if (buf.getInt(0) != MAGIC)
+         throw new IOException("Snapshot " + file + " is not a snapshot file");
+      if (buf.getInt(4) != VERSION)
+         throw new IOException("Snapshot " + file + " has version " + buf.getInt(4) + ", expected " + VERSION);
+      int end = buf.capacity() - TRAILER_BYTES;
+      if (crc(buf, end) != buf.getLong(end))
+         throw new IOException("Snapshot " + file + " is corrupt: checksum mismatch");
+
+      try {
+         buf.position(8);
+         long watermark = buf.getLong();
+         buf.limit(end);
+         PeopleSearchIndex index = PeopleSearchIndex.read(buf);
+         SocialGraph graph = SocialGraph.read(buf);
+         if (buf.hasRemaining())
+            throw new IllegalArgumentException(buf.remaining() + " trailing bytes");
+         return new WarmSnapshot(watermark, index, graph);
+      } catch (RuntimeException e) {
+         // a matching checksum over a malformed body: written by a broken writer
+         throw new IOException("Snapshot " + file + " is malformed: " + e, e);
+      }//end try
+   }//end read
+
+   /**
+    * Writes a snapshot of the index and the graph, replacing the file
+    * atomically. Both are only read locked while they are written out.
+    *
+    * @param file the snapshot file
+    * @param watermark database time in ms up to which the structures are current
+    * @param index the people search index
+    * @param graph the social graph
+    * @throws java.io.IOException when failed to write the file
+    */
+   public static void write (File file, long watermark, PeopleSearchIndex index, SocialGraph graph)
+         throws IOException {
+      File tmp = new File(file.getPath() + ".tmp");
+      FileOutputStream fos = new FileOutputStream(tmp);
+      boolean done = false;
+      try {
+         CRC32 crc = new CRC32();
+         DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new CheckedOutputStream(fos, crc), 1 << 16));
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeLong(watermark);
+         index.writeTo(out);
+         graph.writeTo(out);
+         out.flush();
+         // the trailer is written past the checksummed stream
+         new DataOutputStream(fos).writeLong(crc.getValue());
+         fos.getFD().sync();
+         done = true;
+      } finally {
+         fos.close();
+         if (!done)
+            tmp.delete();
+      }//end try
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }//end write
+
+   // CRC32 of the first len bytes of buf
+   private static long crc (ByteBuffer buf, int len) {
+      CRC32 crc = new CRC32();
+      byte[] chunk = new byte[1 << 16];
+      ByteBuffer view = buf.duplicate();
+      view.position(0);
+      for (int pos = 0; pos < len; pos += chunk.length) {
+         int n = Math.min(chunk.length, len - pos);
+         view.get(chunk, 0, n);
+         crc.update(chunk, 0, n);
+      }
+      return crc.getValue();
+   }//end crc
+
+   /**
+    * Writes a string as its UTF-8 length and bytes, -1 for null.
+    *
+    * @param out the snapshot being written
+    * @param s the string, may be null
+    * @throws java.io.IOException when failed to write
+    */
+   static void writeString (DataOutputStream out, String s) throws IOException {
+      if (s == null) {
+         out.writeInt(-1);
+         return;
+      }
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }//end writeString
+
+   /**
+    * @param buf the snapshot, positioned at a string written by writeString
+    * @return the string, or null
+    */
+   static String readString (ByteBuffer buf) {
+      int len = buf.getInt();
+      if (len < 0)
+         return null;
+      byte[] bytes = new byte[len];
+      buf.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }//end readString
+
+   /**
+    * Returns a view of the next count ints of buf and moves past them. The
+    * view reads the buffer in place, so the ints of a mapped buffer are
+    * never copied to the heap.
+    *
+    * @param buf the snapshot
+    * @param count the number of ints
+    * @return the ints as a buffer of limit count
+    */
+   static IntBuffer intSlice (ByteBuffer buf, int count) {
+      if (count < 0 || count > buf.remaining() / 4)
+         throw new IllegalArgumentException("array of " + count + " ints past the end");
+      ByteBuffer view = buf.slice();
+      view.limit(count * 4);
+      buf.position(buf.position() + count * 4);
+      return view.asIntBuffer();
+   }//end intSlice
+
+}//end WarmSnapshot
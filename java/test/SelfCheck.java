@@ -0,0 +1,1150 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Behavioral self-checks of ProfNetwork that need no database. Checks that
+ * need JDBC run against the FakeDriver; where a check needs rows they come
+ * from the CSV files in data/, the same rows load_data.sql puts into the
+ * tables.
+ *
+ * Every check runs on its own; a failed check is reported with its message
+ * and the run exits with status 1.
+ *
+ * Usage: java -ea SelfCheck [data directory] [name regex]
+ * Settings: profnetwork.check.seed (default 42).
+ */
+public class SelfCheck {
+
+   /**
+    * One check. run() throws when the behavior is wrong.
+    */
+   static abstract class Check {
+      final String name;
+
+      Check (String name) {
+         this.name = name;
+      }
+
+      abstract void run () throws Exception;
+   }//end Check
+
+   public static void main (String[] args) throws Exception {
+      File data = new File(args.length > 0 ? args[0] : "../../data");
+      Pattern filter = Pattern.compile(args.length > 1 ? args[1] : ".*");
+      long seed = Long.getLong("profnetwork.check.seed", 42L);
+
+      List<Check> checks = new ArrayList<Check>();
+      addGraph(checks, data, seed);
+      addUnionFind(checks, seed);
+      addSearch(checks, data, seed);
+      addBloom(checks, data, seed);
+      addReplicas(checks);
+      addPool(checks, seed);
+      addCursor(checks);
+      addDeadline(checks, seed);
+      addMessageQueue(checks, seed);
+      addProfileCache(checks, seed);
+
+      int failed = 0, run = 0;
+      for (Check c : checks) {
+         if (!filter.matcher(c.name).find())
+            continue;
+         ++run;
+         long start = System.nanoTime();
+         try {
+            c.run();
+            System.out.format("ok    %-40s %8.1f ms\n", c.name, (System.nanoTime() - start) / 1e6);
+         } catch (Throwable t) {
+            ++failed;
+            System.out.format("FAIL  %-40s %s\n", c.name, t);
+         }//end try
+      }//end for
+      System.out.println(run + " checks, " + failed + " failed");
+      if (failed > 0)
+         System.exit(1);
+   }//end main
+
+   static void expect (boolean condition, String what) {
+      if (!condition)
+         throw new AssertionError(what);
+   }//end expect
+
+   // pads a value like a char(width) column
+   static String pad (String s, int width) {
+      StringBuilder sb = new StringBuilder(s);
+      while (sb.length() < width)
+         sb.append(' ');
+      return sb.toString();
+   }//end pad
+
+   private static void addGraph (List<Check> checks, final File data, final long seed) {
+      checks.add(new Check("SocialGraph.load/padded rows") {
+         void run () throws Exception {
+            // the rows as the char(50) schema returned them
+            List<String[]> rows = readCsv(new File(data, "data_CONNECTION_USR.csv"), 3);
+            SocialGraph.Loader loader = new SocialGraph.Loader();
+            Map<String, Set<String>> friends = new HashMap<String, Set<String>>();
+            for (String[] r : rows) {
+               loader.handleRow(new String[] { pad(r[0], 50), pad(r[1], 50), pad(r[2], 10) });
+               // self connections are not friendships
+               if (r[2].equals("Accept") && !r[0].equals(r[1])) {
+                  link(friends, r[0], r[1]);
+                  link(friends, r[1], r[0]);
+               }
+            }//end for
+            SocialGraph graph = loader.finish();
+            expect(!friends.isEmpty(), "the data has accepted connections");
+            for (Map.Entry<String, Set<String>> e : friends.entrySet()) {
+               expect(graph.degree(e.getKey()) == e.getValue().size(), "degree of " + e.getKey());
+               for (String f : e.getValue())
+                  expect(graph.withinHops(e.getKey(), f, 1), e.getKey() + " is one hop from " + f);
+            }
+            for (String[] r : rows)
+               if (r[2].equals("Request"))
+                  expect(graph.isPending(r[0], r[1]), "request " + r[0] + " -> " + r[1] + " pending");
+
+            // the 3 hop circle against a plain breadth first search
+            List<String> users = new ArrayList<String>(friends.keySet());
+            Random rnd = new Random(seed);
+            int within = 0;
+            for (int i = 0; i < 2000; ++i) {
+               String a = users.get(rnd.nextInt(users.size()));
+               String b = users.get(rnd.nextInt(users.size()));
+               boolean expected = hops(friends, a, b, 3);
+               expect(graph.withinHops(a, b, 3) == expected, a + " within 3 hops of " + b + " is " + expected);
+               within += expected ? 1 : 0;
+            }
+            expect(within > 0, "some sampled pairs are within 3 hops");
+         }
+      });
+      checks.add(new Check("SocialGraph.accept/compaction") {
+         void run () {
+            SocialGraph graph = new SocialGraph();
+            // a chain u0 - u1 - ... - u2999, long enough to trigger compactions
+            for (int i = 1; i < 3000; ++i) {
+               graph.addRequest("u" + (i - 1), "u" + i);
+               expect(graph.isPending("u" + (i - 1), "u" + i), "pending before accept");
+               graph.acceptRequest("u" + (i - 1), "u" + i);
+            }
+            expect(graph.getEdgeCount() == 2 * 2999, "edges " + graph.getEdgeCount());
+            expect(graph.degree("u0") == 1 && graph.degree("u5") == 2, "chain degrees");
+            expect(graph.withinHops("u10", "u13", 3), "3 hops along the chain");
+            expect(!graph.withinHops("u10", "u14", 3), "4 hops is outside the circle");
+            expect(!graph.isPending("u0", "u1"), "accepted is no longer pending");
+            graph.acceptRequest("u1", "u0");
+            expect(graph.degree("u0") == 1, "accepting twice adds no edge");
+         }
+      });
+   }//end addGraph
+
+   private static void addUnionFind (List<Check> checks, final long seed) {
+      checks.add(new Check("GraphAnalytics.union/concurrent") {
+         void run () throws Exception {
+            final int n = 20000;
+            Random rnd = new Random(seed);
+            for (int round = 0; round < 20; ++round) {
+               final int[][] edges = new int[n][2];
+               for (int[] e : edges) {
+                  e[0] = rnd.nextInt(n);
+                  e[1] = rnd.nextInt(n);
+               }
+               // the components of a plain sequential union-find
+               int[] plain = new int[n];
+               for (int i = 0; i < n; ++i)
+                  plain[i] = i;
+               for (int[] e : edges) {
+                  int a = plainFind(plain, e[0]), b = plainFind(plain, e[1]);
+                  plain[Math.max(a, b)] = Math.min(a, b);
+               }
+
+               final AtomicIntegerArray parent = new AtomicIntegerArray(n);
+               for (int i = 0; i < n; ++i)
+                  parent.set(i, i);
+               // threads union interleaved slices while others find
+               Thread[] threads = new Thread[4];
+               for (int t = 0; t < threads.length; ++t) {
+                  final int first = t;
+                  threads[t] = new Thread() {
+                     public void run () {
+                        for (int i = first; i < edges.length; i += 4) {
+                           GraphAnalytics.union(parent, edges[i][0], edges[i][1]);
+                           GraphAnalytics.find(parent, edges[(i * 7) % edges.length][1]);
+                        }
+                     }
+                  };
+                  threads[t].start();
+               }
+               for (Thread t : threads)
+                  t.join();
+               for (int i = 0; i < n; ++i) {
+                  // roots are linked under lower numbers, so the root is the smallest member
+                  int root = GraphAnalytics.find(parent, i);
+                  expect(root == plainFind(plain, i),
+                     "round " + round + ": node " + i + " has root " + root + ", not " + plainFind(plain, i));
+               }
+            }//end for
+         }
+      });
+   }//end addUnionFind
+
+   private static int plainFind (int[] parent, int x) {
+      while (parent[x] != x)
+         x = parent[x];
+      return x;
+   }//end plainFind
+
+   private static void addSearch (List<Check> checks, final File data, final long seed) {
+      checks.add(new Check("PeopleSearchIndex.search/replace") {
+         void run () throws Exception {
+            List<String[]> rows = readCsv(new File(data, "data_USR.csv"), 5);
+            Map<String, String> names = new HashMap<String, String>();
+            PeopleSearchIndex index = new PeopleSearchIndex();
+            for (String[] r : rows) {
+               index.put(r[0], r[3], r[2]);
+               names.put(r[0], r[3]);
+            }
+            Random rnd = new Random(seed);
+            List<String> users = new ArrayList<String>(names.keySet());
+            compareSearch(index, names, users, rnd);
+
+            // rename every other user, some of them twice
+            for (int i = 0; i < users.size(); i += 2) {
+               String u = users.get(i);
+               String renamed = names.get(users.get(rnd.nextInt(users.size()))) + " " + i;
+               index.put(u, renamed, null);
+               names.put(u, renamed);
+               if (i % 10 == 0)
+                  index.put(u, names.get(u), null);
+            }
+            compareSearch(index, names, users, rnd);
+
+            // replaced documents leave nothing behind in the posting lists
+            PeopleSearchIndex fresh = new PeopleSearchIndex();
+            for (Map.Entry<String, String> e : names.entrySet())
+               fresh.put(e.getKey(), e.getValue(), null);
+            expect(index.size() == fresh.size(), "size " + index.size());
+            expect(index.postingCount() == fresh.postingCount(),
+               "postings " + index.postingCount() + " after renames, " + fresh.postingCount() + " rebuilt");
+         }
+      });
+      checks.add(new Check("ProfNetwork.likeEscape") {
+         void run () throws Exception {
+            List<String[]> rows = readCsv(new File(data, "data_USR.csv"), 5);
+            List<String> values = new ArrayList<String>();
+            for (String[] r : rows)
+               values.add((r[0] + "\n" + r[3]).toLowerCase());
+            values.add("100% sure");
+            values.add("snake_case");
+            values.add("back\\slash!");
+            String[] terms = { "_", "%", "!", "\\", "e_c", "0%", "h!", "k\\s", "% s", "a" };
+            for (String q : terms) {
+               Pattern like = likePattern("%" + ProfNetwork.likeEscape(q) + "%");
+               int matched = 0;
+               for (String v : values) {
+                  expect(like.matcher(v).matches() == v.contains(q), "'" + q + "' against '" + v + "'");
+                  if (v.contains(q))
+                     ++matched;
+               }
+               expect(matched > 0, "'" + q + "' matches something");
+            }
+         }
+      });
+   }//end addSearch
+
+   // what Postgres does for value LIKE pattern ESCAPE '!'
+   private static Pattern likePattern (String pattern) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < pattern.length(); ++i) {
+         char c = pattern.charAt(i);
+         if (c == '!')
+            sb.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+         else if (c == '%')
+            sb.append(".*");
+         else if (c == '_')
+            sb.append('.');
+         else
+            sb.append(Pattern.quote(String.valueOf(c)));
+      }
+      return Pattern.compile(sb.toString(), Pattern.DOTALL);
+   }
+
+   // searches random 1 to 4 character pieces of names against a plain scan
+   private static void compareSearch (PeopleSearchIndex index, Map<String, String> names,
+                                      List<String> users, Random rnd) {
+      Map<String, String> lower = new HashMap<String, String>();
+      for (Map.Entry<String, String> e : names.entrySet())
+         lower.put(e.getKey(), (e.getKey() + "\n" + e.getValue()).toLowerCase());
+      for (int i = 0; i < 300; ++i) {
+         String source = (i % 2 == 0) ? users.get(rnd.nextInt(users.size())) : names.get(users.get(rnd.nextInt(users.size())));
+         int len = 1 + rnd.nextInt(Math.min(4, source.length()));
+         int at = rnd.nextInt(source.length() - len + 1);
+         String q = source.substring(at, at + len).toLowerCase();
+         if (q.trim().length() != q.length())
+            continue;
+         Set<String> expected = new HashSet<String>();
+         for (Map.Entry<String, String> e : lower.entrySet())
+            if (e.getValue().contains(q))
+               expected.add(e.getKey());
+         PeopleSearchIndex.Page page = index.search(q, 0, Integer.MAX_VALUE);
+         Set<String> found = new HashSet<String>();
+         for (String[] row : page.rows)
+            found.add(row[0]);
+         expect(page.total == expected.size() && found.equals(expected),
+            "'" + q + "' found " + page.total + ", expected " + expected.size());
+      }//end for
+   }//end compareSearch
+
+   private static void addBloom (List<Check> checks, final File data, final long seed) {
+      checks.add(new Check("BloomFilter/false positives") {
+         void run () throws Exception {
+            List<String[]> rows = readCsv(new File(data, "data_USR.csv"), 5);
+            BloomFilter filter = BloomFilter.create(rows.size(), 0.01);
+            for (String[] r : rows)
+               filter.add(r[0]);
+            for (String[] r : rows)
+               expect(filter.mightContain(r[0]), r[0] + " was added");
+            Random rnd = new Random(seed);
+            int positives = 0, tries = 100000;
+            for (int i = 0; i < tries; ++i)
+               positives += filter.mightContain("absent" + rnd.nextLong()) ? 1 : 0;
+            double rate = (double) positives / tries;
+            expect(rate < 0.02, "false positive rate " + rate + " at 0.01");
+         }
+      });
+      checks.add(new Check("BloomFilter/concurrent add") {
+         void run () throws Exception {
+            final BloomFilter filter = BloomFilter.create(400000, 0.01);
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; ++t) {
+               final int id = t;
+               threads[t] = new Thread() {
+                  public void run () {
+                     for (int i = 0; i < 100000; ++i)
+                        filter.add(id + ":" + i);
+                  }
+               };
+               threads[t].start();
+            }
+            for (Thread t : threads)
+               t.join();
+            // a lost compareAndSet would show up as a false negative
+            for (int t = 0; t < threads.length; ++t)
+               for (int i = 0; i < 100000; ++i)
+                  expect(filter.mightContain(t + ":" + i), t + ":" + i + " was added");
+         }
+      });
+   }//end addBloom
+
+   private static void addReplicas (List<Check> checks) {
+      checks.add(new Check("ReplicaRouter.classify") {
+         void run () {
+            expect(ReplicaRouter.classify(new PoolExhaustedException(5000, 8)) == ReplicaRouter.POOL_EXHAUSTED,
+               "pool exhausted");
+            // pg73 errors carry no SQLSTATE
+            expect(ReplicaRouter.classify(new SQLException("The backend has broken the connection. Possibly the"
+               + " action you have attempted has caused it to close.")) == ReplicaRouter.CONNECTION_LOST, "eof");
+            expect(ReplicaRouter.classify(new SQLException("FATAL:  terminating connection due to administrator"
+               + " command")) == ReplicaRouter.CONNECTION_LOST, "shutdown");
+            expect(ReplicaRouter.classify(new SQLException("ERROR:  canceling statement due to conflict with"
+               + " recovery")) == ReplicaRouter.REPLICA_ONLY, "replay conflict");
+            expect(ReplicaRouter.classify(new SQLException("ERROR:  relation \"usr\" does not exist"))
+               == ReplicaRouter.QUERY_FAILED, "query error is not retried");
+            expect(ReplicaRouter.classify(new SQLException("read", "08006")) == ReplicaRouter.CONNECTION_LOST, "08");
+            expect(ReplicaRouter.classify(new SQLException("x", "40001")) == ReplicaRouter.REPLICA_ONLY, "40001");
+            expect(ReplicaRouter.classify(new SQLException("broken the connection", "42P01"))
+               == ReplicaRouter.QUERY_FAILED, "SQLSTATE wins over the message");
+            expect(ReplicaRouter.classify(new SQLException("wrapped", new java.io.EOFException()))
+               == ReplicaRouter.CONNECTION_LOST, "I/O cause");
+            expect(ReplicaRouter.classify(new QueryTimeoutException("Search", "SELECT", 10, 11, null))
+               == ReplicaRouter.QUERY_FAILED, "timeouts are not retried");
+         }
+      });
+   }//end addReplicas
+
+   /**
+    * A Connection and its Statements as proxies that record the SQL they
+    * execute and the cancels they get, for checks without a database.
+    * Prepared statements insert their parameters into the rows of the
+    * FakeDriver on commit; a row whose second parameter is "nobody" fails,
+    * and one whose second parameter is "broken" fails and breaks the next
+    * rollback after a single row insert.
+    * A DECLARE opens a cursor over cursorRows rows "r0", "r1", ... that
+    * honors its LIMIT and OFFSET, and FETCH FORWARD pulls from it.
+    */
+   static final class FakeConnection implements InvocationHandler {
+      final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+      final AtomicInteger cancels = new AtomicInteger();
+      volatile boolean autoCommit = true;
+      volatile boolean closed = false;
+      // set once the statement under test finished; a cancel after it is a bug
+      volatile boolean finished = false;
+      final AtomicInteger lateCancels = new AtomicInteger();
+      final List<Object[]> uncommitted = new ArrayList<Object[]>();
+      volatile boolean rollbackFails = false;
+      // rows of the next declared cursor, a negative count fails the DECLARE
+      volatile int cursorRows = 0;
+      // the position and end of the declared cursor
+      private long _cursorAt = 0, _cursorEnd = 0;
+      final Connection connection = (Connection) Proxy.newProxyInstance(
+         SelfCheck.class.getClassLoader(), new Class<?>[] { Connection.class }, this);
+
+      public Object invoke (Object proxy, Method m, Object[] args) throws SQLException {
+         String name = m.getName();
+         if (name.equals("getAutoCommit"))
+            return Boolean.valueOf(this.autoCommit);
+         if (name.equals("setAutoCommit"))
+            this.autoCommit = ((Boolean) args[0]).booleanValue();
+         else if (name.equals("createStatement"))
+            return statement();
+         else if (name.equals("prepareStatement"))
+            return prepared((String) args[0]);
+         else if (name.equals("commit")) {
+            FakeDriver.INSTANCE.rows.addAll(this.uncommitted);
+            this.uncommitted.clear();
+         } else if (name.equals("rollback")) {
+            this.uncommitted.clear();
+            if (this.rollbackFails) {
+               this.rollbackFails = false;
+               throw new SQLException("An I/O error occured while sending to the backend.", "08006");
+            }
+         } else if (name.equals("close"))
+            this.closed = true;
+         else if (name.equals("isClosed"))
+            return Boolean.valueOf(this.closed);
+         return common(proxy, m, args);
+      }
+
+      Statement statement () {
+         return (Statement) Proxy.newProxyInstance(SelfCheck.class.getClassLoader(),
+                                                   new Class<?>[] { Statement.class }, new InvocationHandler() {
+            public Object invoke (Object proxy, Method m, Object[] args) {
+               String name = m.getName();
+               if (name.equals("getConnection"))
+                  return connection;
+               if (name.equals("cancel")) {
+                  cancels.incrementAndGet();
+                  if (finished)
+                     lateCancels.incrementAndGet();
+               } else if (name.equals("execute")) {
+                  executed.add((String) args[0]);
+               } else if (name.equals("executeQuery")) {
+                  executed.add((String) args[0]);
+                  if (((String) args[0]).startsWith("FETCH FORWARD "))
+                     return fetch(Integer.parseInt(((String) args[0]).split(" ")[2]));
+                  return Proxy.newProxyInstance(SelfCheck.class.getClassLoader(),
+                                                new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+                     public Object invoke (Object rs, Method rm, Object[] rargs) {
+                        return common(rs, rm, rargs);
+                     }
+                  });
+               }
+               return common(proxy, m, args);
+            }
+         });
+      }//end statement
+
+      PreparedStatement prepared (final String sql) {
+         final Object[] params = new Object[8];
+         final List<Object[]> batch = new ArrayList<Object[]>();
+         return (PreparedStatement) Proxy.newProxyInstance(SelfCheck.class.getClassLoader(),
+                                                           new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+            public Object invoke (Object proxy, Method m, Object[] args) throws SQLException {
+               String name = m.getName();
+               if (name.startsWith("set") && args.length == 2 && args[0] instanceof Integer)
+                  params[((Integer) args[0]).intValue()] = args[1];
+               else if (name.equals("addBatch"))
+                  batch.add(params.clone());
+               else if (name.equals("clearBatch"))
+                  batch.clear();
+               else if (name.equals("executeBatch")) {
+                  for (Object[] row : batch)
+                     insert(row);
+                  int[] counts = new int[batch.size()];
+                  Arrays.fill(counts, 1);
+                  batch.clear();
+                  return counts;
+               } else if (name.equals("executeUpdate") && sql.startsWith("DECLARE ")) {
+                  // a query without parameters: LIMIT is the first, OFFSET the second
+                  executed.add(sql);
+                  if (cursorRows < 0)
+                     throw new SQLException("ERROR:  relation \"t\" does not exist");
+                  _cursorAt = Math.min(cursorRows, ((Long) params[2]).longValue());
+                  _cursorEnd = Math.min(cursorRows, _cursorAt + ((Long) params[1]).longValue());
+                  return Integer.valueOf(0);
+               } else if (name.equals("executeUpdate")) {
+                  rollbackFails = "broken".equals(params[2]);
+                  insert(params.clone());
+                  return Integer.valueOf(1);
+               }
+               return common(proxy, m, args);
+            }
+         });
+      }//end prepared
+
+      // the next count rows of the declared cursor, one column each
+      private ResultSet fetch (int count) {
+         final long from = this._cursorAt, to = Math.min(this._cursorEnd, from + count);
+         this._cursorAt = to;
+         final long[] at = { from - 1 };
+         return (ResultSet) Proxy.newProxyInstance(SelfCheck.class.getClassLoader(),
+                                                   new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+            public Object invoke (Object rs, Method m, Object[] args) {
+               String name = m.getName();
+               if (name.equals("next"))
+                  return Boolean.valueOf(++at[0] < to);
+               if (name.equals("getString"))
+                  return "r" + at[0];
+               if (name.equals("getMetaData"))
+                  return Proxy.newProxyInstance(SelfCheck.class.getClassLoader(),
+                                                new Class<?>[] { ResultSetMetaData.class }, new InvocationHandler() {
+                     public Object invoke (Object md, Method mm, Object[] margs) {
+                        return mm.getName().equals("getColumnCount") ? Integer.valueOf(1) : common(md, mm, margs);
+                     }
+                  });
+               return common(rs, m, args);
+            }
+         });
+      }//end fetch
+
+      private void insert (Object[] row) throws SQLException {
+         if ("nobody".equals(row[2]) || "broken".equals(row[2]))
+            throw new SQLException("ERROR:  null value in column \"receiveruid\" violates not-null constraint");
+         this.uncommitted.add(row);
+      }//end insert
+   }//end FakeConnection
+
+   // identity, and zero values for everything else a proxy is asked
+   static Object common (Object proxy, Method m, Object[] args) {
+      String name = m.getName();
+      if (name.equals("hashCode"))
+         return Integer.valueOf(System.identityHashCode(proxy));
+      if (name.equals("equals"))
+         return Boolean.valueOf(proxy == args[0]);
+      if (name.equals("toString"))
+         return "fake " + m.getDeclaringClass().getSimpleName();
+      Class<?> type = m.getReturnType();
+      if (type == boolean.class)
+         return Boolean.FALSE;
+      if (type == int.class)
+         return Integer.valueOf(0);
+      if (type == long.class)
+         return Long.valueOf(0);
+      return null;
+   }//end common
+
+   /**
+    * A driver for jdbc:selfcheck: URLs that opens FakeConnections, so a
+    * ConnectionPool can be used without a database.
+    */
+   public static final class FakeDriver implements Driver {
+      static final String URL = "jdbc:selfcheck:db";
+      static final FakeDriver INSTANCE = new FakeDriver();
+      static {
+         try {
+            DriverManager.registerDriver(INSTANCE);
+         } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+         }
+      }
+      // committed rows of every connection
+      final List<Object[]> rows = Collections.synchronizedList(new ArrayList<Object[]>());
+      final List<FakeConnection> opened = Collections.synchronizedList(new ArrayList<FakeConnection>());
+      // connect fails once this many more connections have been opened
+      final AtomicInteger connectsLeft = new AtomicInteger(Integer.MAX_VALUE);
+
+      public Connection connect (String url, Properties info) throws SQLException {
+         if (!acceptsURL(url))
+            return null;
+         if (this.connectsLeft.getAndDecrement() <= 0)
+            throw new SQLException("connection refused", "08001");
+         FakeConnection c = new FakeConnection();
+         this.opened.add(c);
+         return c.connection;
+      }
+      public boolean acceptsURL (String url) {
+         return url.startsWith("jdbc:selfcheck:");
+      }
+      public DriverPropertyInfo[] getPropertyInfo (String url, Properties info) {
+         return new DriverPropertyInfo[0];
+      }
+      public int getMajorVersion () {
+         return 1;
+      }
+      public int getMinorVersion () {
+         return 0;
+      }
+      public boolean jdbcCompliant () {
+         return false;
+      }
+      public Logger getParentLogger () throws SQLFeatureNotSupportedException {
+         throw new SQLFeatureNotSupportedException();
+      }
+   }//end FakeDriver
+
+   static ConnectionPool fakePool (int maxSize) throws SQLException {
+      return fakePool(0, maxSize);
+   }//end fakePool
+
+   static ConnectionPool fakePool (int minSize, int maxSize) throws SQLException {
+      // URL is a constant, so naming it alone would not register the driver
+      expect(FakeDriver.INSTANCE.acceptsURL(FakeDriver.URL), "the fake driver is registered");
+      return new ConnectionPool(FakeDriver.URL, "user", "", minSize, maxSize, 1000, 60000, 1000, 16);
+   }//end fakePool
+
+   // the FakeConnection behind a connection the FakeDriver opened
+   static FakeConnection fake (Connection c) {
+      synchronized (FakeDriver.INSTANCE.opened) {
+         for (FakeConnection f : FakeDriver.INSTANCE.opened)
+            if (f.connection == c)
+               return f;
+      }
+      throw new AssertionError("not opened by the FakeDriver: " + c);
+   }//end fake
+
+   private static void addPool (List<Check> checks, final long seed) {
+      checks.add(new Check("ConnectionPool/borrow, release and discard") {
+         void run () throws Exception {
+            ConnectionPool pool = fakePool(2);
+            Connection a = pool.borrow(), b = pool.borrow();
+            expect(a != b && pool.getOpenCount() == 2, "two connections open: " + pool.stats());
+            try {
+               pool.borrow(50);
+               expect(false, "a third borrow fails");
+            } catch (PoolExhaustedException e) {
+               expect("53300".equals(e.getSQLState()), "SQLSTATE " + e.getSQLState());
+            }
+            expect(pool.getTimeoutCount() == 1, "timeout counted: " + pool.stats());
+
+            // an open transaction is rolled back, and the connection reused
+            a.setAutoCommit(false);
+            pool.release(a);
+            Connection again = pool.borrow();
+            expect(again == a && again.getAutoCommit(), "released connection reused in auto-commit mode");
+
+            // a waiting borrower gets the next released connection
+            final Connection[] handed = new Connection[1];
+            final ConnectionPool shared = pool;
+            Thread waiter = new Thread() {
+               public void run () {
+                  try {
+                     handed[0] = shared.borrow();
+                  } catch (SQLException e) {
+                     // handed[0] stays null
+                  }
+               }
+            };
+            waiter.start();
+            Thread.sleep(50);
+            pool.release(b);
+            waiter.join();
+            expect(handed[0] == b, "the waiter got the released connection");
+
+            // closed, invalidated and cancelled connections are not reused
+            b.close();
+            pool.release(b);
+            pool.invalidate(a);
+            expect(pool.getOpenCount() == 0, "closed and invalid connections dropped: " + pool.stats());
+            expect(fake(a).closed, "an invalidated connection is closed");
+            Connection c = pool.borrow();
+            Deadline outer = Deadline.enter(Deadline.after(200));
+            try {
+               Deadline.Guard guard = Deadline.watch(c.createStatement(), "SELECT pg_sleep(?)");
+               Thread.sleep(400);
+               guard.close();
+            } finally {
+               Deadline.restore(outer);
+            }
+            expect(fake(c).cancels.get() == 1, "the deadline cancelled");
+            pool.release(c);
+            expect(pool.getOpenCount() == 0 && fake(c).closed, "a cancelled connection is closed: " + pool.stats());
+
+            pool.close();
+            try {
+               pool.borrow();
+               expect(false, "borrow from a closed pool fails");
+            } catch (PoolExhaustedException e) {
+               throw e;
+            } catch (SQLException e) {
+               // expected
+            }
+         }
+      });
+      checks.add(new Check("ConnectionPool/failed start") {
+         void run () throws Exception {
+            int before = FakeDriver.INSTANCE.opened.size();
+            FakeDriver.INSTANCE.connectsLeft.set(2);
+            try {
+               fakePool(3, 4);
+               expect(false, "the third connection fails");
+            } catch (SQLException e) {
+               expect("08001".equals(e.getSQLState()), "the connect failure is thrown: " + e);
+            } finally {
+               FakeDriver.INSTANCE.connectsLeft.set(Integer.MAX_VALUE);
+            }
+            List<FakeConnection> opened;
+            synchronized (FakeDriver.INSTANCE.opened) {
+               opened = new ArrayList<FakeConnection>(FakeDriver.INSTANCE.opened);
+            }
+            expect(opened.size() == before + 2, (opened.size() - before) + " connections opened");
+            for (FakeConnection f : opened.subList(before, opened.size()))
+               expect(f.closed, "the connections opened before the failure are closed");
+         }
+      });
+      checks.add(new Check("ConnectionPool/concurrent borrowers") {
+         void run () throws Exception {
+            final ConnectionPool pool = fakePool(3);
+            final Set<Connection> held = Collections.synchronizedSet(new HashSet<Connection>());
+            final AtomicInteger holders = new AtomicInteger(), maxHolders = new AtomicInteger();
+            final AtomicInteger shared = new AtomicInteger(), errors = new AtomicInteger();
+            final Random rnd = new Random(seed);
+            Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; ++t) {
+               final int salt = rnd.nextInt();
+               threads[t] = new Thread() {
+                  public void run () {
+                     Random r = new Random(salt);
+                     for (int i = 0; i < 2000; ++i) {
+                        try {
+                           Connection c = pool.borrow();
+                           int now = holders.incrementAndGet();
+                           for (int max = maxHolders.get(); now > max && !maxHolders.compareAndSet(max, now); )
+                              max = maxHolders.get();
+                           if (!held.add(c))
+                              shared.incrementAndGet();
+                           if (r.nextInt(4) == 0)
+                              Thread.yield();
+                           held.remove(c);
+                           holders.decrementAndGet();
+                           if (r.nextInt(100) == 0)
+                              pool.invalidate(c);
+                           else
+                              pool.release(c);
+                        } catch (SQLException e) {
+                           errors.incrementAndGet();
+                        }//end try
+                     }//end for
+                  }
+               };
+               threads[t].start();
+            }
+            for (Thread t : threads)
+               t.join();
+            expect(errors.get() == 0, errors.get() + " borrows failed");
+            expect(shared.get() == 0, shared.get() + " connections handed to two borrowers");
+            expect(maxHolders.get() <= 3, maxHolders.get() + " connections out of 3");
+            expect(pool.getOpenCount() <= 3 && pool.getActiveCount() == 0, "all returned: " + pool.stats());
+            pool.close();
+            expect(pool.getOpenCount() == 0, "close drops the idle connections: " + pool.stats());
+         }
+      });
+   }//end addPool
+
+   private static void addCursor (List<Check> checks) {
+      checks.add(new Check("QueryCursor/batches, limit and offset") {
+         void run () throws Exception {
+            ConnectionPool pool = fakePool(1);
+            // results around multiples of the fetch size, then a page out of the middle
+            long[][] cases = { { 0, 0, 0 }, { 3, 0, 0 }, { 4, 0, 0 }, { 5, 0, 0 }, { 12, 0, 0 }, { 12, 2, 5 }, { 12, 10, 5 } };
+            for (long[] k : cases) {
+               int rows = (int) k[0];
+               long offset = k[1], limit = k[2];
+               Connection c = pool.borrow();
+               FakeConnection fake = fake(c);
+               fake.cursorRows = rows;
+               fake.executed.clear();
+               QueryCursor cursor = new QueryCursor(pool, c, "SELECT x FROM t", 4, offset, limit, new Object[0]);
+               expect(!c.getAutoCommit(), "the cursor runs in a transaction");
+               long last = (limit > 0) ? Math.min(rows, offset + limit) : rows;
+               for (long i = offset; i < last; ++i) {
+                  expect(cursor.hasNext(), "row " + i + " of " + Arrays.toString(k));
+                  expect(cursor.next()[0].equals("r" + i), "row " + i + " in order");
+               }
+               expect(!cursor.hasNext() && !cursor.hasNext(), "no rows after " + last);
+               try {
+                  cursor.next();
+                  expect(false, "next() at the end fails");
+               } catch (NoSuchElementException e) {
+                  // expected
+               }
+               int fetches = 0;
+               for (String sql : fake.executed)
+                  if (sql.startsWith("FETCH FORWARD 4 FROM "))
+                     ++fetches;
+               // a full batch needs one more FETCH to see the end
+               expect(fetches == (int) (last - offset) / 4 + 1, fetches + " fetches for " + Arrays.toString(k));
+               expect(cursor.getRowCount() == last - offset, "row count " + cursor.getRowCount());
+               cursor.close();
+               cursor.close();
+               expect(pool.getActiveCount() == 0 && c.getAutoCommit(), "closed cursor returns its connection");
+            }//end for
+
+            // a failed DECLARE gives the connection back
+            Connection c = pool.borrow();
+            fake(c).cursorRows = -1;
+            try {
+               new QueryCursor(pool, c, "SELECT x FROM t", 4, 0, 0, new Object[0]);
+               expect(false, "DECLARE fails");
+            } catch (SQLException e) {
+               // expected
+            }
+            expect(pool.getActiveCount() == 0, "connection released after a failed DECLARE: " + pool.stats());
+            pool.close();
+         }
+      });
+   }//end addCursor
+
+   private static void addMessageQueue (List<Check> checks, final long seed) {
+      checks.add(new Check("MessageQueue/batches and failures") {
+         void run () throws Exception {
+            ConnectionPool pool = fakePool(2);
+            FakeDriver.INSTANCE.rows.clear();
+            MessageQueue queue = new MessageQueue(pool, 64, 16, 5000);
+            final AtomicInteger delivered = new AtomicInteger(), failed = new AtomicInteger();
+            MessageQueue.DeliveryListener listener = counting(delivered, failed);
+            for (int i = 0; i < 1000; ++i)
+               queue.send("alice", (i % 100 == 7) ? "nobody" : "bob", "message " + i, listener);
+            queue.close();
+            expect(failed.get() == 10, failed.get() + " failed, 10 sent to nobody");
+            expect(delivered.get() == 990, delivered.get() + " delivered");
+            expect(FakeDriver.INSTANCE.rows.size() == 990, FakeDriver.INSTANCE.rows.size() + " rows stored");
+            try {
+               queue.send("alice", "bob", "too late", listener);
+               expect(false, "send after close fails");
+            } catch (SQLException e) {
+               // expected
+            }
+            pool.close();
+         }
+      });
+      checks.add(new Check("MessageQueue/failed rollback") {
+         void run () throws Exception {
+            ConnectionPool pool = fakePool(2);
+            FakeDriver.INSTANCE.rows.clear();
+            MessageQueue queue = new MessageQueue(pool, 64, 16, 5000);
+            final AtomicInteger delivered = new AtomicInteger(), failed = new AtomicInteger();
+            final MessageQueue.DeliveryListener listener = counting(delivered, failed);
+            // the writer waits in the first callback, so the rest queue up as one batch
+            final CountDownLatch sent = new CountDownLatch(1);
+            queue.send("alice", "bob", "first", new MessageQueue.DeliveryListener() {
+               public void delivered (MessageQueue.OutgoingMessage message) {
+                  await(sent);
+                  listener.delivered(message);
+               }
+               public void failed (MessageQueue.OutgoingMessage message, SQLException error) {
+                  await(sent);
+                  listener.failed(message, error);
+               }
+            });
+            for (int i = 0; i < 10; ++i)
+               queue.send("alice", (i == 5) ? "broken" : "bob", "message " + i, listener);
+            sent.countDown();
+            queue.close();
+            expect(delivered.get() + failed.get() == 11,
+               delivered.get() + " delivered and " + failed.get() + " failed of 11");
+            expect(failed.get() > 0, "the broken message failed");
+            expect(FakeDriver.INSTANCE.rows.size() == delivered.get(),
+               FakeDriver.INSTANCE.rows.size() + " rows stored, " + delivered.get() + " delivered");
+            pool.close();
+         }
+      });
+      checks.add(new Check("MessageQueue/send racing close") {
+         void run () throws Exception {
+            ConnectionPool pool = fakePool(2);
+            Random rnd = new Random(seed);
+            for (int round = 0; round < 200; ++round) {
+               final MessageQueue queue = new MessageQueue(pool, 8, 4, 5000);
+               final AtomicInteger accepted = new AtomicInteger();
+               final AtomicInteger delivered = new AtomicInteger(), failed = new AtomicInteger();
+               final MessageQueue.DeliveryListener listener = counting(delivered, failed);
+               Thread[] senders = new Thread[3];
+               for (int t = 0; t < senders.length; ++t) {
+                  senders[t] = new Thread() {
+                     public void run () {
+                        try {
+                           while (true) {
+                              queue.send("alice", "bob", "hi", listener);
+                              accepted.incrementAndGet();
+                           }
+                        } catch (SQLException e) {
+                           // closed
+                        }
+                     }
+                  };
+                  senders[t].start();
+               }
+               Thread.sleep(rnd.nextInt(3));
+               queue.close();
+               for (Thread t : senders)
+                  t.join();
+               // every accepted message has been acknowledged once close() returned
+               expect(delivered.get() + failed.get() == accepted.get(),
+                  "round " + round + ": " + accepted.get() + " accepted, " + delivered.get() + " delivered, "
+                  + failed.get() + " failed");
+            }//end for
+            pool.close();
+         }
+      });
+   }//end addMessageQueue
+
+   private static void addProfileCache (List<Check> checks, final long seed) {
+      checks.add(new Check("ProfileCache/lru, ttl and stamps") {
+         void run () throws Exception {
+            ProfileCache cache = new ProfileCache(16 * 4, 50);
+            for (int i = 0; i < 1000; ++i)
+               cache.put(new ProfileCache.UserProfile("u" + i, null, "n" + i, null));
+            expect(cache.size() <= 16 * 4, "bounded: " + cache.size());
+            expect(cache.get("u999") != null, "the newest entry is cached");
+            cache.invalidate("u999");
+            expect(cache.get("u999") == null, "invalidated");
+
+            long[] stamp = cache.stamp();
+            cache.invalidate("u5");
+            expect(!cache.put(new ProfileCache.UserProfile("u5", null, "old", null), stamp),
+               "a row read before the invalidation is dropped");
+            expect(cache.get("u5") == null, "and not cached");
+            expect(cache.put(new ProfileCache.UserProfile("u5", null, "new", null), cache.stamp()),
+               "a row read after it is cached");
+
+            Thread.sleep(80);
+            expect(cache.get("u5") == null, "expired after the ttl");
+         }
+      });
+      checks.add(new Check("ProfileCache/read through racing writes") {
+         void run () throws Exception {
+            final ProfileCache cache = new ProfileCache(1024, Long.MAX_VALUE / 2);
+            final int users = 8;
+            // the "database": the current version of every user's name
+            final AtomicLongArray db = new AtomicLongArray(users);
+            final AtomicBoolean stop = new AtomicBoolean();
+            Thread[] threads = new Thread[6];
+            for (int t = 0; t < threads.length; ++t) {
+               final boolean writer = t < 2;
+               final Random rnd = new Random(seed + t);
+               threads[t] = new Thread() {
+                  public void run () {
+                     while (!stop.get()) {
+                        String u = "u" + rnd.nextInt(users);
+                        int k = u.charAt(1) - '0';
+                        if (writer) {
+                           // update the row, then invalidate like ProfNetwork does
+                           db.incrementAndGet(k);
+                           cache.invalidate(u);
+                        } else if (cache.get(u) == null) {
+                           long[] stamp = cache.stamp();
+                           long version = db.get(k);
+                           Thread.yield();
+                           cache.put(new ProfileCache.UserProfile(u, null, Long.toString(version), null), stamp);
+                        }
+                     }//end while
+                  }
+               };
+               threads[t].start();
+            }
+            Thread.sleep(500);
+            stop.set(true);
+            for (Thread t : threads)
+               t.join();
+            for (int k = 0; k < users; ++k) {
+               ProfileCache.UserProfile p = cache.get("u" + k);
+               expect(p == null || p.name.equals(Long.toString(db.get(k))),
+                  "u" + k + " cached at version " + (p == null ? null : p.name) + ", row is at " + db.get(k));
+            }
+         }
+      });
+   }//end addProfileCache
+
+   static void await (CountDownLatch latch) {
+      try {
+         latch.await();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }//end await
+
+   static MessageQueue.DeliveryListener counting (final AtomicInteger delivered, final AtomicInteger failed) {
+      return new MessageQueue.DeliveryListener() {
+         public void delivered (MessageQueue.OutgoingMessage message) {
+            delivered.incrementAndGet();
+         }
+         public void failed (MessageQueue.OutgoingMessage message, SQLException error) {
+            failed.incrementAndGet();
+         }
+      };
+   }//end counting
+
+   private static void addDeadline (List<Check> checks, final long seed) {
+      checks.add(new Check("Deadline.watch/cancel and backstop") {
+         void run () throws Exception {
+            FakeConnection fake = new FakeConnection();
+            Deadline outer = Deadline.enter(Deadline.after(100));
+            try {
+               Statement stmt = fake.statement();
+               Deadline.Guard guard = Deadline.watch(stmt, "SELECT pg_sleep(?)");
+               expect(fake.executed.size() == 1 && fake.executed.get(0).startsWith("SET statement_timeout = "),
+                  "session backstop set: " + fake.executed);
+               long value = Long.parseLong(fake.executed.get(0).substring("SET statement_timeout = ".length()));
+               expect(value >= 100 && value <= 1100, "backstop " + value + " for 100 ms");
+               Thread.sleep(300);
+               expect(fake.cancels.get() == 1, "cancelled at the deadline");
+               SQLException e = guard.translate(new SQLException("canceling statement due to user request"));
+               guard.close();
+               expect(e instanceof QueryTimeoutException, "reported as a timeout: " + e);
+               expect(Deadline.cancelSent(fake.connection), "the pool is told not to reuse the connection");
+               expect(!Deadline.cancelSent(fake.connection), "only once");
+            } finally {
+               Deadline.restore(outer);
+            }
+            // the next statement without a deadline clears the session value
+            Deadline.watch(fake.statement(), "SELECT 1").close();
+            expect(fake.executed.get(fake.executed.size() - 1).equals("SET statement_timeout = 0"),
+               "backstop cleared: " + fake.executed);
+            int sets = fake.executed.size();
+            Deadline.watch(fake.statement(), "SELECT 1").close();
+            expect(fake.executed.size() == sets, "no SET when nothing changes");
+
+            // a transaction gets SET LOCAL, which ends with it
+            fake.autoCommit = false;
+            outer = Deadline.enter(Deadline.after(5000));
+            try {
+               Deadline.watch(fake.statement(), "DECLARE").close();
+            } finally {
+               Deadline.restore(outer);
+            }
+            expect(fake.executed.get(fake.executed.size() - 1).startsWith("SET LOCAL statement_timeout = "),
+               "SET LOCAL in a transaction: " + fake.executed);
+            expect(fake.cancels.get() == 1, "a closed guard does not cancel");
+         }
+      });
+      checks.add(new Check("Deadline.Guard/no cancel after close") {
+         void run () throws Exception {
+            // guards closed around their deadline, racing the timer thread
+            Random rnd = new Random(seed);
+            int fired = 0;
+            for (int i = 0; i < 1000; ++i) {
+               FakeConnection fake = new FakeConnection();
+               Deadline outer = Deadline.enter(Deadline.after(1));
+               try {
+                  Deadline.Guard guard = Deadline.watch(fake.statement(), "SELECT 1");
+                  long spin = System.nanoTime() + rnd.nextInt(2000000);
+                  while (System.nanoTime() < spin)
+                     Thread.yield();
+                  guard.close();
+                  fake.finished = true;
+               } catch (QueryTimeoutException e) {
+                  // expired before the statement started
+                  continue;
+               } finally {
+                  Deadline.restore(outer);
+               }
+               Thread.sleep(0, 100000);
+               expect(fake.lateCancels.get() == 0, "cancel after close in round " + i);
+               fired += fake.cancels.get();
+               Deadline.cancelSent(fake.connection);
+            }//end for
+            Thread.sleep(20);
+            expect(fired > 0, "some guards fired before they were closed");
+         }
+      });
+   }//end addDeadline
+
+   private static void link (Map<String, Set<String>> adj, String a, String b) {
+      Set<String> s = adj.get(a);
+      if (s == null)
+         adj.put(a, s = new HashSet<String>());
+      s.add(b);
+   }//end link
+
+   // reference breadth first search
+   private static boolean hops (Map<String, Set<String>> adj, String a, String b, int max) {
+      if (a.equals(b))
+         return true;
+      Set<String> seen = new HashSet<String>();
+      ArrayDeque<String> front = new ArrayDeque<String>();
+      front.add(a);
+      seen.add(a);
+      for (int d = 0; d < max; ++d) {
+         ArrayDeque<String> next = new ArrayDeque<String>();
+         for (String u : front) {
+            Set<String> ns = adj.get(u);
+            if (ns == null)
+               continue;
+            for (String v : ns) {
+               if (v.equals(b))
+                  return true;
+               if (seen.add(v))
+                  next.add(v);
+            }
+         }
+         front = next;
+      }//end for
+      return false;
+   }//end hops
+
+   static List<String[]> readCsv (File file, int columns) throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+         String line;
+         while ((line = in.readLine()) != null) {
+            String[] fields = BulkLoader.splitCsv(line, columns);
+            if (fields == null)
+               continue;
+            for (int i = 0; i < fields.length; ++i)
+               fields[i] = fields[i].trim();
+            rows.add(fields);
+         }
+      } finally {
+         in.close();
+      }//end try
+      return rows;
+   }//end readCsv
+
+}//end SelfCheck
@@ -1,5 +1,7 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_tables.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/friend_edges.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/snapshot_changes.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_indexes.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/load_data.sql
\ No newline at end of file
@@ -0,0 +1,20 @@
+#! /bin/bash
+# Starts a streaming replica of the database started by startPostgreSQL.sh,
+# on port $REPLICA_PORT (default 8193), for testing the read routing:
+#    source ./startReplica.sh
+#    java -Dprofnetwork.replicas=localhost:$REPLICA_PORT ... ProfNetwork ...
+# initdb allows replication connections from localhost, so no setup is
+# needed on the primary.
+folder=/tmp/$USER
+replica=$folder/myReplica
+export REPLICA_PORT=${REPLICA_PORT:-8193}
+
+#Clear folder
+rm -rf $replica
+mkdir $replica
+mkdir $replica/sockets
+
+#Copy the primary, -R makes the copy a standby streaming from it
+pg_basebackup -h localhost -p $PGPORT -D $replica/data -R -X stream -c fast
+
+pg_ctl -o "-c unix_socket_directories=$replica/sockets -p $REPLICA_PORT" -D $replica/data -l $folder/replica_logfile start
@@ -0,0 +1,3 @@
+#! /bin/bash
+replica=/tmp/$USER/myReplica
+pg_ctl -D $replica/data -l /tmp/$USER/replica_logfile stop
@@ -1,10 +1,25 @@
-DROP INDEX IF EXISTS i1, i2, i3, i4, i5, i6, i7, i8;
+DROP INDEX IF EXISTS i1, i2, i3, i4, i5, i6, i7, i8, i9, i10, i11, i12, i13, i14;
 
 CREATE INDEX i1 on USR USING BTREE (userId);
 CREATE INDEX i2 on USR USING BTREE (name);
-CREATE INDEX i3 on CONNECTION_USR USING BTREE (userId);
-CREATE INDEX i4 on CONNECTION_USR USING BTREE (connectionId);
+CREATE INDEX i3 on CONNECTION_USR USING BTREE (userUid);
+CREATE INDEX i4 on CONNECTION_USR USING BTREE (connectionUid);
 CREATE INDEX i5 on CONNECTION_USR USING BTREE (status);
-CREATE INDEX i6 on MESSAGE USING BTREE (receiverId);
-CREATE INDEX i7 on MESSAGE USING BTREE (senderId);
-CREATE INDEX i8 on MESSAGE USING BTREE (deleteStatus);
\ No newline at end of file
+CREATE INDEX i6 on MESSAGE USING BTREE (receiverUid);
+CREATE INDEX i7 on MESSAGE USING BTREE (senderUid);
+CREATE INDEX i8 on MESSAGE USING BTREE (deleteStatus);
+
+--- Trigram indexes so SearchPeople's LOWER(...) LIKE '%x%' doesn't scan all of USR
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+CREATE INDEX i9 on USR USING GIN (LOWER(userId) gin_trgm_ops);
+CREATE INDEX i10 on USR USING GIN (LOWER(name) gin_trgm_ops);
+
+--- Covering indexes for the inbox summary and keyset paginated conversations in ViewMessages
+CREATE INDEX i11 on MESSAGE USING BTREE (receiverUid, senderUid, sendTime, msgId);
+CREATE INDEX i12 on MESSAGE USING BTREE (senderUid, receiverUid, sendTime, msgId);
+
+--- Lets the message purger find messages deleted by both parties without scanning MESSAGE
+CREATE INDEX i13 on MESSAGE USING BTREE (msgId) WHERE deleteStatus = 3;
+
+--- Pending requests per receiver: an index only count and the request list for CheckIncomingRequests
+CREATE INDEX i14 on CONNECTION_USR USING BTREE (connectionUid, userUid) WHERE status = 'Request';
@@ -1,25 +1,38 @@
+DROP TABLE FRIEND;
 DROP TABLE WORK_EXPR;
 DROP TABLE EDUCATIONAL_DETAILS;
+DROP TABLE MESSAGE_ARCHIVE;
 DROP TABLE MESSAGE;
 DROP TABLE CONNECTION_USR;
 DROP TABLE USR;
+DROP TYPE connection_status;
+DROP TYPE message_status;
 
---- Foreign keys were added as well as changing the character length to 50
+--- Statuses are enums, stored in 4 bytes instead of a padded char(30) and
+--- still compared with plain literals such as status = 'Accept'
+CREATE TYPE connection_status AS ENUM ('Request', 'Accept', 'Reject');
+CREATE TYPE message_status AS ENUM ('Draft', 'Sent', 'Delivered', 'Read', 'Failed to Deliver');
+
+--- Foreign keys were added as well as changing the character length to 50.
+--- Text columns are varchar, so nothing is padded to full width. Every user
+--- also gets an integer surrogate key, uid, which CONNECTION_USR and MESSAGE
+--- store instead of the userId.
 
 CREATE TABLE USR(
+	uid serial UNIQUE NOT NULL,
 	userId varchar(50) UNIQUE NOT NULL,
 	password varchar(50) NOT NULL,
 	email text NOT NULL,
-	name char(50),
+	name varchar(50),
 	dateOfBirth date,
 	PRIMARY KEY(userId)
 );
 
 CREATE TABLE WORK_EXPR(
-	userId char(50) NOT NULL,
-	company char(50) NOT NULL,
-	role char(50) NOT NULL,
-	location char(50),
+	userId varchar(50) NOT NULL,
+	company varchar(50) NOT NULL,
+	role varchar(50) NOT NULL,
+	location varchar(50),
 	startDate date,
 	endDate date,
 	PRIMARY KEY(userId,company,role,startDate),
@@ -27,10 +40,10 @@ CREATE TABLE WORK_EXPR(
 );
 
 CREATE TABLE EDUCATIONAL_DETAILS(
-	userId char(50) NOT NULL,
-	instituitionName char(50) NOT NULL,
-	major char(50) NOT NULL,
-	degree char(50) NOT NULL,
+	userId varchar(50) NOT NULL,
+	instituitionName varchar(50) NOT NULL,
+	major varchar(50) NOT NULL,
+	degree varchar(50) NOT NULL,
 	startdate date,
 	enddate date,
 	PRIMARY KEY(userId,major,degree),
@@ -41,25 +54,41 @@ CREATE SEQUENCE msg_id_seq;
 
 CREATE TABLE MESSAGE(
 	msgId integer UNIQUE NOT NULL DEFAULT nextval('msg_id_seq'),
-	senderId char(50) NOT NULL,
-	receiverId char(50) NOT NULL,
-	contents char(500) NOT NULL,
+	senderUid integer NOT NULL,
+	receiverUid integer NOT NULL,
+	contents varchar(500) NOT NULL,
 	sendTime timestamp,
-	deleteStatus integer,
-	status char(30) NOT NULL,
+	deleteStatus smallint,
+	status message_status NOT NULL,
 	PRIMARY KEY(msgId),
-	FOREIGN KEY (senderId) REFERENCES USR ON DELETE CASCADE,
-	FOREIGN KEY (receiverId) REFERENCES USR ON DELETE CASCADE
+	FOREIGN KEY (senderUid) REFERENCES USR (uid) ON DELETE CASCADE,
+	FOREIGN KEY (receiverUid) REFERENCES USR (uid) ON DELETE CASCADE
+);
+
+--- Messages deleted by both parties, moved out of MESSAGE by the message purger.
+--- No foreign keys, and the userIds rather than the uids, so archived messages
+--- outlive their users.
+CREATE TABLE MESSAGE_ARCHIVE(
+	msgId integer NOT NULL,
+	senderId varchar(50) NOT NULL,
+	receiverId varchar(50) NOT NULL,
+	contents varchar(500) NOT NULL,
+	sendTime timestamp,
+	deleteStatus smallint,
+	status message_status NOT NULL,
+	archivedAt timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP
 );
 
 --- Alter sequence to start with an ID +1 more than current from `data_MESSAGE.csv`
 ALTER SEQUENCE msg_id_seq RESTART WITH 27812;
 
+--- The accepted connections are also kept as symmetric FRIEND edges with a
+--- friend count per user, created and maintained by friend_edges.sql.
 CREATE TABLE CONNECTION_USR(
-	userId char(50) NOT NULL,
-	connectionId char(50) NOT NULL,
-	status char(30) NOT NULL,
-	PRIMARY KEY(userId,connectionId),
-	FOREIGN KEY(connectionId) REFERENCES USR ON DELETE CASCADE,
-	FOREIGN KEY(userId) REFERENCES USR ON DELETE CASCADE
+	userUid integer NOT NULL,
+	connectionUid integer NOT NULL,
+	status connection_status NOT NULL,
+	PRIMARY KEY(userUid,connectionUid),
+	FOREIGN KEY(connectionUid) REFERENCES USR (uid) ON DELETE CASCADE,
+	FOREIGN KEY(userUid) REFERENCES USR (uid) ON DELETE CASCADE
 );
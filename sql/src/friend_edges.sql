@@ -0,0 +1,96 @@
+--- Keeps the accepted connections as a symmetric edge set. An accepted
+--- CONNECTION_USR row (a, b) is stored as the FRIEND rows (a, b) and (b, a),
+--- so the friends of a user are one range scan of the FRIEND primary key
+--- instead of a UNION of both directions of CONNECTION_USR. USR.friendCount
+--- holds the number of FRIEND rows of each user.
+---
+--- Both are maintained by triggers, so every writer (the application,
+--- load_data.sql, the bulk loader, psql) keeps them current. Accepting a
+--- request inserts two FRIEND rows and updates two USR rows in the same
+--- transaction.
+---
+--- create_db.sh runs this after create_tables.sql. On an existing database run
+--- it once; it fills FRIEND and the counts from CONNECTION_USR:
+---    psql -h localhost -p $PGPORT $USER"_DB" < friend_edges.sql
+
+BEGIN;
+
+--- No accepts may slip in between the backfill and the triggers
+LOCK TABLE CONNECTION_USR IN SHARE ROW EXCLUSIVE MODE;
+
+ALTER TABLE USR ADD COLUMN IF NOT EXISTS friendCount integer NOT NULL DEFAULT 0;
+
+CREATE TABLE IF NOT EXISTS FRIEND(
+	userUid integer NOT NULL,
+	friendUid integer NOT NULL,
+	PRIMARY KEY(userUid,friendUid),
+	FOREIGN KEY(userUid) REFERENCES USR (uid) ON DELETE CASCADE,
+	FOREIGN KEY(friendUid) REFERENCES USR (uid) ON DELETE CASCADE
+);
+
+DROP TRIGGER IF EXISTS friend_count ON FRIEND;
+DROP TRIGGER IF EXISTS friend_edges ON CONNECTION_USR;
+
+INSERT INTO FRIEND (userUid, friendUid)
+	SELECT userUid, connectionUid FROM CONNECTION_USR WHERE status = 'Accept'
+	UNION SELECT connectionUid, userUid FROM CONNECTION_USR WHERE status = 'Accept'
+	ON CONFLICT DO NOTHING;
+
+UPDATE USR SET friendCount = C.friends
+	FROM (SELECT u.uid, COUNT(f.friendUid) AS friends FROM USR u LEFT JOIN FRIEND f ON f.userUid = u.uid GROUP BY u.uid) C
+	WHERE USR.uid = C.uid AND USR.friendCount <> C.friends;
+
+--- Counts every FRIEND row towards its userUid. FRIEND rows removed by the
+--- cascade of a deleted user are counted too.
+CREATE OR REPLACE FUNCTION friend_count_maintain() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		UPDATE USR SET friendCount = friendCount + 1 WHERE uid = NEW.userUid;
+	ELSE
+		UPDATE USR SET friendCount = friendCount - 1 WHERE uid = OLD.userUid;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+--- Adds both edges when a row becomes accepted and removes them when it stops
+--- being accepted, unless the reverse request is accepted as well. Edges are
+--- written lower uid first, so concurrent accepts lock the USR rows of the
+--- counts in the same order.
+CREATE OR REPLACE FUNCTION friend_edges_maintain() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'UPDATE' THEN
+		IF OLD.status = NEW.status AND OLD.userUid = NEW.userUid AND OLD.connectionUid = NEW.connectionUid THEN
+			RETURN NULL;
+		END IF;
+	END IF;
+	IF TG_OP <> 'INSERT' THEN
+		IF OLD.status = 'Accept' AND NOT EXISTS (
+			SELECT 1 FROM CONNECTION_USR
+			WHERE userUid = OLD.connectionUid AND connectionUid = OLD.userUid AND status = 'Accept') THEN
+			DELETE FROM FRIEND
+			WHERE (userUid = OLD.userUid AND friendUid = OLD.connectionUid)
+			   OR (userUid = OLD.connectionUid AND friendUid = OLD.userUid);
+		END IF;
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		IF NEW.status = 'Accept' THEN
+			INSERT INTO FRIEND (userUid, friendUid)
+			VALUES (LEAST(NEW.userUid, NEW.connectionUid), GREATEST(NEW.userUid, NEW.connectionUid)),
+			       (GREATEST(NEW.userUid, NEW.connectionUid), LEAST(NEW.userUid, NEW.connectionUid))
+			ON CONFLICT DO NOTHING;
+		END IF;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER friend_count AFTER INSERT OR DELETE ON FRIEND
+	FOR EACH ROW EXECUTE PROCEDURE friend_count_maintain();
+
+CREATE TRIGGER friend_edges AFTER INSERT OR UPDATE OF status, userUid, connectionUid OR DELETE ON CONNECTION_USR
+	FOR EACH ROW EXECUTE PROCEDURE friend_edges_maintain();
+
+COMMIT;
+
+ANALYZE FRIEND;
@@ -1,6 +1,22 @@
 --- Updated this file to use pre-formated data that is relative to this one
-\COPY USR FROM './../../data/data_USR.csv' WITH (FORMAT csv);
+\COPY USR (userId, password, email, name, dateOfBirth) FROM './../../data/data_USR.csv' WITH (FORMAT csv);
 \COPY WORK_EXPR FROM './../../data/data_WORK_EXPR.csv' WITH (FORMAT csv);
 \COPY EDUCATIONAL_DETAILS FROM './../../data/data_EDUCATIONAL_DETAILS.csv' WITH (FORMAT csv);
-\COPY MESSAGE FROM './../../data/data_MESSAGE.csv' WITH (FORMAT csv);
-\COPY CONNECTION_USR FROM './../../data/data_CONNECTION_USR.csv' WITH (FORMAT csv);
\ No newline at end of file
+
+--- The files name users by userId; MESSAGE and CONNECTION_USR store their uid,
+--- so those two are staged and translated. An unknown userId leaves a NULL uid
+--- and fails the load like the foreign key would.
+CREATE TEMP TABLE MESSAGE_CSV(msgId integer, senderId text, receiverId text, contents text,
+	sendTime timestamp, deleteStatus smallint, status text);
+\COPY MESSAGE_CSV FROM './../../data/data_MESSAGE.csv' WITH (FORMAT csv);
+INSERT INTO MESSAGE (msgId, senderUid, receiverUid, contents, sendTime, deleteStatus, status)
+	SELECT m.msgId, (SELECT uid FROM USR WHERE userId = TRIM(m.senderId)), (SELECT uid FROM USR WHERE userId = TRIM(m.receiverId)),
+	       TRIM(m.contents), m.sendTime, m.deleteStatus, CAST(TRIM(m.status) AS message_status)
+	FROM MESSAGE_CSV m;
+
+CREATE TEMP TABLE CONNECTION_CSV(userId text, connectionId text, status text);
+\COPY CONNECTION_CSV FROM './../../data/data_CONNECTION_USR.csv' WITH (FORMAT csv);
+INSERT INTO CONNECTION_USR (userUid, connectionUid, status)
+	SELECT (SELECT uid FROM USR WHERE userId = TRIM(c.userId)), (SELECT uid FROM USR WHERE userId = TRIM(c.connectionId)),
+	       CAST(TRIM(c.status) AS connection_status)
+	FROM CONNECTION_CSV c;
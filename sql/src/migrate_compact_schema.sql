@@ -0,0 +1,113 @@
+--- Migrates a database created by an older create_tables.sql, with char(50)
+--- userIds in CONNECTION_USR and MESSAGE, char columns and char(30)
+--- statuses, to the compact schema of the current create_tables.sql:
+--- - USR gets an integer surrogate key, uid, and CONNECTION_USR and MESSAGE
+---   store it instead of the userId;
+--- - char columns become varchar, without their padding;
+--- - statuses become the connection_status and message_status enums, and
+---   deleteStatus a smallint.
+---
+--- Run once, then recreate the indexes:
+---    psql -h localhost -p $PGPORT $USER"_DB" < migrate_compact_schema.sql
+---    psql -h localhost -p $PGPORT $USER"_DB" < create_indexes.sql
+--- The new version of the application only works on the migrated schema.
+---
+--- Everything runs in one transaction, so a failure leaves the database as it
+--- was. A status outside the enums fails the migration; add the value to the
+--- enum below first. CONNECTION_USR and MESSAGE are rewritten into new tables
+--- rather than updated in place, so they come out without dead rows. A
+--- partitioned MESSAGE comes out unpartitioned; rerun partition_messages.sql.
+
+BEGIN;
+
+CREATE TYPE connection_status AS ENUM ('Request', 'Accept', 'Reject');
+CREATE TYPE message_status AS ENUM ('Draft', 'Sent', 'Delivered', 'Read', 'Failed to Deliver');
+
+--- Numbers the existing users
+ALTER TABLE USR ADD COLUMN uid serial UNIQUE NOT NULL;
+ALTER TABLE USR ALTER COLUMN name TYPE varchar(50) USING RTRIM(name);
+
+ALTER TABLE WORK_EXPR
+	ALTER COLUMN userId TYPE varchar(50) USING RTRIM(userId),
+	ALTER COLUMN company TYPE varchar(50) USING RTRIM(company),
+	ALTER COLUMN role TYPE varchar(50) USING RTRIM(role),
+	ALTER COLUMN location TYPE varchar(50) USING RTRIM(location);
+
+ALTER TABLE EDUCATIONAL_DETAILS
+	ALTER COLUMN userId TYPE varchar(50) USING RTRIM(userId),
+	ALTER COLUMN instituitionName TYPE varchar(50) USING RTRIM(instituitionName),
+	ALTER COLUMN major TYPE varchar(50) USING RTRIM(major),
+	ALTER COLUMN degree TYPE varchar(50) USING RTRIM(degree);
+
+--- Databases created before message archiving have no MESSAGE_ARCHIVE yet;
+--- it is created in the compact shape, which the ALTER below keeps
+CREATE TABLE IF NOT EXISTS MESSAGE_ARCHIVE(
+	msgId integer NOT NULL,
+	senderId varchar(50) NOT NULL,
+	receiverId varchar(50) NOT NULL,
+	contents varchar(500) NOT NULL,
+	sendTime timestamp,
+	deleteStatus smallint,
+	status message_status NOT NULL,
+	archivedAt timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+ALTER TABLE MESSAGE_ARCHIVE
+	ALTER COLUMN senderId TYPE varchar(50) USING RTRIM(senderId),
+	ALTER COLUMN receiverId TYPE varchar(50) USING RTRIM(receiverId),
+	ALTER COLUMN contents TYPE varchar(500) USING RTRIM(contents),
+	ALTER COLUMN deleteStatus TYPE smallint,
+	ALTER COLUMN status TYPE message_status USING CAST(RTRIM(CAST(status AS text)) AS message_status);
+
+ALTER TABLE CONNECTION_USR RENAME TO CONNECTION_USR_CHAR;
+ALTER TABLE CONNECTION_USR_CHAR RENAME CONSTRAINT connection_usr_pkey TO connection_usr_char_pkey;
+
+CREATE TABLE CONNECTION_USR(
+	userUid integer NOT NULL,
+	connectionUid integer NOT NULL,
+	status connection_status NOT NULL,
+	PRIMARY KEY(userUid,connectionUid),
+	FOREIGN KEY(connectionUid) REFERENCES USR (uid) ON DELETE CASCADE,
+	FOREIGN KEY(userUid) REFERENCES USR (uid) ON DELETE CASCADE
+);
+
+--- The old foreign keys guarantee every userId has a USR row
+INSERT INTO CONNECTION_USR (userUid, connectionUid, status)
+	SELECT u.uid, c.uid, CAST(RTRIM(o.status) AS connection_status)
+	FROM CONNECTION_USR_CHAR o
+	JOIN USR u ON u.userId = RTRIM(o.userId)
+	JOIN USR c ON c.userId = RTRIM(o.connectionId);
+
+DROP TABLE CONNECTION_USR_CHAR;
+
+ALTER TABLE MESSAGE RENAME TO MESSAGE_CHAR;
+ALTER TABLE MESSAGE_CHAR RENAME CONSTRAINT message_pkey TO message_char_pkey;
+
+CREATE TABLE MESSAGE(
+	msgId integer UNIQUE NOT NULL DEFAULT nextval('msg_id_seq'),
+	senderUid integer NOT NULL,
+	receiverUid integer NOT NULL,
+	contents varchar(500) NOT NULL,
+	sendTime timestamp,
+	deleteStatus smallint,
+	status message_status NOT NULL,
+	PRIMARY KEY(msgId),
+	FOREIGN KEY (senderUid) REFERENCES USR (uid) ON DELETE CASCADE,
+	FOREIGN KEY (receiverUid) REFERENCES USR (uid) ON DELETE CASCADE
+);
+
+INSERT INTO MESSAGE (msgId, senderUid, receiverUid, contents, sendTime, deleteStatus, status)
+	SELECT o.msgId, s.uid, r.uid, RTRIM(o.contents), o.sendTime, o.deleteStatus, CAST(RTRIM(o.status) AS message_status)
+	FROM MESSAGE_CHAR o
+	JOIN USR s ON s.userId = RTRIM(o.senderId)
+	JOIN USR r ON r.userId = RTRIM(o.receiverId);
+
+DROP TABLE MESSAGE_CHAR;
+
+COMMIT;
+
+VACUUM ANALYZE USR;
+VACUUM ANALYZE WORK_EXPR;
+VACUUM ANALYZE EDUCATIONAL_DETAILS;
+ANALYZE CONNECTION_USR;
+ANALYZE MESSAGE;
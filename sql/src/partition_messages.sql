@@ -0,0 +1,122 @@
+--- Converts MESSAGE into a table range partitioned by month of sendTime
+--- (PostgreSQL 11 or later), so queries on recent messages only touch recent
+--- partitions and old months can be detached instead of deleted row by row.
+---
+--- Run once on a created (and optionally loaded) database with the compact
+--- schema (see migrate_compact_schema.sql for older databases):
+---    psql -h localhost -p $PGPORT $USER"_DB" < partition_messages.sql
+--- and rerun create_indexes.sql afterwards only if the indexes were changed.
+---
+--- Partition maintenance afterwards, by hand or by the message purger
+--- (profnetwork.purge.partitionsAhead / profnetwork.purge.keepMonths):
+---    SELECT ensure_message_partitions(CURRENT_DATE, 3);  -- months from now to 3 months ahead
+---    SELECT detach_message_partitions(24);               -- detach months older than 24 months
+--- Detached partitions stay as plain tables named message_YYYY_MM, to be
+--- dumped or dropped.
+---
+--- There is no DEFAULT partition: rows that landed in one would make creating
+--- the monthly partition for their range fail later. Partitions have to be
+--- created ahead of time instead (the purger does it when partitionsAhead is
+--- set); a message sent past the last partition fails to insert. Messages
+--- from before the first month go to message_undated, which is never
+--- detached, so ensure_message_partitions must not be run for earlier months.
+---
+--- A database partitioned by an earlier version of this script has a
+--- message_default partition. Move its rows out once:
+---    BEGIN;
+---    ALTER TABLE MESSAGE DETACH PARTITION message_default;
+---    SELECT ensure_message_partitions((SELECT MIN(sendTime) FROM message_default)::date, 3);
+---    INSERT INTO MESSAGE SELECT * FROM message_default;
+---    DROP TABLE message_default;
+---    COMMIT;
+---
+--- msgId stays unique through msg_id_seq, but the primary key has to
+--- include the partition key and becomes (msgId, sendTime). Rows without a
+--- sendTime are given the epoch.
+
+CREATE OR REPLACE FUNCTION ensure_message_partitions(from_month date, months_ahead integer) RETURNS integer AS $$
+DECLARE
+	m date := date_trunc('month', from_month);
+	last_month date := date_trunc('month', now()) + months_ahead * interval '1 month';
+	part text;
+	created integer := 0;
+BEGIN
+	WHILE m <= last_month LOOP
+		part := 'message_' || to_char(m, 'YYYY_MM');
+		IF to_regclass(part) IS NULL THEN
+			EXECUTE format('CREATE TABLE %I PARTITION OF MESSAGE FOR VALUES FROM (%L) TO (%L)',
+			               part, m, (m + interval '1 month')::date);
+			created := created + 1;
+		END IF;
+		m := m + interval '1 month';
+	END LOOP;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION detach_message_partitions(keep_months integer) RETURNS integer AS $$
+DECLARE
+	cutoff date := date_trunc('month', now()) - keep_months * interval '1 month';
+	part record;
+	detached integer := 0;
+BEGIN
+	FOR part IN
+		SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+		WHERE i.inhparent = 'message'::regclass AND c.relname ~ '^message_[0-9]{4}_[0-9]{2}$'
+		  AND to_date(substr(c.relname, 9), 'YYYY_MM') < cutoff
+		ORDER BY c.relname
+	LOOP
+		EXECUTE format('ALTER TABLE MESSAGE DETACH PARTITION %I', part.relname);
+		detached := detached + 1;
+	END LOOP;
+	RETURN detached;
+END;
+$$ LANGUAGE plpgsql;
+
+BEGIN;
+
+ALTER TABLE MESSAGE RENAME TO MESSAGE_UNPARTITIONED;
+ALTER TABLE MESSAGE_UNPARTITIONED RENAME CONSTRAINT message_pkey TO message_unpartitioned_pkey;
+DROP INDEX IF EXISTS i6, i7, i8, i11, i12, i13;
+
+CREATE TABLE MESSAGE(
+	msgId integer NOT NULL DEFAULT nextval('msg_id_seq'),
+	senderUid integer NOT NULL,
+	receiverUid integer NOT NULL,
+	contents varchar(500) NOT NULL,
+	sendTime timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+	deleteStatus smallint,
+	status message_status NOT NULL,
+	PRIMARY KEY(msgId, sendTime),
+	FOREIGN KEY (senderUid) REFERENCES USR (uid) ON DELETE CASCADE,
+	FOREIGN KEY (receiverUid) REFERENCES USR (uid) ON DELETE CASCADE
+) PARTITION BY RANGE (sendTime);
+
+SELECT ensure_message_partitions(
+	COALESCE((SELECT MIN(sendTime) FROM MESSAGE_UNPARTITIONED WHERE sendTime IS NOT NULL), now())::date, 3);
+
+--- Rows without a sendTime are stored at the epoch, before the first month
+DO $$
+BEGIN
+	EXECUTE format('CREATE TABLE message_undated PARTITION OF MESSAGE FOR VALUES FROM (MINVALUE) TO (%L)',
+	               date_trunc('month', COALESCE((SELECT MIN(sendTime) FROM MESSAGE_UNPARTITIONED), now()))::date);
+END;
+$$;
+
+INSERT INTO MESSAGE (msgId, senderUid, receiverUid, contents, sendTime, deleteStatus, status)
+	SELECT msgId, senderUid, receiverUid, contents, COALESCE(sendTime, TIMESTAMP 'epoch'), deleteStatus, status
+	FROM MESSAGE_UNPARTITIONED;
+
+DROP TABLE MESSAGE_UNPARTITIONED;
+
+--- Same indexes as create_indexes.sql, created on every partition
+CREATE INDEX i6 on MESSAGE USING BTREE (receiverUid);
+CREATE INDEX i7 on MESSAGE USING BTREE (senderUid);
+CREATE INDEX i8 on MESSAGE USING BTREE (deleteStatus);
+CREATE INDEX i11 on MESSAGE USING BTREE (receiverUid, senderUid, sendTime, msgId);
+CREATE INDEX i12 on MESSAGE USING BTREE (senderUid, receiverUid, sendTime, msgId);
+CREATE INDEX i13 on MESSAGE USING BTREE (msgId) WHERE deleteStatus = 3;
+
+COMMIT;
+
+ANALYZE MESSAGE;
@@ -0,0 +1,42 @@
+--- Stamps every USR and CONNECTION_USR row with the time it was last
+--- changed, so a process that warm starts from a snapshot file
+--- (-Dprofnetwork.snapshot.file) only reads the rows changed since the
+--- snapshot instead of both tables.
+---
+--- Existing rows get '-infinity', older than any snapshot, without rewriting
+--- the tables. New rows get the time of their insert, and a trigger moves it
+--- forward on every update of a column the snapshot holds. USR rows whose
+--- friendCount alone changed keep their time. Deleted rows leave no trace, so
+--- delete the snapshot file after deleting users or connections.
+---
+--- create_db.sh runs this after friend_edges.sql. On an existing database run
+--- it once; it can be run again:
+---    psql -h localhost -p $PGPORT $USER"_DB" < snapshot_changes.sql
+
+BEGIN;
+
+ALTER TABLE USR ADD COLUMN IF NOT EXISTS changedAt timestamptz NOT NULL DEFAULT '-infinity';
+ALTER TABLE USR ALTER COLUMN changedAt SET DEFAULT clock_timestamp();
+ALTER TABLE CONNECTION_USR ADD COLUMN IF NOT EXISTS changedAt timestamptz NOT NULL DEFAULT '-infinity';
+ALTER TABLE CONNECTION_USR ALTER COLUMN changedAt SET DEFAULT clock_timestamp();
+
+CREATE OR REPLACE FUNCTION changed_at_maintain() RETURNS trigger AS $$
+BEGIN
+	NEW.changedAt := clock_timestamp();
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS usr_changed_at ON USR;
+DROP TRIGGER IF EXISTS connection_usr_changed_at ON CONNECTION_USR;
+
+CREATE TRIGGER usr_changed_at BEFORE UPDATE OF userId, name, email ON USR
+	FOR EACH ROW EXECUTE PROCEDURE changed_at_maintain();
+
+CREATE TRIGGER connection_usr_changed_at BEFORE UPDATE ON CONNECTION_USR
+	FOR EACH ROW EXECUTE PROCEDURE changed_at_maintain();
+
+CREATE INDEX IF NOT EXISTS usr_changed_at_idx ON USR (changedAt);
+CREATE INDEX IF NOT EXISTS connection_usr_changed_at_idx ON CONNECTION_USR (changedAt);
+
+COMMIT;